@@ -0,0 +1,83 @@
+package com.urbanairship.octobot.benchmarks;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.urbanairship.octobot.QueueConsumer;
+import com.urbanairship.octobot.WorkerPool;
+
+
+// Compares the platform-thread pool against virtual threads on a batch of
+// tasks which spend their time blocked, as tasks waiting on a database or
+// HTTP call do. Both executors are allowed the same concurrency.
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ExecutorBenchmark {
+
+    private static final int MESSAGES = 10000;
+
+    @Param({"pool", "virtual"})
+    public String executor;
+
+    @Param({"64", "1024"})
+    public int concurrency;
+
+    @Param({"5"})
+    public int sleepMillis;
+
+    private WorkerPool pool;
+    private QueueConsumer consumer;
+    private String message;
+
+    @Setup
+    public void setup() {
+        if (executor.equals("pool"))
+            pool = new WorkerPool("bench", concurrency, concurrency, Thread.NORM_PRIORITY);
+        else
+            pool = WorkerPool.virtual("bench", concurrency);
+
+        consumer = new QueueConsumer(null);
+        message = "{\"task\":\"" + SleepTask.class.getName() + "\", " +
+            "\"millis\":" + sleepMillis + "}";
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Benchmark
+    public void drain() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(MESSAGES);
+        Runnable task = new Runnable() {
+            public void run() {
+                consumer.invokeTask(message);
+                done.countDown();
+            }
+        };
+
+        for (int i = 0; i < MESSAGES; i++)
+            while (!pool.submit(task, 100, TimeUnit.MILLISECONDS)) { }
+
+        done.await();
+    }
+
+}
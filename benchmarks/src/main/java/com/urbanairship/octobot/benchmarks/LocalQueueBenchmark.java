@@ -0,0 +1,84 @@
+package com.urbanairship.octobot.benchmarks;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.urbanairship.octobot.LocalQueue;
+import com.urbanairship.octobot.Queue;
+import com.urbanairship.octobot.QueueBackend;
+import com.urbanairship.octobot.QueueBackends;
+
+
+// Measures the local queue end to end: messages appended by a producer,
+// then fetched, acknowledged and flushed by its consumer backend, as an
+// Octobot worker would. Each invocation moves a batch through, so the
+// files stay small however long the run.
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LocalQueueBenchmark {
+
+    private static final int MESSAGES = 1000;
+
+    @Param({"64", "1024"})
+    public int messageSize;
+
+    private File directory;
+    private LocalQueue producer;
+    private QueueBackend consumer;
+    private byte[] message;
+
+    @Setup
+    public void setup() throws Exception {
+        Queue queue = new Queue("local", "bench-" + System.nanoTime(), null, 0);
+        directory = new File(queue.path, queue.queueName);
+
+        producer = LocalQueue.open(queue);
+        consumer = QueueBackends.create(queue);
+        consumer.connect();
+        message = new byte[messageSize];
+    }
+
+    @TearDown
+    public void tearDown() {
+        consumer.close();
+        producer.close();
+        for (File file : directory.listFiles()) file.delete();
+        directory.delete();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public int appendAndDrain() throws Exception {
+        for (int i = 0; i < MESSAGES; i++) producer.append(message);
+
+        int drained = 0;
+        while (drained < MESSAGES) {
+            List<QueueBackend.Delivery> deliveries = consumer.fetch(256, 100);
+            for (QueueBackend.Delivery delivery : deliveries) consumer.ack(delivery);
+            consumer.flush();
+            drained += deliveries.size();
+        }
+        return drained;
+    }
+
+}
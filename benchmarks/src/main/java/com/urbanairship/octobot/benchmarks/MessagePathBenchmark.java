@@ -0,0 +1,109 @@
+package com.urbanairship.octobot.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.urbanairship.octobot.Envelope;
+import com.urbanairship.octobot.Metrics;
+import com.urbanairship.octobot.QueueConsumer;
+import com.urbanairship.octobot.TaskExecutor;
+
+
+// Measures the per-message cost of Octobot's hot path: invokeTask end to
+// end, and each of its stages (envelope parsing, task dispatch, and
+// metrics) on its own. Full JSON parsing is included for comparison. The
+// task run is a no-op, so these numbers are Octobot's overhead alone.
+// Each nested class runs the suite at a thread count.
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public abstract class MessagePathBenchmark {
+
+    private static final String TASK = NoopTask.class.getName();
+
+    @Param({"small", "large"})
+    public String payload;
+
+    private String message;
+    private byte[] body;
+    private JSONObject parsed;
+    private QueueConsumer consumer;
+
+    @Setup
+    public void setup() {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"task\":\"").append(TASK).append("\", \"retries\":0");
+
+        // The large payload carries roughly 8KB of data alongside the envelope.
+        if (payload.equals("large")) {
+            json.append(", \"data\":[");
+            for (int i = 0; i < 200; i++) {
+                if (i > 0) json.append(",");
+                json.append("{\"id\":").append(i)
+                    .append(",\"value\":\"abcdefghijklmnopqrstuvwxyz\"}");
+            }
+            json.append("]");
+        }
+
+        message = json.append("}").toString();
+        body = message.getBytes();
+        parsed = (JSONObject) JSONValue.parse(message);
+        consumer = new QueueConsumer(null);
+    }
+
+    @Benchmark
+    public boolean invokeTask() {
+        return consumer.invokeTask(body);
+    }
+
+    @Benchmark
+    public Envelope parseEnvelope() {
+        return Envelope.parse(body);
+    }
+
+    @Benchmark
+    public Object parse() {
+        return JSONValue.parse(message);
+    }
+
+    @Benchmark
+    public void dispatch() throws Exception {
+        TaskExecutor.execute(TASK, parsed);
+    }
+
+    @Benchmark
+    public void updateMetrics() {
+        Metrics.update(TASK, 1000, true, 0);
+    }
+
+    @State(Scope.Benchmark)
+    @Threads(1)
+    public static class OneThread extends MessagePathBenchmark { }
+
+    @State(Scope.Benchmark)
+    @Threads(8)
+    public static class EightThreads extends MessagePathBenchmark { }
+
+    @State(Scope.Benchmark)
+    @Threads(64)
+    public static class SixtyFourThreads extends MessagePathBenchmark { }
+
+}
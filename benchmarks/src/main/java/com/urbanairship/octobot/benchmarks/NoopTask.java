@@ -0,0 +1,11 @@
+package com.urbanairship.octobot.benchmarks;
+
+import org.json.simple.JSONObject;
+
+// A task which does nothing, so that benchmarks measure Octobot alone.
+
+public class NoopTask {
+
+    public static void run(JSONObject task) {
+    }
+}
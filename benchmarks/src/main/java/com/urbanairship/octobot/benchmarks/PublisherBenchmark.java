@@ -0,0 +1,122 @@
+package com.urbanairship.octobot.benchmarks;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.json.simple.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.urbanairship.octobot.Queue;
+import com.urbanairship.octobot.QueueBackend;
+import com.urbanairship.octobot.QueueBackends;
+import com.urbanairship.octobot.TaskPublisher;
+
+
+// Measures how fast a producer can enqueue tasks through a TaskPublisher,
+// one message per batch (a publish and wait per task, as producers did by
+// hand) against full batches. Runs against a local queue by default; to
+// measure a broker, pass e.g. -p protocol=amqp -p host=... -p port=5672
+// (or redis, with -p redisMode=list, or beanstalk), and purge the queue
+// afterwards.
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PublisherBenchmark {
+
+    private static final int MESSAGES = 10000;
+
+    @Param({"local"})
+    public String protocol;
+
+    @Param({"localhost"})
+    public String host;
+
+    // 0 for the protocol's usual port.
+    @Param({"0"})
+    public int port;
+
+    @Param({"list"})
+    public String redisMode;
+
+    @Param({"1", "256"})
+    public int publishBatch;
+
+    private Queue queue;
+    private TaskPublisher publisher;
+    private JSONObject payload;
+
+    @Setup
+    @SuppressWarnings("unchecked")
+    public void setup() {
+        if (port == 0 && protocol.equals("amqp")) port = 5672;
+        if (port == 0 && protocol.equals("redis")) port = 6379;
+        if (port == 0 && protocol.equals("beanstalk")) port = 11300;
+
+        queue = new Queue(protocol, "bench-" + System.nanoTime(), host, port);
+        queue.username = "guest";
+        queue.password = "guest";
+        queue.vhost = "/";
+        queue.redisMode = redisMode;
+        queue.publishBatch = publishBatch;
+
+        publisher = new TaskPublisher(queue);
+        payload = new JSONObject();
+        payload.put("id", 1234567L);
+        payload.put("tortilla", "corn");
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        publisher.close();
+        if (!protocol.equals("local")) return;
+
+        File directory = new File(queue.path, queue.queueName);
+        for (File file : directory.listFiles()) file.delete();
+        directory.delete();
+    }
+
+    // Drains a local queue between iterations, so its files stay small.
+    @TearDown(Level.Iteration)
+    public void drain() throws Exception {
+        if (!protocol.equals("local")) return;
+
+        QueueBackend consumer = QueueBackends.create(queue);
+        consumer.connect();
+        List<QueueBackend.Delivery> deliveries = consumer.fetch(4096, 0);
+        while (!deliveries.isEmpty()) {
+            for (QueueBackend.Delivery delivery : deliveries) consumer.ack(delivery);
+            consumer.flush();
+            deliveries = consumer.fetch(4096, 0);
+        }
+        consumer.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void publish() throws Exception {
+        for (int i = 0; i < MESSAGES; i++) {
+            publisher.publish("org.example.taquito.tasks.AddSalsa", payload, 3);
+            if (publishBatch == 1) publisher.flush();
+        }
+        publisher.flush();
+    }
+
+}
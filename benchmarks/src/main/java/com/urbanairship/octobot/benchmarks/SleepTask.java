@@ -0,0 +1,13 @@
+package com.urbanairship.octobot.benchmarks;
+
+import org.json.simple.JSONObject;
+
+// A task which blocks for the number of milliseconds given in its message,
+// standing in for one waiting on a database or HTTP call.
+
+public class SleepTask {
+
+    public static void run(JSONObject task) throws InterruptedException {
+        Thread.sleep((Long) task.get("millis"));
+    }
+}
@@ -0,0 +1,324 @@
+package com.urbanairship.octobot;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+import com.rabbitmq.client.QueueingConsumer;
+
+import org.apache.log4j.Logger;
+
+
+// Consumes from a RabbitMQ queue on a channel of a connection shared with
+// other workers (see AMQPConnections). Messages are pushed to us up to the
+// queue's prefetch limit, and fetched from the local buffer; acks are
+// coalesced by an AckBatcher.
+//
+// Retries, and messages put off by a task limit, are republished to a delay
+// queue which dead-letters them back onto the queue as they expire. Delay
+// queues are tiered by the power of two (in ms) at or above each message's
+// delay, so that a message never waits long behind one due later.
+//
+// Task results are published to the queue named in a message's reply_to
+// property, with its correlation_id. The channel is in confirm mode, so
+// that retries and replies are confirmed by the broker asynchronously. A
+// rescheduled message is acked only once its retry is confirmed, and a
+// retry the broker rejects is published again; rejected replies are logged.
+
+public class AMQPBackend implements QueueBackend {
+
+    private static final Logger logger = Logger.getLogger("AMQP Backend");
+
+    // How long (in ms) to wait on close for outstanding retries' confirms.
+    private static final long CONFIRM_TIMEOUT = 5000;
+
+    private final Queue queue;
+
+    private Channel channel = null;
+    private QueueingConsumer consumer = null;
+    private AckBatcher acks = null;
+    private String consumerTag = null;
+    private Confirms confirms = null;
+
+    // The delay queues declared on the current channel.
+    private final HashSet<String> retryQueues = new HashSet<String>();
+
+    public AMQPBackend(Queue queue) {
+        this.queue = queue;
+    }
+
+    // Opens a channel to RabbitMQ over a connection shared with other
+    // workers, backing off exponentially if the queue server is unavailable.
+    public void connect() {
+        int attempts = 0;
+        Backoff backoff = new Backoff(100, 30000);
+        logger.info("Opening connection to AMQP " + queue.vhost + " "  + queue.queueName + "...");
+
+        while (true) {
+            attempts++;
+            logger.debug("Attempt #" + attempts);
+
+            // The connection is shared, so release the channel we're replacing.
+            closeChannel();
+
+            try {
+                channel = AMQPConnections.createChannel(queue);
+                retryQueues.clear();
+                consumer = new QueueingConsumer(channel);
+                acks = new AckBatcher(channel, queue.ackBatchSize, queue.ackBatchDelay);
+                if (queue.prefetch > 0) channel.basicQos(queue.prefetch);
+                channel.confirmSelect();
+                confirms = new Confirms();
+                channel.addConfirmListener(confirms);
+                channel.exchangeDeclare(queue.queueName, "direct", true);
+                channel.queueDeclare(queue.queueName, true, false, false, null);
+                channel.queueBind(queue.queueName, queue.queueName, queue.queueName);
+                consumerTag = channel.basicConsume(queue.queueName, false, consumer);
+                logger.info("Connected to RabbitMQ");
+                return;
+            } catch (Exception e) {
+                long delay = backoff.nextDelay();
+                logger.error("Cannot connect to AMQP. Retrying in " + delay + " ms.", e);
+                backoff.sleep(delay);
+            }
+        }
+    }
+
+    public List<Delivery> fetch(int max, long timeout) throws IOException {
+        List<Delivery> deliveries = new ArrayList<Delivery>(max);
+        settleRetries();
+        try {
+            QueueingConsumer.Delivery delivery = consumer.nextDelivery(timeout);
+            while (delivery != null) {
+                if (delivery.getBody() != null) {
+                    long deliveryTag = delivery.getEnvelope().getDeliveryTag();
+                    acks.received(deliveryTag);
+                    Delivery received = new Delivery(channel, deliveryTag, delivery.getBody());
+                    AMQP.BasicProperties properties = delivery.getProperties();
+                    if (properties != null) {
+                        received.replyTo = properties.getReplyTo();
+                        received.correlationId = properties.getCorrelationId();
+                    }
+                    deliveries.add(received);
+                }
+                if (deliveries.size() >= max) break;
+                delivery = consumer.nextDelivery(0);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            throw new IOException("AMQP channel closed.", e);
+        }
+        return deliveries;
+    }
+
+    // Acks from a channel which has since been replaced are dropped; the
+    // broker will redeliver those messages.
+    public void ack(Delivery delivery) throws IOException {
+        if (delivery.source == channel) acks.completed((Long) delivery.handle);
+    }
+
+    // Failed messages are acked as ever, rather than requeued to fail again.
+    public void nack(Delivery delivery) throws IOException {
+        ack(delivery);
+    }
+
+    public boolean reschedule(Delivery delivery, Envelope retry, long delay) throws IOException {
+        if (delivery.source != channel) return true;
+        publishRetry(new Retry((Long) delivery.handle, retry, delay));
+        return true;
+    }
+
+    // Replies are published on our channel whether or not it is the one
+    // the message arrived on.
+    public boolean reply(Delivery delivery, String replyTo, String correlationId, byte[] result)
+            throws IOException {
+        AMQP.BasicProperties properties = new AMQP.BasicProperties.Builder()
+            .correlationId(correlationId)
+            .contentType("application/json")
+            .build();
+        channel.basicPublish("", replyTo, properties, result);
+        return true;
+    }
+
+    public void flush() throws IOException {
+        if (acks == null) return;
+        settleRetries();
+        acks.flushIfDue();
+    }
+
+    // Asks RabbitMQ with a passive declare, on a channel of our own if we
+    // haven't connected. That's opened in a single attempt, so that a
+    // depth poller isn't caught retrying while the broker is down.
+    public long depth() throws IOException {
+        if (channel == null || !channel.isOpen())
+            channel = AMQPConnections.tryChannel(queue);
+        return channel.queueDeclarePassive(queue.queueName).getMessageCount();
+    }
+
+    public void cancel() {
+        if (channel == null || consumerTag == null) return;
+        try { channel.basicCancel(consumerTag); }
+        catch (Exception e) { logger.debug("Error cancelling AMQP consumer.", e); }
+    }
+
+    // Waits a while for retries still unconfirmed, so that their messages
+    // are acked rather than redelivered alongside them.
+    public void close() {
+        try {
+            if (acks != null && channel.isOpen()) {
+                awaitConfirms();
+                acks.flush(true);
+            }
+        } catch (IOException e) {
+            logger.error("Error ack'ing messages.", e);
+        } finally {
+            closeChannel();
+        }
+    }
+
+    private void closeChannel() {
+        if (channel != null && channel.isOpen()) {
+            try { channel.close(); }
+            catch (Exception e) { logger.debug("Error closing AMQP channel.", e); }
+        }
+    }
+
+    private void awaitConfirms() throws IOException {
+        long deadline = System.currentTimeMillis() + CONFIRM_TIMEOUT;
+        while (true) {
+            settleRetries();
+            if (confirms.unconfirmed.isEmpty() && confirms.rejected.isEmpty()) return;
+            if (System.currentTimeMillis() >= deadline) break;
+
+            try { Thread.sleep(10); }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        logger.warn("Closing " + queue.queueName + " with " + confirms.unconfirmed.size() +
+            " retries unconfirmed; their messages will be redelivered.");
+    }
+
+    // Acks the messages whose retries the broker has confirmed, and publishes
+    // again the retries it has rejected. Called on the consumer's thread,
+    // which owns the channel and its ack batcher.
+    private void settleRetries() throws IOException {
+        if (confirms == null) return;
+        Retry retry;
+        while ((retry = confirms.confirmed.poll()) != null)
+            acks.completed(retry.deliveryTag);
+        while ((retry = confirms.rejected.poll()) != null)
+            publishRetry(retry);
+    }
+
+    // A retry published for a message, which is acked once it's confirmed.
+    private static class Retry {
+        final long deliveryTag;
+        final Envelope envelope;
+        final long delay;
+
+        Retry(long deliveryTag, Envelope envelope, long delay) {
+            this.deliveryTag = deliveryTag;
+            this.envelope = envelope;
+            this.delay = delay;
+        }
+    }
+
+    // Tracks the retries published on one channel by publish sequence number,
+    // handing them back to the consumer's thread as the broker confirms or
+    // rejects them. Confirms arrive on the connection's thread.
+    private class Confirms implements ConfirmListener {
+        final ConcurrentSkipListMap<Long, Retry> unconfirmed =
+            new ConcurrentSkipListMap<Long, Retry>();
+        final ConcurrentLinkedQueue<Retry> confirmed = new ConcurrentLinkedQueue<Retry>();
+        final ConcurrentLinkedQueue<Retry> rejected = new ConcurrentLinkedQueue<Retry>();
+
+        public void handleAck(long seqNo, boolean multiple) {
+            settle(seqNo, multiple, confirmed);
+        }
+
+        public void handleNack(long seqNo, boolean multiple) {
+            int retries = settle(seqNo, multiple, rejected);
+            logger.warn("RabbitMQ rejected " + (multiple ? "publishes up to " : "publish ") +
+                seqNo + " on " + queue.queueName + ", " + retries + " of them retries.");
+        }
+
+        private int settle(long seqNo, boolean multiple, ConcurrentLinkedQueue<Retry> into) {
+            if (!multiple) {
+                Retry retry = unconfirmed.remove(seqNo);
+                if (retry == null) return 0;
+                into.add(retry);
+                return 1;
+            }
+
+            Map<Long, Retry> settled = unconfirmed.headMap(seqNo, true);
+            int count = settled.size();
+            into.addAll(settled.values());
+            settled.clear();
+            return count;
+        }
+    }
+
+    // Publishes a retry to expire after its delay from the delay queue for
+    // its delay's tier, tracked until the broker confirms it.
+    private void publishRetry(Retry retry) throws IOException {
+        String delayQueue = queue.queueName + ".retry." + delayTier(retry.delay);
+
+        if (!retryQueues.contains(delayQueue)) {
+            HashMap<String, Object> args = new HashMap<String, Object>();
+            args.put("x-dead-letter-exchange", queue.queueName);
+            args.put("x-dead-letter-routing-key", queue.queueName);
+            channel.queueDeclare(delayQueue, true, false, false, args);
+            retryQueues.add(delayQueue);
+        }
+
+        AMQP.BasicProperties properties = new AMQP.BasicProperties.Builder()
+            .deliveryMode(2)
+            .expiration(Long.toString(retry.delay))
+            .build();
+
+        // Tracked before publishing, as the confirm may beat us back.
+        long seqNo = channel.getNextPublishSeqNo();
+        confirms.unconfirmed.put(seqNo, retry);
+        try {
+            channel.basicPublish("", delayQueue, properties, retry.envelope.body());
+        } catch (IOException e) {
+            confirms.unconfirmed.remove(seqNo);
+            throw e;
+        }
+    }
+
+    // Returns the tier of the delay queue for a delay: the least power of
+    // two no less than it. Every delay in a tier is over half of it, so no
+    // message waits more than half a tier past its own expiry.
+    static long delayTier(long delay) {
+        long tier = Long.highestOneBit(Math.max(delay, 1));
+        return tier < delay ? tier << 1 : tier;
+    }
+
+
+    public static class Provider implements QueueBackendProvider {
+        public boolean supports(Queue queue) {
+            return queue.queueType.equals("amqp");
+        }
+
+        public QueueBackend create(Queue queue) {
+            return new AMQPBackend(queue);
+        }
+
+        public QueuePublisher createPublisher(Queue queue) {
+            return new AMQPPublisher(queue);
+        }
+    }
+
+}
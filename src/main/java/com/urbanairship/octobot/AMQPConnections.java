@@ -0,0 +1,192 @@
+package com.urbanairship.octobot;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+
+
+// Shares AMQP connections between workers. Queues on the same broker (host,
+// port, vhost, and credentials) draw channels from one small pool of
+// connections, rather than each worker opening a connection of its own.
+// Pools are keyed on every setting they're opened with, so a queue whose
+// settings change on reload gets a pool to match. Once a reload has
+// stopped the queues which used a pool, retain() evicts it, closing its
+// connections as soon as no channel of it is left open.
+//
+// When a connection drops, each worker's consumer fails and asks for a new
+// channel. The first to arrive re-opens the connection; the rest reuse it
+// and re-register their consumers on fresh channels over it.
+
+public class AMQPConnections {
+
+    private static final Logger logger = Logger.getLogger("AMQP Connections");
+
+    private static final ConcurrentHashMap<List<Object>, AMQPConnections> pools =
+        new ConcurrentHashMap<List<Object>, AMQPConnections>();
+
+    // Evicted pools with channels still open, left to close once they aren't.
+    private static final List<AMQPConnections> retired = new ArrayList<AMQPConnections>();
+
+    private final String name;
+    private final ConnectionFactory factory = new ConnectionFactory();
+    private final Connection[] connections;
+    private final AtomicInteger next = new AtomicInteger();
+
+    // The channels handed out and not yet seen closed, and whether the pool
+    // has been closed.
+    private final List<Channel> channels = new ArrayList<Channel>();
+    private boolean closed = false;
+
+    private AMQPConnections(Queue queue) {
+        this.name = queue.host + ":" + queue.port + queue.vhost;
+        this.connections = new Connection[Math.max(queue.connections, 1)];
+
+        factory.setHost(queue.host);
+        factory.setPort(queue.port);
+        factory.setUsername(queue.username);
+        factory.setPassword(queue.password);
+        factory.setVirtualHost(queue.vhost);
+    }
+
+    // Opens a channel to the broker a queue lives on, blocking until one is
+    // available. Connection attempts back off exponentially while it's down.
+    // A pool closed by a reload in the meantime is passed over for a new one.
+    public static Channel createChannel(Queue queue) {
+        while (true) {
+            Channel channel = forQueue(queue).createChannel();
+            if (channel != null) return channel;
+        }
+    }
+
+    // Opens a channel to the broker a queue lives on in a single attempt,
+    // throwing if it's unavailable, for callers which mustn't block.
+    public static Channel tryChannel(Queue queue) throws IOException {
+        while (true) {
+            AMQPConnections pool = forQueue(queue);
+            Channel channel = pool.open(pool.nextSlot());
+            if (channel != null) return channel;
+        }
+    }
+
+    // Evicts the pools which none of the queues given draw from, closing
+    // each once its channels have all closed. Called after a reload, with
+    // the queues left running; pools evicted earlier are checked again.
+    public static synchronized void retain(Collection<Queue> queues) {
+        Set<List<Object>> used = new HashSet<List<Object>>();
+        for (Queue queue : queues) used.add(key(queue));
+
+        for (List<Object> key : pools.keySet()) {
+            if (used.contains(key)) continue;
+            AMQPConnections pool = pools.remove(key);
+            if (pool != null) retired.add(pool);
+        }
+
+        Iterator<AMQPConnections> waiting = retired.iterator();
+        while (waiting.hasNext()) {
+            if (waiting.next().closeIfUnused()) waiting.remove();
+        }
+    }
+
+    private static List<Object> key(Queue queue) {
+        return Arrays.<Object>asList(queue.host, queue.port, queue.vhost,
+            queue.username, queue.password, Math.max(queue.connections, 1));
+    }
+
+    // Returns the pool for a queue's broker and settings.
+    private static AMQPConnections forQueue(Queue queue) {
+        List<Object> key = key(queue);
+
+        AMQPConnections pool = pools.get(key);
+        if (pool == null) {
+            AMQPConnections created = new AMQPConnections(queue);
+            pool = pools.putIfAbsent(key, created);
+            if (pool == null) pool = created;
+        }
+
+        return pool;
+    }
+
+    // Returns null if the pool has been closed.
+    private Channel createChannel() {
+        int slot = nextSlot();
+        Backoff backoff = new Backoff(100, 30000);
+        int attempts = 0;
+
+        while (true) {
+            attempts++;
+            try {
+                return open(slot);
+            } catch (IOException e) {
+                long delay = backoff.nextDelay();
+                logger.error("Cannot connect to AMQP at " + name + " (attempt " +
+                    attempts + "). Retrying in " + delay + " ms.", e);
+                backoff.sleep(delay);
+            }
+        }
+    }
+
+    // Spreads channels over the pool's connections in turn.
+    private int nextSlot() {
+        return (next.getAndIncrement() & Integer.MAX_VALUE) % connections.length;
+    }
+
+    // Opens a channel over the connection in a slot, or returns null if the
+    // pool has been closed.
+    private synchronized Channel open(int slot) throws IOException {
+        if (closed) return null;
+        Channel channel = connection(slot).createChannel();
+        prune();
+        channels.add(channel);
+        return channel;
+    }
+
+    // Closes the pool's connections if none of its channels is still open.
+    // Returns whether it did.
+    private synchronized boolean closeIfUnused() {
+        prune();
+        if (!channels.isEmpty()) return false;
+
+        closed = true;
+        logger.info("Closing connections to AMQP at " + name + ", no longer in use.");
+        for (Connection connection : connections) {
+            if (connection == null || !connection.isOpen()) continue;
+            try { connection.close(); }
+            catch (Exception e) { logger.debug("Error closing AMQP connection.", e); }
+        }
+        return true;
+    }
+
+    private void prune() {
+        Iterator<Channel> open = channels.iterator();
+        while (open.hasNext()) {
+            if (!open.next().isOpen()) open.remove();
+        }
+    }
+
+    // Returns the connection in a slot, re-opening it if it has closed.
+    private synchronized Connection connection(int slot) throws IOException {
+        Connection connection = connections[slot];
+
+        if (connection == null || !connection.isOpen()) {
+            logger.info("Opening connection " + (slot + 1) + "/" +
+                connections.length + " to AMQP at " + name + "...");
+            connection = factory.newConnection();
+            connections[slot] = connection;
+        }
+
+        return connection;
+    }
+
+}
@@ -0,0 +1,161 @@
+package com.urbanairship.octobot;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+import com.rabbitmq.client.MessageProperties;
+
+import org.apache.log4j.Logger;
+
+
+// Publishes persistent messages to a RabbitMQ queue's exchange, on a
+// channel of a connection shared with other producers and workers (see
+// AMQPConnections). The channel is in confirm mode, and publishing never
+// waits on a confirm: messages are held until the broker confirms them,
+// up to publish_window at once, and those it rejects, or which were
+// unconfirmed when the channel was lost, are published again.
+
+public class AMQPPublisher implements QueuePublisher {
+
+    private static final Logger logger = Logger.getLogger("AMQP Publisher");
+
+    // How long (in ms) to wait on confirms before checking the channel.
+    private static final long CONFIRM_POLL = 100;
+
+    private final Queue queue;
+    private Channel channel = null;
+
+    // Messages published on the current channel and not yet confirmed, by
+    // sequence number, and those the broker rejected. Guarded by this.
+    private final TreeMap<Long, byte[]> unconfirmed = new TreeMap<Long, byte[]>();
+    private final List<byte[]> rejected = new ArrayList<byte[]>();
+
+    public AMQPPublisher(Queue queue) {
+        this.queue = queue;
+    }
+
+    // Opens a channel, declaring the queue as its workers do so that nothing
+    // published ahead of them is dropped, and publishes again any messages
+    // left unconfirmed on the last.
+    public synchronized void connect() {
+        Backoff backoff = new Backoff(100, 30000);
+
+        while (true) {
+            closeChannel();
+
+            try {
+                channel = AMQPConnections.createChannel(queue);
+                channel.exchangeDeclare(queue.queueName, "direct", true);
+                channel.queueDeclare(queue.queueName, true, false, false, null);
+                channel.queueBind(queue.queueName, queue.queueName, queue.queueName);
+                channel.confirmSelect();
+                channel.addConfirmListener(listener(channel));
+
+                List<byte[]> pending = new ArrayList<byte[]>(unconfirmed.values());
+                pending.addAll(rejected);
+                unconfirmed.clear();
+                rejected.clear();
+                for (byte[] message : pending) publish(message);
+
+                if (!pending.isEmpty())
+                    logger.info("Republished " + pending.size() + " unconfirmed messages.");
+                return;
+            } catch (Exception e) {
+                long delay = backoff.nextDelay();
+                logger.error("Cannot connect to AMQP. Retrying in " + delay + " ms.", e);
+                backoff.sleep(delay);
+            }
+        }
+    }
+
+    public synchronized void send(List<byte[]> messages) throws IOException {
+        republishRejected();
+
+        for (byte[] message : messages) {
+            while (unconfirmed.size() >= queue.publishWindow) awaitConfirms();
+            publish(message);
+        }
+    }
+
+    public synchronized void flush() throws IOException {
+        republishRejected();
+
+        while (!unconfirmed.isEmpty()) {
+            awaitConfirms();
+            republishRejected();
+        }
+    }
+
+    public synchronized void close() {
+        closeChannel();
+    }
+
+    private void publish(byte[] message) throws IOException {
+        unconfirmed.put(channel.getNextPublishSeqNo(), message);
+        channel.basicPublish(queue.queueName, queue.queueName,
+            MessageProperties.PERSISTENT_BASIC, message);
+    }
+
+    private void republishRejected() throws IOException {
+        if (rejected.isEmpty()) return;
+
+        List<byte[]> messages = new ArrayList<byte[]>(rejected);
+        rejected.clear();
+        logger.warn("Republishing " + messages.size() + " messages rejected by RabbitMQ.");
+        for (byte[] message : messages) publish(message);
+    }
+
+    // Waits a while for confirms to come in. Call holding the lock.
+    private void awaitConfirms() throws IOException {
+        if (channel == null || !channel.isOpen())
+            throw new IOException("AMQP channel closed with " + unconfirmed.size() +
+                " messages unconfirmed.");
+
+        try { wait(CONFIRM_POLL); }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for confirms.", e);
+        }
+    }
+
+    // Confirms arrive on the connection's thread. Those for a channel
+    // we've since replaced are ignored, its messages having been resent.
+    private ConfirmListener listener(final Channel confirming) {
+        return new ConfirmListener() {
+            public void handleAck(long deliveryTag, boolean multiple) {
+                synchronized (AMQPPublisher.this) {
+                    if (confirming != channel) return;
+                    if (multiple) unconfirmed.headMap(deliveryTag, true).clear();
+                    else unconfirmed.remove(deliveryTag);
+                    AMQPPublisher.this.notifyAll();
+                }
+            }
+
+            public void handleNack(long deliveryTag, boolean multiple) {
+                synchronized (AMQPPublisher.this) {
+                    if (confirming != channel) return;
+                    if (multiple) {
+                        rejected.addAll(unconfirmed.headMap(deliveryTag, true).values());
+                        unconfirmed.headMap(deliveryTag, true).clear();
+                    } else if (unconfirmed.containsKey(deliveryTag)) {
+                        rejected.add(unconfirmed.remove(deliveryTag));
+                    }
+                    AMQPPublisher.this.notifyAll();
+                }
+            }
+        };
+    }
+
+    private void closeChannel() {
+        if (channel != null && channel.isOpen()) {
+            try { channel.close(); }
+            catch (Exception e) { logger.debug("Error closing AMQP channel.", e); }
+        }
+        channel = null;
+    }
+
+}
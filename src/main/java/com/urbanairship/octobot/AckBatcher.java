@@ -0,0 +1,101 @@
+package com.urbanairship.octobot;
+
+import java.io.IOException;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import com.rabbitmq.client.Channel;
+
+
+// Coalesces acknowledgements for messages received on an AMQP channel.
+// Rather than one basicAck round trip per message, completed deliveries
+// are acknowledged together with basicAck(tag, multiple=true) once enough
+// have completed or the oldest completion has waited long enough.
+//
+// A multiple ack covers every delivery up to its tag, so only the run of
+// completed deliveries below the oldest one still in flight is acked that
+// way. Deliveries completed out of order beyond it are acked one by one if
+// the batch's time runs out. Should the connection drop before a flush,
+// everything not yet acked is redelivered by the broker.
+//
+// Not thread-safe: a batcher belongs to the thread which owns its channel.
+
+public class AckBatcher {
+
+    private final Channel channel;
+    private final int batchSize;
+    private final long maxDelay;
+
+    private final TreeSet<Long> inFlight = new TreeSet<Long>();
+    // Completed deliveries awaiting acks, with when each completed.
+    private final TreeMap<Long, Long> completed = new TreeMap<Long, Long>();
+    private long oldestCompletion = 0;
+
+    // Batches up to batchSize acks, holding none longer than maxDelay ms.
+    public AckBatcher(Channel channel, int batchSize, long maxDelay) {
+        this.channel = channel;
+        this.batchSize = Math.max(batchSize, 1);
+        this.maxDelay = maxDelay;
+    }
+
+    public Channel getChannel() {
+        return channel;
+    }
+
+    // Records a delivery as received and not yet completed.
+    public void received(long deliveryTag) {
+        inFlight.add(deliveryTag);
+    }
+
+    // Records a delivery as completed, acknowledging if a batch is due.
+    public void completed(long deliveryTag) throws IOException {
+        inFlight.remove(deliveryTag);
+        long now = System.currentTimeMillis();
+        if (completed.isEmpty()) oldestCompletion = now;
+        completed.put(deliveryTag, now);
+        flushIfDue();
+    }
+
+    // Flushes everything if the oldest completion is overdue, or otherwise
+    // what can be acked in order if the batch is full. Completions held
+    // back behind a delivery still in flight are acked once overdue.
+    public void flushIfDue() throws IOException {
+        if (completed.isEmpty()) return;
+
+        if (System.currentTimeMillis() - oldestCompletion >= maxDelay) {
+            flush(true);
+        } else if (completed.size() >= batchSize) {
+            flush(false);
+        }
+    }
+
+    // Acknowledges the contiguous run of completed deliveries with a single
+    // multiple ack. If force is set, any completed beyond it are acked too.
+    public void flush(boolean force) throws IOException {
+        if (completed.isEmpty()) return;
+
+        Long upTo = inFlight.isEmpty() ? completed.lastKey() :
+            completed.lowerKey(inFlight.first());
+
+        if (upTo != null) {
+            channel.basicAck(upTo, true);
+            completed.headMap(upTo, true).clear();
+        }
+
+        if (force) {
+            for (Long deliveryTag : completed.keySet())
+                channel.basicAck(deliveryTag, false);
+            completed.clear();
+        }
+
+        // Those left wait from the oldest of their own completions.
+        oldestCompletion = Long.MAX_VALUE;
+        for (Long completedAt : completed.values())
+            oldestCompletion = Math.min(oldestCompletion, completedAt);
+    }
+
+    // Returns the number of completed deliveries awaiting acknowledgement.
+    public int pending() {
+        return completed.size();
+    }
+
+}
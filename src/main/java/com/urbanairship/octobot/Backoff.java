@@ -0,0 +1,62 @@
+package com.urbanairship.octobot;
+
+import java.util.Random;
+
+
+// Exponential backoff with jitter for reconnect loops and task retries.
+// Each delay doubles the last, up to a ceiling, and is randomized over its
+// upper half so that workers which lost a connection together (or tasks
+// which failed together) don't all retry in lockstep.
+
+public class Backoff {
+
+    private static final Random random = new Random();
+
+    private final long initial;
+    private final long max;
+    private long current;
+
+    public Backoff(long initial, long max) {
+        this.initial = initial;
+        this.max = max;
+        this.current = initial;
+    }
+
+    // Returns the next delay in milliseconds.
+    public long nextDelay() {
+        long delay = current;
+        current = Math.min(current * 2, max);
+        return jitter(delay);
+    }
+
+    // Returns the delay in milliseconds before the given retry, counting the
+    // first as 0. Does not advance this backoff, so it may be shared.
+    public long delayFor(long retry) {
+        return jitter(ceilingFor(retry));
+    }
+
+    // Returns the upper bound of the delay before the given retry.
+    public long ceilingFor(long retry) {
+        long delay = initial;
+        for (long i = 0; i < retry && delay < max; i++) delay *= 2;
+        return Math.min(delay, max);
+    }
+
+    private long jitter(long delay) {
+        long half = delay / 2;
+        synchronized (random) {
+            return half + (long) (random.nextDouble() * (delay - half));
+        }
+    }
+
+    // Sleeps for the given delay.
+    public void sleep(long delay) {
+        try { Thread.sleep(delay); }
+        catch (InterruptedException ex) { }
+    }
+
+    public void reset() {
+        current = initial;
+    }
+
+}
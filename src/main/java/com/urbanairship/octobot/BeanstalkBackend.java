@@ -0,0 +1,105 @@
+package com.urbanairship.octobot;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+
+// Consumes from a Beanstalk tube through a BeanstalkQueue, which reserves
+// jobs ahead and deletes them in batches. Jobs which fail for good are
+// buried, and retries are put back on the tube as delayed jobs.
+
+public class BeanstalkBackend implements QueueBackend {
+
+    private static final Logger logger = Logger.getLogger("Beanstalk Backend");
+
+    // Priority and time to run (in seconds) of retry jobs.
+    private static final long RETRY_PRIORITY = 1024;
+    private static final int RETRY_TTR = 120;
+
+    private final Queue queue;
+    private BeanstalkQueue beanstalk = null;
+
+    // A bare connection of our own for polling depth, when not consuming.
+    private BeanstalkQueue probe = null;
+
+    public BeanstalkBackend(Queue queue) {
+        this.queue = queue;
+    }
+
+    public void connect() {
+        if (beanstalk == null) beanstalk = new BeanstalkQueue(queue);
+        else beanstalk.connect();
+    }
+
+    // Beanstalk waits in whole seconds, so waits at least one.
+    public List<Delivery> fetch(int max, long timeout) throws IOException {
+        int seconds = (int) Math.max((timeout + 999) / 1000, 1);
+        List<BeanstalkQueue.Job> jobs = beanstalk.fetch(max, seconds);
+        List<Delivery> deliveries = new ArrayList<Delivery>(jobs.size());
+        for (BeanstalkQueue.Job job : jobs)
+            deliveries.add(new Delivery(beanstalk, job.id, job.data));
+        return deliveries;
+    }
+
+    public void ack(Delivery delivery) {
+        beanstalk.completed((Long) delivery.handle);
+    }
+
+    public void nack(Delivery delivery) {
+        beanstalk.failed((Long) delivery.handle);
+    }
+
+    public boolean reschedule(Delivery delivery, Envelope retry, long delay) throws IOException {
+        int seconds = (int) Math.max((delay + 999) / 1000, 1);
+        beanstalk.put(RETRY_PRIORITY, seconds, RETRY_TTR, retry.body());
+        beanstalk.completed((Long) delivery.handle);
+        return true;
+    }
+
+    // Beanstalk has no reply queues.
+    public boolean reply(Delivery delivery, String replyTo, String correlationId, byte[] result) {
+        return false;
+    }
+
+    public void flush() throws IOException {
+        beanstalk.flush();
+    }
+
+    public long depth() throws IOException {
+        if (beanstalk != null) return beanstalk.depth();
+        if (probe == null) probe = BeanstalkQueue.probe(queue);
+        return probe.depth();
+    }
+
+    // Beanstalk only hands out jobs as they're reserved.
+    public void cancel() { }
+
+    public void close() {
+        if (probe != null) probe.close();
+        probe = null;
+
+        if (beanstalk == null) return;
+        try { beanstalk.flush(); }
+        catch (IOException e) { logger.error("Error deleting handled jobs.", e); }
+        beanstalk.close();
+    }
+
+
+    public static class Provider implements QueueBackendProvider {
+        public boolean supports(Queue queue) {
+            return queue.queueType.equals("beanstalk");
+        }
+
+        public QueueBackend create(Queue queue) {
+            return new BeanstalkBackend(queue);
+        }
+
+        public QueuePublisher createPublisher(Queue queue) {
+            return new BeanstalkPublisher(queue);
+        }
+    }
+
+}
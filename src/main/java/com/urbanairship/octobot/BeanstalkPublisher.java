@@ -0,0 +1,38 @@
+package com.urbanairship.octobot;
+
+import java.io.IOException;
+import java.util.List;
+
+
+// Puts messages on a Beanstalk tube as jobs, pipelining each batch's puts
+// in a single round trip. Beanstalk has taken a batch once send() returns.
+
+public class BeanstalkPublisher implements QueuePublisher {
+
+    private static final long PRIORITY = 1024;
+    private static final int TTR = 120;
+
+    private final Queue queue;
+    private BeanstalkQueue beanstalk = null;
+
+    public BeanstalkPublisher(Queue queue) {
+        this.queue = queue;
+    }
+
+    public void connect() {
+        if (beanstalk == null) beanstalk = new BeanstalkQueue(queue);
+        else beanstalk.connect();
+    }
+
+    public void send(List<byte[]> messages) throws IOException {
+        beanstalk.put(PRIORITY, 0, TTR, messages);
+    }
+
+    // Each batch is taken as it's sent.
+    public void flush() { }
+
+    public void close() {
+        if (beanstalk != null) beanstalk.close();
+    }
+
+}
@@ -0,0 +1,397 @@
+package com.urbanairship.octobot;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.apache.log4j.Logger;
+
+
+// Consumes jobs from a Beanstalk tube over a connection of our own, speaking
+// the protocol directly so that commands can be pipelined. Each fetch waits
+// for one job, then reserves up to fetch_batch more ahead in a single round
+// trip. Deletes, and burials of jobs which failed for good, are collected
+// and sent together in one round trip per flush.
+//
+// Jobs held longer than their time to run would be released to another
+// worker and run twice, so a keeper thread touches any job of ours nearing
+// the end of its TTR. Touches go over the connection which reserved the
+// jobs, so while the receiver is fetching, the keeper waits its turn: each
+// fetch touches any jobs due before it blocks, and beanstalkd cuts a
+// blocking reserve short (DEADLINE_SOON) once a job of ours is within a
+// second of its TTR. Reservations end with the connection, so a job held
+// by a worker which goes away is simply released to be reserved again.
+//
+// Fetching and flushing belong to a single thread. Completions may be
+// reported from any thread.
+
+public class BeanstalkQueue {
+
+    private static final Logger logger = Logger.getLogger("Beanstalk Queue");
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    // How often (in ms) the keeper checks for jobs in need of a touch.
+    private static final long KEEPER_INTERVAL = 250;
+
+    private final Queue queue;
+
+    private Socket socket = null;
+    private InputStream in = null;
+    private OutputStream out = null;
+    private volatile boolean closed = false;
+
+    // Jobs reserved and not yet deleted or buried, by ID. Guarded by this.
+    private final HashMap<Long, Reservation> held = new HashMap<Long, Reservation>();
+
+    private final ConcurrentLinkedQueue<Long> completed = new ConcurrentLinkedQueue<Long>();
+    private final ConcurrentLinkedQueue<Long> failed = new ConcurrentLinkedQueue<Long>();
+
+    // A job as reserved from the tube.
+    public static class Job {
+        public final long id;
+        public final byte[] data;
+
+        Job(long id, byte[] data) {
+            this.id = id;
+            this.data = data;
+        }
+    }
+
+    // A job we hold, its priority, time to run, and when that runs out.
+    private static class Reservation {
+        long priority = 1024;
+        long ttr = 120000;
+        long deadline;
+    }
+
+    public BeanstalkQueue(Queue queue) {
+        this(queue, true);
+    }
+
+    private BeanstalkQueue(Queue queue, boolean keep) {
+        this.queue = queue;
+        if (!keep) return;
+        connect();
+
+        Runnable keeper = new Runnable() {
+            public void run() {
+                while (!closed) {
+                    try { touchDue(); }
+                    catch (IOException e) { logger.warn("Unable to touch Beanstalk jobs.", e); }
+
+                    try { Thread.sleep(KEEPER_INTERVAL); }
+                    catch (InterruptedException e) { return; }
+                }
+            }
+        };
+
+        Thread thread = new Thread(keeper, queue.queueName + " Beanstalk Keeper");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Opens a bare connection to a queue's tube in a single attempt, with no
+    // keeper, for asking after the tube's depth.
+    public static BeanstalkQueue probe(Queue queue) throws IOException {
+        BeanstalkQueue probe = new BeanstalkQueue(queue, false);
+        try {
+            probe.open();
+        } catch (IOException e) {
+            probe.close();
+            throw e;
+        }
+        return probe;
+    }
+
+    // Connects to Beanstalk and watches the queue's tube, backing off
+    // exponentially while it's unavailable. Any jobs we held are released
+    // by the server as the old connection goes.
+    public synchronized void connect() {
+        Backoff backoff = new Backoff(100, 30000);
+        disconnect();
+
+        while (true) {
+            try {
+                open();
+                logger.info("Connected to Beanstalk tube " + queue.queueName + ".");
+                return;
+            } catch (IOException e) {
+                disconnect();
+                long delay = backoff.nextDelay();
+                logger.error("Unable to connect to Beanstalk. Retrying in " + delay + " ms.", e);
+                backoff.sleep(delay);
+            }
+        }
+    }
+
+    private void open() throws IOException {
+        socket = new Socket(queue.host, queue.port);
+        socket.setTcpNoDelay(true);
+        in = new BufferedInputStream(socket.getInputStream());
+        out = new BufferedOutputStream(socket.getOutputStream());
+
+        command("use " + queue.queueName, "USING");
+        command("watch " + queue.queueName, "WATCHING");
+        if (!queue.queueName.equals("default"))
+            command("ignore default", "WATCHING");
+    }
+
+    // Waits up to timeout seconds for a job, then reserves up to max - 1
+    // more which are ready, without waiting, in a single round trip. Jobs
+    // we hold which are due a touch are touched first, as the keeper can't
+    // while we wait.
+    public synchronized List<Job> fetch(int max, int timeout) throws IOException {
+        List<Job> jobs = new ArrayList<Job>(max);
+        touchDue();
+
+        write("reserve-with-timeout " + timeout);
+        out.flush();
+        Job first = readReserved();
+        if (first == null) return jobs;
+        jobs.add(first);
+
+        if (max > 1) {
+            for (int i = 1; i < max; i++) write("reserve-with-timeout 0");
+            out.flush();
+
+            for (int i = 1; i < max; i++) {
+                Job job = readReserved();
+                if (job != null) jobs.add(job);
+            }
+        }
+
+        // Learn each job's priority (to bury it with) and time to run.
+        for (Job job : jobs) write("stats-job " + job.id);
+        out.flush();
+
+        long now = System.currentTimeMillis();
+        for (Job job : jobs) {
+            Reservation reservation = new Reservation();
+            HashMap<String, String> stats = readStats();
+            if (stats != null) {
+                reservation.priority = Long.parseLong(stats.get("pri"));
+                reservation.ttr = Long.parseLong(stats.get("ttr")) * 1000;
+            }
+            reservation.deadline = now + reservation.ttr;
+            held.put(job.id, reservation);
+        }
+
+        return jobs;
+    }
+
+    // Records a job as handled, to be deleted. Safe to call from any thread.
+    public void completed(long id) {
+        completed.add(id);
+    }
+
+    // Records a job as failed for good, to be buried for inspection rather
+    // than deleted. Safe to call from any thread.
+    public void failed(long id) {
+        failed.add(id);
+    }
+
+    // Deletes handled jobs and buries failed ones in a single round trip.
+    // Jobs which are no longer ours (NOT_FOUND) are skipped. If sending
+    // fails, they remain queued for the next flush.
+    public synchronized void flush() throws IOException {
+        if (completed.isEmpty() && failed.isEmpty()) return;
+
+        List<Long> deletes = new ArrayList<Long>();
+        List<Long> burials = new ArrayList<Long>();
+        Long id = null;
+        while ((id = completed.poll()) != null) deletes.add(id);
+        while ((id = failed.poll()) != null) burials.add(id);
+
+        try {
+            for (long job : deletes) write("delete " + job);
+            for (long job : burials) {
+                Reservation reservation = held.get(job);
+                write("bury " + job + " " + (reservation == null ? 1024 : reservation.priority));
+            }
+            out.flush();
+        } catch (IOException e) {
+            completed.addAll(deletes);
+            failed.addAll(burials);
+            throw e;
+        }
+
+        for (long job : deletes) {
+            held.remove(job);
+            expect(readLine(), "DELETED", "delete " + job);
+        }
+        for (long job : burials) {
+            held.remove(job);
+            expect(readLine(), "BURIED", "bury " + job);
+            logger.warn("Buried failed job " + job + " on " + queue.queueName + ".");
+        }
+    }
+
+    // Touches any job we hold which has used more than half its time to run.
+    public synchronized void touchDue() throws IOException {
+        if (closed || held.isEmpty()) return;
+
+        long now = System.currentTimeMillis();
+        List<Long> due = new ArrayList<Long>();
+        for (Map.Entry<Long, Reservation> entry : held.entrySet())
+            if (entry.getValue().deadline - now < entry.getValue().ttr / 2)
+                due.add(entry.getKey());
+
+        if (due.isEmpty()) return;
+
+        for (long job : due) write("touch " + job);
+        out.flush();
+
+        for (long job : due) {
+            String response = readLine();
+            if (response.equals("TOUCHED")) held.get(job).deadline = now + held.get(job).ttr;
+            else held.remove(job);
+        }
+    }
+
+    // Puts a job on the tube, returning its ID.
+    public long put(long priority, int delay, int ttr, byte[] data) throws IOException {
+        return put(priority, delay, ttr, Collections.singletonList(data))[0];
+    }
+
+    // Puts several jobs on the tube in a single round trip, returning their IDs.
+    public synchronized long[] put(long priority, int delay, int ttr, List<byte[]> jobs)
+            throws IOException {
+        for (byte[] data : jobs) {
+            write("put " + priority + " " + delay + " " + ttr + " " + data.length);
+            out.write(data);
+            out.write('\r');
+            out.write('\n');
+        }
+        out.flush();
+
+        long[] ids = new long[jobs.size()];
+        for (int i = 0; i < ids.length; i++) {
+            String[] response = readLine().split(" ");
+            if (!response[0].equals("INSERTED"))
+                throw new IOException("Unable to put job: " + response[0]);
+            ids[i] = Long.parseLong(response[1]);
+        }
+        return ids;
+    }
+
+    // Returns the number of jobs ready on the tube.
+    public synchronized long depth() throws IOException {
+        write("stats-tube " + queue.queueName);
+        out.flush();
+
+        HashMap<String, String> stats = readStats();
+        if (stats == null) return 0;
+        return Long.parseLong(stats.get("current-jobs-ready"));
+    }
+
+    // Returns the number of jobs we hold.
+    public synchronized int held() {
+        return held.size();
+    }
+
+    // Closes the connection, releasing any jobs we still hold, and stops
+    // the keeper. Call flush() first.
+    public synchronized void close() {
+        closed = true;
+        disconnect();
+    }
+
+    private void disconnect() {
+        held.clear();
+        if (socket == null) return;
+
+        try { socket.close(); }
+        catch (IOException e) { logger.debug("Error closing Beanstalk connection.", e); }
+        socket = null;
+    }
+
+
+    private void command(String command, String expected) throws IOException {
+        write(command);
+        out.flush();
+        expect(readLine(), expected, command);
+    }
+
+    private void expect(String response, String expected, String command) throws IOException {
+        if (response.startsWith(expected)) return;
+        if (response.equals("NOT_FOUND")) {
+            logger.debug("Job no longer held on " + command + ".");
+            return;
+        }
+        throw new IOException("Unexpected response from Beanstalk to " + command + ": " + response);
+    }
+
+    // Reads the response to a reserve: a job, or null if none was ready.
+    private Job readReserved() throws IOException {
+        String[] response = readLine().split(" ");
+        if (response[0].equals("TIMED_OUT") || response[0].equals("DEADLINE_SOON"))
+            return null;
+        if (!response[0].equals("RESERVED"))
+            throw new IOException("Unexpected response from Beanstalk to reserve: " + response[0]);
+
+        return new Job(Long.parseLong(response[1]), readBody(Integer.parseInt(response[2])));
+    }
+
+    // Reads the YAML map returned by a stats command, or null if the job
+    // or tube asked after is gone (NOT_FOUND).
+    private HashMap<String, String> readStats() throws IOException {
+        String[] response = readLine().split(" ");
+        if (!response[0].equals("OK")) return null;
+
+        HashMap<String, String> stats = new HashMap<String, String>();
+        String yaml = new String(readBody(Integer.parseInt(response[1])), ASCII);
+        for (String line : yaml.split("\n")) {
+            int colon = line.indexOf(':');
+            if (colon > 0)
+                stats.put(line.substring(0, colon).trim(), line.substring(colon + 1).trim());
+        }
+        return stats;
+    }
+
+    private void write(String command) throws IOException {
+        if (out == null) throw new IOException("Not connected to Beanstalk.");
+        out.write(command.getBytes(ASCII));
+        out.write('\r');
+        out.write('\n');
+    }
+
+    private String readLine() throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(32);
+        int last = -1;
+        while (true) {
+            int b = in.read();
+            if (b < 0) throw new IOException("Beanstalk connection closed.");
+            if (last == '\r' && b == '\n') break;
+            if (last >= 0) line.write(last);
+            last = b;
+        }
+        return new String(line.toByteArray(), ASCII);
+    }
+
+    private byte[] readBody(int length) throws IOException {
+        byte[] body = new byte[length];
+        int read = 0;
+        while (read < length) {
+            int n = in.read(body, read, length - read);
+            if (n < 0) throw new IOException("Beanstalk connection closed.");
+            read += n;
+        }
+
+        // Skip the trailing \r\n.
+        if (in.read() < 0 || in.read() < 0)
+            throw new IOException("Beanstalk connection closed.");
+        return body;
+    }
+
+}
@@ -0,0 +1,59 @@
+package com.urbanairship.octobot;
+
+import java.io.File;
+
+import org.apache.log4j.Logger;
+
+
+// Watches the config file for changes, checking its modification time and
+// size every interval seconds, and on a change reloads the settings and
+// brings the running queues in line with them (see Octobot.reconfigure).
+// A file which can't be parsed, e.g. one caught half-written, is logged
+// and left until it changes again, with the current settings kept.
+
+public class ConfigWatcher implements Runnable {
+
+    private static final Logger logger = Logger.getLogger("Config Watcher");
+
+    private final File file;
+    private final int interval;
+
+    private long lastModified;
+    private long length;
+
+    public ConfigWatcher(String path, int interval) {
+        this.file = new File(path);
+        this.interval = interval;
+        this.lastModified = file.lastModified();
+        this.length = file.length();
+    }
+
+    public void run() {
+        logger.info("Watching " + file + " for changes every " + interval + " seconds.");
+
+        while (Lifecycle.isRunning()) {
+            try { Thread.sleep(interval * 1000L); }
+            catch (InterruptedException e) { return; }
+
+            if (changed() && Settings.reload()) {
+                try {
+                    Octobot.reconfigure();
+                } catch (Exception e) {
+                    logger.error("Error applying the reloaded settings.", e);
+                }
+            }
+        }
+    }
+
+    // Whether the file has changed since the last check.
+    boolean changed() {
+        long modified = file.lastModified();
+        long size = file.length();
+        if (modified == lastModified && size == length) return false;
+
+        lastModified = modified;
+        length = size;
+        return true;
+    }
+
+}
@@ -0,0 +1,103 @@
+package com.urbanairship.octobot;
+
+
+// A bounded set of 64-bit keys, each remembered for a fixed time. Keys and
+// their expiry times are held in flat long arrays, so however many are
+// held, the cache is a handful of objects for the collector to trace.
+//
+// The arrays are split into stripes, each locked on its own, and each an
+// open-addressed table probed over a short window. A key is stored in its
+// window's first free or expired slot; if there is none, it replaces the
+// key due to expire soonest, so that under pressure the cache forgets the
+// oldest keys first rather than refusing new ones.
+
+public class DedupCache {
+
+    private static final int STRIPES = 16;
+    private static final int PROBES = 8;
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final long ttl;
+
+    // Holds about capacity keys, each for ttl ms.
+    public DedupCache(int capacity, long ttl) {
+        this.ttl = ttl;
+
+        // Keep each stripe at most half full at capacity.
+        int size = PROBES;
+        while (size < capacity * 2 / STRIPES) size *= 2;
+        for (int i = 0; i < STRIPES; i++) stripes[i] = new Stripe(size);
+    }
+
+    // Whether the key was added within the last ttl ms.
+    public boolean contains(long key) {
+        key = mix(key);
+        return stripes[(int) (key >>> 60)].contains(key, System.currentTimeMillis());
+    }
+
+    // Remembers a key for the next ttl ms.
+    public void add(long key) {
+        key = mix(key);
+        long now = System.currentTimeMillis();
+        stripes[(int) (key >>> 60)].add(key, now, now + ttl);
+    }
+
+
+    private static class Stripe {
+        private final long[] keys;
+        private final long[] expiries;
+        private final int mask;
+
+        Stripe(int size) {
+            keys = new long[size];
+            expiries = new long[size];
+            mask = size - 1;
+        }
+
+        synchronized boolean contains(long key, long now) {
+            int start = (int) key & mask;
+            for (int i = 0; i < PROBES; i++) {
+                int slot = (start + i) & mask;
+                if (keys[slot] == 0) return false;
+                if (keys[slot] == key) return expiries[slot] > now;
+            }
+            return false;
+        }
+
+        synchronized void add(long key, long now, long expiry) {
+            int start = (int) key & mask;
+            int free = -1;
+            int soonest = start;
+
+            for (int i = 0; i < PROBES; i++) {
+                int slot = (start + i) & mask;
+                if (keys[slot] == key) {
+                    expiries[slot] = expiry;
+                    return;
+                }
+                if (keys[slot] == 0) {
+                    if (free < 0) free = slot;
+                    break;
+                }
+                if (free < 0 && expiries[slot] <= now) free = slot;
+                if (expiries[slot] < expiries[soonest]) soonest = slot;
+            }
+
+            int slot = (free >= 0 ? free : soonest);
+            keys[slot] = key;
+            expiries[slot] = expiry;
+        }
+    }
+
+    // Spreads a key's bits (the MurmurHash3 finalizer), keeping 0 free to
+    // mark an empty slot.
+    private static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb93fe53a87ebL;
+        key ^= key >>> 33;
+        return key == 0 ? 1 : key;
+    }
+
+}
@@ -0,0 +1,153 @@
+package com.urbanairship.octobot;
+
+import java.nio.charset.Charset;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisException;
+
+
+// Remembers the messages on a queue whose tasks have completed, so that a
+// redelivery (after a lost AMQP connection, or a Beanstalk job outliving its
+// time to run) can be acked without running the task again. Messages are
+// keyed on a 64-bit hash of their task and dedup_field, or of the whole
+// message if it has no such field; a collision between distinct messages
+// is vanishingly unlikely at any realistic volume.
+//
+// Keys are held in a DedupCache shared by the queue's workers, and if
+// dedup_redis is set, in Redis too (as expiring keys), so that a message
+// completed on one Octobot instance is known to the others. Redis errors
+// are logged, and treated as if the key weren't there.
+//
+// Only completed messages are remembered: two copies of a message in flight
+// at once both run.
+
+public class Deduplicator {
+
+    private static final Logger logger = Logger.getLogger("Deduplicator");
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final ConcurrentHashMap<String, Deduplicator> queues =
+        new ConcurrentHashMap<String, Deduplicator>();
+
+    private final Queue queue;
+    private final DedupCache cache;
+
+    // The shared tier, if configured. Guarded by this.
+    private final String redisHost;
+    private final int redisPort;
+    private Jedis jedis = null;
+
+    private Deduplicator(Queue queue) {
+        this.queue = queue;
+        this.cache = new DedupCache(queue.dedupCapacity, queue.dedupTtl * 1000L);
+
+        if (queue.dedupRedis != null) {
+            String[] address = queue.dedupRedis.split(":");
+            this.redisHost = address[0];
+            this.redisPort = (address.length > 1 ? Integer.parseInt(address[1]) : 6379);
+        } else {
+            this.redisHost = null;
+            this.redisPort = 0;
+        }
+    }
+
+    // Returns the deduplicator shared by a queue's workers. One made for
+    // other dedup settings, before the config was reloaded, is replaced.
+    public static Deduplicator forQueue(Queue queue) {
+        while (true) {
+            Deduplicator dedup = queues.get(queue.queueName);
+            if (dedup != null && dedup.configuredFor(queue)) return dedup;
+
+            Deduplicator fresh = new Deduplicator(queue);
+            if (dedup == null) {
+                if (queues.putIfAbsent(queue.queueName, fresh) == null) return fresh;
+            } else if (queues.replace(queue.queueName, dedup, fresh)) {
+                logger.info("Dedup settings for " + queue.queueName + " changed; " +
+                    "starting a new dedup cache.");
+                return fresh;
+            }
+        }
+    }
+
+    // Whether this was made for the dedup settings a queue has.
+    private boolean configuredFor(Queue other) {
+        return same(queue.dedupField, other.dedupField) &&
+            same(queue.dedupTtl, other.dedupTtl) &&
+            same(queue.dedupCapacity, other.dedupCapacity) &&
+            same(queue.dedupRedis, other.dedupRedis);
+    }
+
+    private static boolean same(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    // Returns the key identifying a message.
+    public long keyOf(Envelope envelope) {
+        String id = envelope.field(queue.dedupField);
+        long hash = hash(FNV_OFFSET, envelope.task.getBytes(UTF8));
+        hash = hash(hash ^ 0xff, id != null ? id.getBytes(UTF8) : envelope.body());
+        return hash;
+    }
+
+    // Whether a message with this key has already completed.
+    public boolean completed(long key) {
+        if (cache.contains(key)) return true;
+        if (redisHost == null) return false;
+
+        Boolean exists = null;
+        synchronized (this) {
+            try { exists = redis().exists(redisKey(key)); }
+            catch (JedisException e) { disconnect(e); }
+        }
+
+        if (exists == null || !exists) return false;
+        cache.add(key);
+        return true;
+    }
+
+    // Records a message with this key as completed.
+    public void complete(long key) {
+        cache.add(key);
+        if (redisHost == null) return;
+
+        synchronized (this) {
+            try { redis().setex(redisKey(key), queue.dedupTtl, "1"); }
+            catch (JedisException e) { disconnect(e); }
+        }
+    }
+
+    private String redisKey(long key) {
+        return "octobot:dedup:" + queue.queueName + ":" + Long.toHexString(key);
+    }
+
+    private Jedis redis() {
+        if (jedis == null) {
+            jedis = new Jedis(redisHost, redisPort);
+            jedis.connect();
+        }
+        return jedis;
+    }
+
+    private void disconnect(JedisException e) {
+        logger.warn("Error reaching the dedup cache in Redis.", e);
+        try { if (jedis != null) jedis.disconnect(); }
+        catch (JedisException ignored) { }
+        jedis = null;
+    }
+
+
+    // 64-bit FNV-1a.
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private static long hash(long hash, byte[] bytes) {
+        for (byte b : bytes) {
+            hash ^= (b & 0xff);
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+
+}
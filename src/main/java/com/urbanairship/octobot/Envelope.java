@@ -0,0 +1,320 @@
+package com.urbanairship.octobot;
+
+import java.nio.charset.Charset;
+
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+
+
+// A message as received from a queue. The routing fields Octobot needs
+// ("task", "retries" and "retried") are read straight from the raw bytes
+// in a single streaming pass, skipping over the rest of the payload
+// without building anything. The full JSONObject is only materialized if
+// a task asks for it.
+
+public class Envelope {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final byte[] TASK = "task".getBytes(UTF8);
+    private static final byte[] RETRIES = "retries".getBytes(UTF8);
+    private static final byte[] RETRIED = "retried".getBytes(UTF8);
+
+    public final String task;
+    public final long retries;
+
+    // The number of times this message has already been retried.
+    public final long retried;
+
+    private byte[] body;
+    private JSONObject message;
+
+    private Envelope(String task, long retries, long retried, byte[] body, JSONObject message) {
+        this.task = task;
+        this.retries = retries;
+        this.retried = retried;
+        this.body = body;
+        this.message = message;
+    }
+
+    // Wraps a message which has already been parsed.
+    public static Envelope of(String task, JSONObject message) {
+        long retries = 0;
+        if (message != null && message.get("retries") instanceof Long)
+            retries = (Long) message.get("retries");
+
+        long retried = 0;
+        if (message != null && message.get("retried") instanceof Long)
+            retried = (Long) message.get("retried");
+
+        return new Envelope(task, retries, retried, null, message);
+    }
+
+    // Builds a message for a task, to be sent to a queue, with the task's
+    // name and retries written ahead of the payload's own fields (which
+    // should include neither). The payload is serialized once, not copied.
+    public static Envelope create(String task, long retries, JSONObject payload) {
+        StringBuilder json = new StringBuilder(64);
+        json.append("{\"task\":\"").append(JSONValue.escape(task)).append('"');
+        if (retries > 0) json.append(",\"retries\":").append(retries);
+
+        String fields = (payload == null ? "{}" : payload.toJSONString());
+        if (fields.length() > 2) json.append(',').append(fields, 1, fields.length());
+        else json.append('}');
+
+        return new Envelope(task, retries, 0, json.toString().getBytes(UTF8), null);
+    }
+
+    // Returns a copy of this message which records that it has been retried
+    // the given number of times, to be sent back to the queue.
+    @SuppressWarnings("unchecked")
+    public Envelope retried(long count) {
+        JSONObject copy = new JSONObject();
+        copy.putAll(message());
+        copy.put("retried", count);
+        return new Envelope(task, retries, count, null, copy);
+    }
+
+    // Returns the message as raw bytes, as received from the queue.
+    public byte[] body() {
+        if (body == null)
+            body = (message == null ? "null" : message.toJSONString()).getBytes(UTF8);
+        return body;
+    }
+
+    // Returns the message as a JSONObject, parsing it on first access.
+    public JSONObject message() {
+        if (message == null)
+            message = (JSONObject) JSONValue.parse(toString());
+        return message;
+    }
+
+    // Returns a top-level field of the message: a string's value, or the
+    // text of any other value. Returns null if the message has no such field.
+    public String field(String name) {
+        if (body == null) {
+            Object value = (message == null ? null : message.get(name));
+            return value == null ? null : value.toString();
+        }
+
+        byte[] key = name.getBytes(UTF8);
+        Scanner scanner = new Scanner(body);
+        scanner.expect('{');
+        if (scanner.consume('}')) return null;
+
+        do {
+            int keyEnd = scanner.skipString();
+            int keyStart = scanner.start;
+            scanner.expect(':');
+
+            if (scanner.matches(keyStart, keyEnd, key)) return scanner.readValue();
+            scanner.skipValue();
+        } while (scanner.consume(','));
+
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return new String(body(), UTF8);
+    }
+
+
+    // Reads the envelope of a message. Throws an IllegalArgumentException if
+    // the message isn't a JSON object naming a task, or if "retries" or
+    // "retried" isn't a whole number.
+    public static Envelope parse(byte[] body) {
+        Scanner scanner = new Scanner(body);
+        String task = null;
+        long retries = 0;
+        long retried = 0;
+
+        scanner.expect('{');
+        if (!scanner.consume('}')) {
+            do {
+                int keyEnd = scanner.skipString();
+                int keyStart = scanner.start;
+                scanner.expect(':');
+
+                if (scanner.matches(keyStart, keyEnd, TASK)) {
+                    task = scanner.readString();
+                } else if (scanner.matches(keyStart, keyEnd, RETRIES)) {
+                    retries = scanner.readLong();
+                } else if (scanner.matches(keyStart, keyEnd, RETRIED)) {
+                    retried = scanner.readLong();
+                } else {
+                    scanner.skipValue();
+                }
+            } while (scanner.consume(','));
+            scanner.expect('}');
+        }
+
+        if (task == null)
+            throw new IllegalArgumentException("Message does not name a task.");
+
+        return new Envelope(task, retries, retried, body, null);
+    }
+
+
+    // A cursor over the raw bytes of a message. Multi-byte UTF-8 sequences
+    // never contain ASCII bytes, so structural characters can be matched
+    // byte by byte without decoding.
+    private static class Scanner {
+        private final byte[] bytes;
+        private int pos = 0;
+
+        // The index of the first character of the last string skipped.
+        private int start = 0;
+
+        Scanner(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        private byte peek() {
+            skipWhitespace();
+            if (pos >= bytes.length)
+                throw new IllegalArgumentException("Unexpected end of message.");
+            return bytes[pos];
+        }
+
+        private void skipWhitespace() {
+            while (pos < bytes.length) {
+                byte b = bytes[pos];
+                if (b != ' ' && b != '\n' && b != '\r' && b != '\t') break;
+                pos++;
+            }
+        }
+
+        void expect(char c) {
+            if (peek() != c)
+                throw new IllegalArgumentException("Expected '" + c + "' at " + pos);
+            pos++;
+        }
+
+        boolean consume(char c) {
+            if (peek() != c) return false;
+            pos++;
+            return true;
+        }
+
+        // Compares the bytes between start and end to a key.
+        boolean matches(int start, int end, byte[] key) {
+            if (end - start != key.length) return false;
+            for (int i = 0; i < key.length; i++)
+                if (bytes[start + i] != key[i]) return false;
+            return true;
+        }
+
+        // Skips a string, returning the index of its closing quote.
+        int skipString() {
+            expect('"');
+            start = pos;
+            while (pos < bytes.length) {
+                byte b = bytes[pos++];
+                if (b == '\\') pos++;
+                else if (b == '"') return pos - 1;
+            }
+            throw new IllegalArgumentException("Unterminated string.");
+        }
+
+        String readString() {
+            int end = skipString();
+
+            for (int i = start; i < end; i++)
+                if (bytes[i] == '\\') return unescape(start, end);
+
+            return new String(bytes, start, end - start, UTF8);
+        }
+
+        private String unescape(int start, int end) {
+            StringBuilder result = new StringBuilder();
+            int i = start;
+            while (i < end) {
+                int run = i;
+                while (i < end && bytes[i] != '\\') i++;
+                result.append(new String(bytes, run, i - run, UTF8));
+                if (i >= end) break;
+
+                byte escaped = bytes[i + 1];
+                i += 2;
+                switch (escaped) {
+                    case 'b': result.append('\b'); break;
+                    case 'f': result.append('\f'); break;
+                    case 'n': result.append('\n'); break;
+                    case 'r': result.append('\r'); break;
+                    case 't': result.append('\t'); break;
+                    case 'u':
+                        result.append(unicode(i, end));
+                        i += 4;
+                        break;
+                    default: result.append((char) escaped);
+                }
+            }
+            return result.toString();
+        }
+
+        // Reads the four hex digits of a unicode escape starting at i.
+        private char unicode(int i, int end) {
+            if (i + 4 > end)
+                throw new IllegalArgumentException("Truncated \\u escape at " + i);
+
+            int code = 0;
+            for (int j = i; j < i + 4; j++) {
+                int digit = Character.digit(bytes[j], 16);
+                if (digit < 0)
+                    throw new IllegalArgumentException("Invalid \\u escape at " + i);
+                code = code * 16 + digit;
+            }
+            return (char) code;
+        }
+
+        long readLong() {
+            skipWhitespace();
+            boolean negative = consume('-');
+            int digits = pos;
+            long result = 0;
+
+            while (pos < bytes.length && bytes[pos] >= '0' && bytes[pos] <= '9')
+                result = result * 10 + (bytes[pos++] - '0');
+
+            if (pos == digits || (pos < bytes.length &&
+                    (bytes[pos] == '.' || bytes[pos] == 'e' || bytes[pos] == 'E')))
+                throw new IllegalArgumentException("Expected a whole number at " + digits);
+
+            return negative ? -result : result;
+        }
+
+        // Reads a string's value, or the text of a value of any other type.
+        String readValue() {
+            if (peek() == '"') return readString();
+            int start = pos;
+            skipValue();
+            return new String(bytes, start, pos - start, UTF8);
+        }
+
+        // Skips over a value of any type, including nested objects and arrays.
+        void skipValue() {
+            byte b = peek();
+            if (b == '"') {
+                skipString();
+            } else if (b == '{' || b == '[') {
+                int depth = 0;
+                do {
+                    b = peek();
+                    if (b == '"') { skipString(); continue; }
+                    if (b == '{' || b == '[') depth++;
+                    else if (b == '}' || b == ']') depth--;
+                    pos++;
+                } while (depth > 0);
+            } else {
+                // Numbers, true, false and null run up to the next delimiter.
+                int start = pos;
+                while (pos < bytes.length && bytes[pos] != ',' && bytes[pos] != '}'
+                        && bytes[pos] != ']' && bytes[pos] > ' ') pos++;
+                if (pos == start)
+                    throw new IllegalArgumentException("Expected a value at " + pos);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,154 @@
+package com.urbanairship.octobot;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Date;
+import java.util.LinkedHashMap;
+
+
+// Collects task failures between error e-mails, grouped by fingerprint:
+// the task, the root cause's type, and the top frames of its stack trace.
+// A storm of the same error then makes for a single entry with a count,
+// rather than an e-mail apiece. Each group keeps the first failure seen
+// as its example. Past MAX_GROUPS, further new groups are only counted.
+//
+// Used by the mail thread alone.
+
+public class ErrorDigest {
+
+    private static final int MAX_GROUPS = 100;
+    private static final int FINGERPRINT_FRAMES = 5;
+
+    // A task's failure, as reported by a worker, or with no task, a
+    // notification whose summary is its whole text.
+    public static class Failure {
+        public final String task;
+        public final String summary;
+        public final String input;
+        public final Throwable error;
+        public final long at = System.currentTimeMillis();
+
+        public Failure(String task, String summary, String input, Throwable error) {
+            this.task = task;
+            this.summary = summary;
+            this.input = input;
+            this.error = error;
+        }
+    }
+
+    private static class Group {
+        final Failure example;
+        int count = 0;
+        long lastAt;
+
+        Group(Failure example) {
+            this.example = example;
+        }
+    }
+
+    private final LinkedHashMap<String, Group> groups = new LinkedHashMap<String, Group>();
+    private long overflow = 0;
+    private long failures = 0;
+
+    public void add(Failure failure) {
+        String fingerprint = (failure.task == null ? failure.summary :
+            fingerprint(failure.task, failure.error));
+        Group group = groups.get(fingerprint);
+
+        if (group == null) {
+            if (groups.size() >= MAX_GROUPS) {
+                overflow++;
+                return;
+            }
+            group = new Group(failure);
+            groups.put(fingerprint, group);
+        }
+
+        group.count++;
+        group.lastAt = failure.at;
+        failures++;
+    }
+
+    public boolean isEmpty() {
+        return groups.isEmpty() && overflow == 0;
+    }
+
+    public int groups() {
+        return groups.size();
+    }
+
+    // The number of failures recorded, including those over the group limit.
+    public long failures() {
+        return failures + overflow;
+    }
+
+    public void clear() {
+        groups.clear();
+        overflow = 0;
+        failures = 0;
+    }
+
+    // Renders the digest as the body of an e-mail, noting any failures
+    // dropped before they reached it.
+    public String render(long dropped) {
+        StringBuilder text = new StringBuilder();
+
+        if (failures() > 1)
+            text.append(failures()).append(" task failures, in ").append(groups.size())
+                .append(" groups.\n\n");
+
+        for (Group group : groups.values()) {
+            Failure failure = group.example;
+            if (failure.task == null) {
+                text.append(failure.summary).append("\n\n");
+                continue;
+            }
+
+            text.append("Error running task: ").append(failure.task).append(".\n\n");
+
+            if (group.count > 1)
+                text.append("Failed ").append(group.count).append(" times, from ")
+                    .append(new Date(failure.at)).append(" to ").append(new Date(group.lastAt))
+                    .append(". The first failure follows.\n\n");
+
+            text.append(failure.summary).append("\n\n")
+                .append("The original input was: \n\n").append(failure.input).append("\n\n")
+                .append("Here's the error that resulted while running the task:\n\n")
+                .append(stackToString(failure.error)).append("\n\n");
+        }
+
+        if (overflow > 0)
+            text.append(overflow).append(" more failures, of other kinds, were not listed.\n\n");
+        if (dropped > 0)
+            text.append(dropped)
+                .append(" failures were dropped while the error queue was full.\n\n");
+
+        return text.toString();
+    }
+
+    // Identifies failures alike enough to be reported together.
+    public static String fingerprint(String task, Throwable error) {
+        StringBuilder fingerprint = new StringBuilder(task);
+        if (error == null) return fingerprint.toString();
+
+        Throwable root = error;
+        while (root.getCause() != null && root.getCause() != root) root = root.getCause();
+        fingerprint.append('|').append(root.getClass().getName());
+
+        StackTraceElement[] frames = root.getStackTrace();
+        for (int i = 0; i < frames.length && i < FINGERPRINT_FRAMES; i++)
+            fingerprint.append('|').append(frames[i].getClassName()).append('.')
+                .append(frames[i].getMethodName()).append(':').append(frames[i].getLineNumber());
+
+        return fingerprint.toString();
+    }
+
+    private static String stackToString(Throwable e) {
+        if (e == null) return "(Null)";
+
+        StringWriter stringWriter = new StringWriter();
+        e.printStackTrace(new PrintWriter(stringWriter));
+        return stringWriter.toString();
+    }
+
+}
@@ -0,0 +1,236 @@
+package com.urbanairship.octobot;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+
+
+// A pool of worker threads shared between queues, which grants its slots
+// by weighted fair queuing rather than leaving it to thread priorities
+// (which most JVMs on Linux ignore). Each queue submits to a lane of its
+// own, weighted by its priority, and holding at most its max_in_flight
+// tasks; once full, its receiver waits, leaving the rest of the pool free.
+//
+// Each lane keeps a virtual clock of the worker time it has used, divided
+// by its weight. A free worker takes the next task from the lane furthest
+// behind, so lanes share the pool in proportion to their weights while
+// all are busy, and any lane can soak up capacity the others leave idle.
+// A lane is charged an estimate of a task's cost as it starts, corrected
+// once it finishes, and a lane coming back from idle starts level with
+// the busiest rather than with credit banked while away.
+//
+// No lane starves: a task which has waited longer than the starvation
+// timeout is run next, whatever its lane's weight.
+
+public class FairScheduler {
+
+    private static final Logger logger = Logger.getLogger("Fair Scheduler");
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    private final List<Lane> lanes = new ArrayList<Lane>();
+
+    private final long starvationTimeout;
+    private long virtualTime = 0;
+    private volatile boolean shutdown = false;
+
+    // Starts poolSize workers, running any task waiting starvationTimeout ms.
+    public FairScheduler(int poolSize, long starvationTimeout) {
+        this.starvationTimeout = TimeUnit.MILLISECONDS.toNanos(starvationTimeout);
+
+        for (int i = 0; i < poolSize; i++) {
+            Thread worker = new Thread(new Runnable() {
+                public void run() { work(); }
+            }, "Shared Worker-" + (i + 1));
+            worker.start();
+        }
+    }
+
+    // Adds a lane for a queue, weighted 1 to 10, holding up to capacity tasks.
+    public Lane lane(String name, int weight, int capacity) {
+        lock.lock();
+        try {
+            Lane lane = new Lane(name, Math.min(Math.max(weight, 1), 10), capacity);
+            lane.virtualTime = virtualTime;
+            lanes.add(lane);
+            return lane;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Removes a queue's lane, once it's stopped submitting. Tasks already
+    // waiting in it still run, and it's dropped once the last has finished.
+    public void remove(Lane lane) {
+        lock.lock();
+        try {
+            lane.removed = true;
+            lane.dropIfDone();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Stops the workers once every lane is empty.
+    public void shutdown() {
+        lock.lock();
+        try {
+            shutdown = true;
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    // A task waiting in a lane, with when it was submitted (from nanoTime).
+    private static class Task {
+        final Runnable runnable;
+        final long submittedAt = System.nanoTime();
+
+        Task(Runnable runnable) {
+            this.runnable = runnable;
+        }
+    }
+
+
+    // A queue's share of the pool.
+    public class Lane implements TaskPool {
+        private final String name;
+        private final int weight;
+        private final int capacity;
+        private final ArrayDeque<Task> tasks = new ArrayDeque<Task>();
+        private final Condition notFull = lock.newCondition();
+
+        // Weighted worker time used (ns), and the running average task cost.
+        private long virtualTime = 0;
+        private long averageCost = TimeUnit.MILLISECONDS.toNanos(1);
+        private int running = 0;
+        private boolean removed = false;
+
+        private Lane(String name, int weight, int capacity) {
+            this.name = name;
+            this.weight = weight;
+            this.capacity = Math.max(capacity, 1);
+        }
+
+        public boolean submit(Runnable runnable, long timeout, TimeUnit unit)
+                throws InterruptedException {
+            long wait = unit.toNanos(timeout);
+
+            lock.lock();
+            try {
+                while (tasks.size() + running >= capacity) {
+                    if (wait <= 0) return false;
+                    wait = notFull.awaitNanos(wait);
+                }
+
+                // Returning from idle, catch up with the busiest lane.
+                if (tasks.isEmpty() && running == 0)
+                    virtualTime = Math.max(virtualTime, FairScheduler.this.virtualTime);
+
+                tasks.add(new Task(runnable));
+                available.signal();
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public int inFlight() {
+            lock.lock();
+            try { return tasks.size() + running; }
+            finally { lock.unlock(); }
+        }
+
+        // Drops a removed lane once it has nothing left to run. Called
+        // holding the lock.
+        private void dropIfDone() {
+            if (removed && tasks.isEmpty() && running == 0) lanes.remove(this);
+        }
+
+        // Lanes share the pool, so there's nothing of their own to stop.
+        public void shutdown() { }
+
+        @Override
+        public String toString() {
+            return name + " (weight " + weight + ")";
+        }
+    }
+
+
+    // Runs tasks as lanes are granted slots, until shut down.
+    private void work() {
+        while (true) {
+            Lane lane = null;
+            Task task = null;
+            long charged = 0;
+
+            lock.lock();
+            try {
+                while ((lane = next()) == null) {
+                    if (shutdown) return;
+                    available.awaitUninterruptibly();
+                }
+
+                task = lane.tasks.poll();
+                lane.running++;
+                charged = lane.averageCost / lane.weight;
+                lane.virtualTime += charged;
+                virtualTime = Math.max(virtualTime, lane.virtualTime - charged);
+            } finally {
+                lock.unlock();
+            }
+
+            long startedAt = System.nanoTime();
+            try {
+                task.runnable.run();
+            } catch (Throwable t) {
+                logger.error("Error running task from " + lane + ".", t);
+            }
+            long cost = System.nanoTime() - startedAt;
+
+            lock.lock();
+            try {
+                lane.running--;
+                lane.virtualTime += cost / lane.weight - charged;
+                lane.averageCost += (cost - lane.averageCost) / 8;
+                lane.notFull.signal();
+                lane.dropIfDone();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // Returns the lane to run a task from next: the one whose head task
+    // has waited longest past the starvation timeout, if any, or the one
+    // furthest behind on its virtual clock. Called holding the lock.
+    private Lane next() {
+        long now = System.nanoTime();
+        Lane starved = null;
+        Lane behind = null;
+        long oldest = Long.MAX_VALUE;
+
+        for (Lane lane : lanes) {
+            Task head = lane.tasks.peek();
+            if (head == null) continue;
+
+            if (now - head.submittedAt > starvationTimeout && head.submittedAt < oldest) {
+                starved = lane;
+                oldest = head.submittedAt;
+            }
+
+            if (behind == null || lane.virtualTime < behind.virtualTime)
+                behind = lane;
+        }
+
+        return starved != null ? starved : behind;
+    }
+
+}
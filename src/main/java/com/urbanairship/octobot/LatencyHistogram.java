@@ -0,0 +1,147 @@
+package com.urbanairship.octobot;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+
+
+// A lock-free histogram of latencies in nanoseconds, bucketed HDR-style:
+// values below 64 get a bucket each, and each power of two above that is
+// split into 32 linear sub-buckets, so any value is recorded to within
+// about 3% across the whole range of a long. Recording a value is a few
+// shifts and an atomic increment, with nothing allocated or locked.
+//
+// The count accumulates from startup, but the mean, max and percentiles
+// cover only recent values: buckets are kept for the current window and
+// the one before it, and a new window replaces the older every minute (or
+// as configured), so they track latency as it is now rather than since
+// startup. Windows roll over on the first record or read after they end.
+
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKETS = 32;
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int LINEAR = SUB_BUCKETS * 2;
+    private static final int BUCKETS = LINEAR + (63 - SUB_BUCKET_BITS - 1) * SUB_BUCKETS;
+
+    private static final long DEFAULT_WINDOW = 60000;
+
+    private static final LongBinaryOperator MAX = new LongBinaryOperator() {
+        public long applyAsLong(long left, long right) { return Math.max(left, right); }
+    };
+
+    private final LongAdder total = new LongAdder();
+
+    // The window being recorded to, the one before it, and when (in ns) the
+    // current one ends.
+    private final long window;
+    private volatile Window current = new Window();
+    private volatile Window previous = new Window();
+    private volatile long rotateAt;
+
+    public LatencyHistogram() {
+        this(DEFAULT_WINDOW);
+    }
+
+    // Keeps percentiles over the last one to two windows of window ms.
+    public LatencyHistogram(long window) {
+        this.window = TimeUnit.MILLISECONDS.toNanos(Math.max(window, 1));
+        this.rotateAt = System.nanoTime() + this.window;
+    }
+
+    // Records a latency in nanoseconds. Negative values are recorded as 0.
+    public void record(long value) {
+        if (value < 0) value = 0;
+        rotateIfDue();
+
+        Window into = current;
+        into.counts.incrementAndGet(bucketOf(value));
+        into.count.increment();
+        into.sum.add(value);
+        into.max.accumulate(value);
+        total.increment();
+    }
+
+    // Starts a new window if the current one has ended. If another whole
+    // window has gone by since, the one ended is too old to keep as well.
+    private void rotateIfDue() {
+        long now = System.nanoTime();
+        if (now - rotateAt < 0) return;
+
+        synchronized (this) {
+            if (now - rotateAt < 0) return;
+            previous = (now - rotateAt >= window) ? new Window() : current;
+            current = new Window();
+            rotateAt = now + window;
+        }
+    }
+
+    static int bucketOf(long value) {
+        if (value < LINEAR) return (int) value;
+
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> shift) - SUB_BUCKETS;
+        return LINEAR + (shift - 1) * SUB_BUCKETS + subBucket;
+    }
+
+    // Returns the largest value recorded in a bucket.
+    static long highestIn(int bucket) {
+        if (bucket < LINEAR) return bucket;
+
+        int shift = (bucket - LINEAR) / SUB_BUCKETS + 1;
+        long subBucket = (bucket - LINEAR) % SUB_BUCKETS + SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    // Returns the number of values recorded since startup.
+    public long count() {
+        return total.sum();
+    }
+
+    // Returns the largest value recorded in the last window or two.
+    public long max() {
+        rotateIfDue();
+        return Math.max(current.max.get(), previous.max.get());
+    }
+
+    // Returns the mean of the values recorded in the last window or two.
+    public double mean() {
+        rotateIfDue();
+        Window current = this.current, previous = this.previous;
+        long n = current.count.sum() + previous.count.sum();
+        return n == 0 ? 0 : (double) (current.sum.sum() + previous.sum.sum()) / n;
+    }
+
+    // Returns the value at the given percentile (0 to 100) of those recorded
+    // in the last window or two, to within the precision of its bucket.
+    // Concurrent recording may skew it slightly.
+    public long percentile(double percentile) {
+        rotateIfDue();
+        Window current = this.current, previous = this.previous;
+        long max = Math.max(current.max.get(), previous.max.get());
+        long total = current.count.sum() + previous.count.sum();
+        if (total == 0) return 0;
+
+        long rank = (long) Math.ceil(total * percentile / 100);
+        if (rank < 1) rank = 1;
+
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += current.counts.get(bucket) + previous.counts.get(bucket);
+            if (seen >= rank) return Math.min(highestIn(bucket), max);
+        }
+
+        return max;
+    }
+
+    // The buckets, count, sum and max of the values recorded in a window.
+    private static class Window {
+        final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        final LongAdder count = new LongAdder();
+        final LongAdder sum = new LongAdder();
+        final LongAccumulator max = new LongAccumulator(MAX, 0);
+    }
+
+}
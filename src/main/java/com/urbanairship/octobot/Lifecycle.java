@@ -0,0 +1,128 @@
+package com.urbanairship.octobot;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import com.yammer.metrics.HealthChecks;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.HealthCheck;
+import com.yammer.metrics.core.MetricName;
+
+import org.apache.log4j.Logger;
+
+
+// Tracks the queue consumers Octobot has started, and drains them when the
+// JVM is asked to stop (e.g. on SIGTERM): each consumer stops fetching,
+// finishes and acknowledges the tasks it has in flight, and exits. Those
+// still running at the deadline are left to the queue to redeliver.
+//
+// While draining, the "lifecycle" health check served by the Introspector
+// fails, so that a rolling restart can wait for an instance to drain.
+
+public class Lifecycle {
+
+    private static final Logger logger = Logger.getLogger("Lifecycle");
+
+    public enum State { RUNNING, DRAINING, STOPPED }
+
+    private static volatile State state = State.RUNNING;
+
+    private static final List<Worker> workers = new ArrayList<Worker>();
+
+    private static class Worker {
+        final QueueConsumer consumer;
+        final Thread thread;
+
+        Worker(QueueConsumer consumer, Thread thread) {
+            this.consumer = consumer;
+            this.thread = thread;
+        }
+    }
+
+    // Registers a consumer and the thread running it, to drain on shutdown.
+    public static void register(QueueConsumer consumer, Thread thread) {
+        synchronized (workers) {
+            // Forget consumers which have since been drained and exited.
+            Iterator<Worker> iterator = workers.iterator();
+            while (iterator.hasNext())
+                if (!iterator.next().thread.isAlive()) iterator.remove();
+
+            workers.add(new Worker(consumer, thread));
+        }
+    }
+
+    public static State state() {
+        return state;
+    }
+
+    public static boolean isRunning() {
+        return state == State.RUNNING;
+    }
+
+    // Drains all consumers on shutdown, waiting up to timeout seconds, and
+    // publishes the drain state to the Introspector.
+    public static void install(final int timeout) {
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            public void run() {
+                shutdown(timeout * 1000L);
+            }
+        }, "Lifecycle"));
+
+        Metrics.registry.newGauge(new MetricName("Octobot", "Lifecycle", "State"),
+            new Gauge<String>() {
+                public String value() { return state.toString(); }
+            });
+
+        HealthChecks.register(new HealthCheck("lifecycle") {
+            protected Result check() {
+                if (state == State.RUNNING) return Result.healthy();
+                return Result.unhealthy("Octobot is " + state.toString().toLowerCase() + ".");
+            }
+        });
+    }
+
+    // Stops all consumers, waiting up to timeout ms for their tasks in
+    // flight to finish and be acknowledged, and for queued e-mails to send.
+    public static void shutdown(long timeout) {
+        long deadline = System.currentTimeMillis() + timeout;
+        state = State.DRAINING;
+
+        List<Worker> draining = null;
+        synchronized (workers) {
+            draining = new ArrayList<Worker>(workers);
+        }
+
+        logger.info("Shutting down; draining " + draining.size() + " consumers, " +
+            "waiting up to " + timeout + " ms.");
+
+        for (Worker worker : draining)
+            worker.consumer.drain();
+
+        int stuck = 0;
+        for (Worker worker : draining) {
+            long remaining = deadline - System.currentTimeMillis();
+            try {
+                if (remaining > 0) worker.thread.join(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (worker.thread.isAlive()) stuck++;
+        }
+
+        MailQueue.flush();
+        while (MailQueue.size() > 0 && System.currentTimeMillis() < deadline) {
+            try { Thread.sleep(100); }
+            catch (InterruptedException e) { break; }
+        }
+
+        if (stuck > 0)
+            logger.warn(stuck + " consumers did not drain in time; their unacknowledged " +
+                "messages will be redelivered.");
+        else
+            logger.info("All consumers drained.");
+
+        state = State.STOPPED;
+    }
+
+}
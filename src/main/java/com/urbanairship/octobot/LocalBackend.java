@@ -0,0 +1,183 @@
+package com.urbanairship.octobot;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.log4j.Logger;
+
+
+// Consumes from a LocalQueue (protocol: local), memory-mapped files shared
+// with producers on the same host. Messages are read in order from the
+// consumer's cursor, and acknowledged by advancing the queue's ack offset
+// over the run of completed messages at its head, so that a consumer
+// restarting after a crash replays those it never finished.
+//
+// A local queue has a single cursor, so only one worker consumes it at a
+// time, holding a lock file in its directory; any others wait as standbys.
+// Run a pool executor to spread its tasks over many threads. Local queues
+// can't delay a message, so retries are held by the consumer.
+
+public class LocalBackend implements QueueBackend {
+
+    private static final Logger logger = Logger.getLogger("Local Backend");
+
+    // How long (in ns) to park between looks for a message while waiting,
+    // doubling from the first interval up to the last while none arrive.
+    private static final long PARK_INTERVAL = TimeUnit.MICROSECONDS.toNanos(50);
+    private static final long MAX_PARK_INTERVAL = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final Queue queue;
+    private LocalQueue local = null;
+    private RandomAccessFile lockFile = null;
+    private FileLock lock = null;
+
+    // The offset of the next message to read, and for each message fetched
+    // but not yet acknowledged, the offset of the message after it.
+    private long cursor = 0;
+    private long acked = 0;
+    private final TreeMap<Long, Long> inFlight = new TreeMap<Long, Long>();
+    private final TreeMap<Long, Long> completed = new TreeMap<Long, Long>();
+
+    public LocalBackend(Queue queue) {
+        this.queue = queue;
+    }
+
+    // Opens the queue and takes the consumer's lock, waiting with backoff
+    // while another worker holds it. Reading resumes from the ack offset.
+    public void connect() {
+        Backoff backoff = new Backoff(100, 30000);
+        release();
+
+        while (true) {
+            try {
+                if (local == null) local = LocalQueue.open(queue);
+                File directory = new File(queue.path, queue.queueName);
+                lockFile = new RandomAccessFile(new File(directory, "consumer.lock"), "rw");
+                lock = lockFile.getChannel().tryLock();
+                if (lock != null) break;
+                logger.debug("Local queue " + queue.queueName + " is held by another consumer.");
+            } catch (OverlappingFileLockException e) {
+                logger.debug("Local queue " + queue.queueName + " is held by another worker.");
+            } catch (IOException e) {
+                logger.error("Unable to open local queue " + queue.queueName + ".", e);
+            }
+
+            release();
+            backoff.sleep(backoff.nextDelay());
+        }
+
+        cursor = local.ackOffset();
+        acked = local.acked();
+        inFlight.clear();
+        completed.clear();
+        logger.info("Opened local queue " + queue.queueName + " at offset " + cursor + ".");
+    }
+
+    // Spins briefly, then parks for ever longer, while waiting for a message
+    // to be committed, so an idle consumer doesn't wake 20,000 times a second.
+    public List<Delivery> fetch(int max, long timeout) throws IOException {
+        List<Delivery> deliveries = new ArrayList<Delivery>(max);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        int spins = 0;
+        long park = PARK_INTERVAL;
+
+        while (deliveries.size() < max) {
+            LocalQueue.Record record = local.read(cursor);
+            if (record != null) {
+                inFlight.put(record.offset, record.next);
+                deliveries.add(new Delivery(this, record.offset, record.body));
+                cursor = record.next;
+                continue;
+            }
+
+            if (!deliveries.isEmpty() || System.nanoTime() >= deadline) break;
+            if (++spins <= 100) continue;
+            LockSupport.parkNanos(Math.min(park, deadline - System.nanoTime()));
+            park = Math.min(park * 2, MAX_PARK_INTERVAL);
+        }
+
+        return deliveries;
+    }
+
+    public void ack(Delivery delivery) {
+        Long offset = (Long) delivery.handle;
+        Long next = inFlight.get(offset);
+        if (next != null) completed.put(offset, next);
+    }
+
+    // Failed messages are acked as ever, rather than replayed to fail again.
+    public void nack(Delivery delivery) {
+        ack(delivery);
+    }
+
+    public boolean reschedule(Delivery delivery, Envelope retry, long delay) {
+        return false;
+    }
+
+    // Local queues have no reply queues.
+    public boolean reply(Delivery delivery, String replyTo, String correlationId, byte[] result) {
+        return false;
+    }
+
+    // Advances the ack offset over the completed messages at the head.
+    public void flush() {
+        if (completed.isEmpty()) return;
+
+        long offset = -1;
+        while (!inFlight.isEmpty() && completed.containsKey(inFlight.firstKey())) {
+            offset = completed.remove(inFlight.firstKey());
+            inFlight.remove(inFlight.firstKey());
+            acked++;
+        }
+
+        if (offset >= 0) local.acknowledge(offset, acked);
+    }
+
+    public long depth() throws IOException {
+        if (local == null) local = LocalQueue.open(queue);
+        return local.depth();
+    }
+
+    // Messages are only read as they're fetched.
+    public void cancel() { }
+
+    public void close() {
+        if (local != null && lock != null) flush();
+        release();
+    }
+
+    private void release() {
+        try {
+            if (lock != null) lock.release();
+            if (lockFile != null) lockFile.close();
+        } catch (IOException e) {
+            logger.debug("Error releasing local queue lock.", e);
+        }
+        lock = null;
+        lockFile = null;
+    }
+
+
+    public static class Provider implements QueueBackendProvider {
+        public boolean supports(Queue queue) {
+            return queue.queueType.equals("local");
+        }
+
+        public QueueBackend create(Queue queue) {
+            return new LocalBackend(queue);
+        }
+
+        public QueuePublisher createPublisher(Queue queue) {
+            return new LocalPublisher(queue);
+        }
+    }
+
+}
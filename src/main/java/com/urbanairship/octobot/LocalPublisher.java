@@ -0,0 +1,47 @@
+package com.urbanairship.octobot;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+
+// Appends messages to a local queue. There's no round trip to save, so a
+// batch is appended a message at a time; each is visible to the consumer
+// as soon as it's appended.
+
+public class LocalPublisher implements QueuePublisher {
+
+    private static final Logger logger = Logger.getLogger("Local Publisher");
+
+    private final Queue queue;
+    private LocalQueue local = null;
+
+    public LocalPublisher(Queue queue) {
+        this.queue = queue;
+    }
+
+    public void connect() {
+        Backoff backoff = new Backoff(100, 30000);
+
+        while (local == null) {
+            try {
+                local = LocalQueue.open(queue);
+            } catch (IOException e) {
+                long delay = backoff.nextDelay();
+                logger.error("Unable to open local queue " + queue.queueName +
+                    ". Retrying in " + delay + " ms.", e);
+                backoff.sleep(delay);
+            }
+        }
+    }
+
+    public void send(List<byte[]> messages) throws IOException {
+        for (byte[] message : messages) local.append(message);
+    }
+
+    public void flush() { }
+
+    public void close() { }
+
+}
@@ -0,0 +1,458 @@
+package com.urbanairship.octobot;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+// An append-only queue in memory-mapped files, for producers and consumers
+// on the same host to share without a broker. Messages are appended to
+// segment files of a fixed size, each named for its place in the queue,
+// and a small index file holds the count of messages produced and the
+// consumer's acknowledged offset.
+//
+// Each record is an 8-byte header followed by the message, aligned to 8
+// bytes. The header holds the message's length and a check on the length
+// and the record's offset. A producer claims room for a record by
+// advancing the tail with a single atomic add, copies the message straight
+// into the mapped segment, then commits it by writing the header last. An
+// atomic increment of the count produced between the two keeps the header
+// from being written ahead of the message. A reader waits at a zero header
+// until the record is committed; its read of the message depends on the
+// length in the header, so can't run ahead of it. A record which would
+// cross the end of a segment is padded out (as a negative length) and
+// retried in the next. Producing threads never wait on each other, and no
+// system call is made per message.
+//
+// Writes land in the page cache, so they survive the producer or consumer
+// crashing (though not the host), and a consumer restarting replays from
+// its last acknowledged offset. Segments wholly behind that are deleted.
+//
+// Any number of threads may produce, but from one process at a time: the
+// first append takes a lock file in the queue's directory, held until the
+// queue is closed or the process exits, and fails while another holds it.
+// Within a process, open hands every publisher and consumer of a directory
+// the same queue. The producer finds the tail on its first append, scanning
+// the records not yet acknowledged. A producer which died mid-append may
+// have left holes, records claimed but never committed, ahead of others
+// which were: the holes are padded over, found by the check on the next
+// committed header, and anything uncommitted beyond the last record is
+// cleared.
+
+public class LocalQueue {
+
+    private static final int ALIGNMENT = 8;
+    private static final int HEADER = 8;
+
+    // Positions of the counters in the index file.
+    private static final int PRODUCED = 0;
+    private static final int ACK_OFFSET = 8;
+    private static final int ACKED = 16;
+    private static final int INDEX_SIZE = 64;
+
+    // Queues opened, by canonical directory.
+    private static final ConcurrentHashMap<String, LocalQueue> queues =
+        new ConcurrentHashMap<String, LocalQueue>();
+
+    private final File directory;
+    private final int segmentSize;
+    private final MappedByteBuffer index;
+    private final ConcurrentHashMap<Long, MappedByteBuffer> segments =
+        new ConcurrentHashMap<Long, MappedByteBuffer>();
+
+    // The offset at which the next record will be written, and the number
+    // written. The tail is -1 until found on the first append.
+    private final AtomicLong tail = new AtomicLong(-1);
+    private final AtomicLong produced = new AtomicLong();
+
+    // Room claimed by appends which failed before committing (an offset and
+    // size each), still to be padded over so the consumer can pass it.
+    private final ConcurrentLinkedQueue<long[]> abandoned =
+        new ConcurrentLinkedQueue<long[]>();
+
+    // The segment the consumer last acknowledged into, below which all
+    // have been deleted.
+    private long released = -1;
+
+    // The producer's lock, taken on the first append.
+    private RandomAccessFile lockFile = null;
+    private FileLock lock = null;
+
+    // A committed record, and the offset of the one after it.
+    public static class Record {
+        public final long offset;
+        public final long next;
+        public final byte[] body;
+
+        Record(long offset, long next, byte[] body) {
+            this.offset = offset;
+            this.next = next;
+            this.body = body;
+        }
+    }
+
+    // Opens the queue in a directory, creating it if need be. segmentSize
+    // is in bytes, and must be the same for every process using the queue.
+    public LocalQueue(File directory, int segmentSize) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize - segmentSize % ALIGNMENT;
+
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Unable to create local queue directory: " + directory);
+        this.index = map(new File(directory, "index"), INDEX_SIZE);
+    }
+
+    // Opens a local queue as configured, returning the queue already open
+    // in this process on the same directory if there is one.
+    public static LocalQueue open(Queue queue) throws IOException {
+        File directory = new File(queue.path, queue.queueName).getCanonicalFile();
+        String key = directory.getPath();
+
+        LocalQueue local = queues.get(key);
+        if (local != null) return local;
+
+        local = new LocalQueue(directory, queue.segmentSize * 1024 * 1024);
+        LocalQueue existing = queues.putIfAbsent(key, local);
+        return existing == null ? local : existing;
+    }
+
+
+    // Appends a message, returning its offset.
+    public long append(byte[] message) throws IOException {
+        return append(ByteBuffer.wrap(message));
+    }
+
+    // Appends the remaining bytes of a buffer, copying them directly into
+    // the mapped segment. Returns the message's offset.
+    public long append(ByteBuffer message) throws IOException {
+        int length = message.remaining();
+        int size = align(HEADER + length);
+        if (size > segmentSize)
+            throw new IllegalArgumentException("Message of " + length +
+                " bytes is larger than a segment.");
+        if (tail.get() < 0) recover();
+        if (!abandoned.isEmpty()) padAbandoned();
+
+        while (true) {
+            long offset = tail.getAndAdd(size);
+            try {
+                if (write(message, length, size, offset)) return offset;
+            } catch (IOException e) {
+                abandon(offset, size);
+                throw e;
+            } catch (RuntimeException e) {
+                abandon(offset, size);
+                throw e;
+            }
+        }
+    }
+
+    // Writes a message into the room claimed for it at offset, returning
+    // false if that crossed into the next segment and was padded out.
+    private boolean write(ByteBuffer message, int length, int size, long offset)
+            throws IOException {
+        long segment = offset / segmentSize;
+        int position = (int) (offset % segmentSize);
+
+        if (position + size <= segmentSize) {
+            ByteBuffer record = segment(segment).duplicate();
+            record.position(position + HEADER);
+            record.put(message.duplicate());
+
+            // The increment is a full fence: the header can't be
+            // written before the message is.
+            long count = produced.incrementAndGet();
+            record.putLong(position, header(length, offset));
+
+            index.putLong(PRODUCED, count);
+            return true;
+        }
+
+        // Crossing into the next segment: pad out the rest of this one,
+        // and what we claimed of the next, then claim again.
+        padClaim(offset, size);
+        return false;
+    }
+
+    // Pads over room claimed by an append which failed, so the consumer
+    // doesn't wait at it forever. If that fails too, it's retried on the
+    // next append.
+    private void abandon(long offset, int size) {
+        try {
+            padClaim(offset, size);
+        } catch (Exception e) {
+            abandoned.add(new long[] { offset, size });
+        }
+    }
+
+    private void padAbandoned() throws IOException {
+        long[] claim;
+        while ((claim = abandoned.peek()) != null) {
+            padClaim(claim[0], (int) claim[1]);
+            abandoned.remove(claim);
+        }
+    }
+
+    // Pads over the room claimed at offset, in each segment it reaches into.
+    private void padClaim(long offset, int size) throws IOException {
+        long end = offset + size;
+        while (offset < end) {
+            long next = Math.min(end, (offset / segmentSize + 1) * segmentSize);
+            pad(offset, next);
+            offset = next;
+        }
+    }
+
+
+    // Returns the record committed at offset, skipping any padding ahead
+    // of it, or null if none has been committed there yet.
+    public Record read(long offset) throws IOException {
+        // A volatile read, so that a header polled for isn't read once and
+        // then cached.
+        produced.get();
+
+        while (true) {
+            MappedByteBuffer segment = segment(offset / segmentSize);
+            int position = (int) (offset % segmentSize);
+            long header = segment.getLong(position);
+            int length = (int) (header >> 32);
+
+            if (header == 0) return null;
+            if (length < 0) {
+                offset += -length;
+                continue;
+            }
+
+            byte[] body = new byte[length];
+            ByteBuffer record = segment.duplicate();
+            record.position(position + HEADER);
+            record.get(body);
+            return new Record(offset, offset + align(HEADER + length), body);
+        }
+    }
+
+    // Records every message before offset as acknowledged, count in all,
+    // and deletes any segments wholly behind it.
+    public void acknowledge(long offset, long count) {
+        index.putLong(ACK_OFFSET, offset);
+        index.putLong(ACKED, count);
+
+        long current = offset / segmentSize;
+        if (current <= released) return;
+        released = current;
+
+        File[] files = directory.listFiles();
+        if (files == null) return;
+        for (File file : files) {
+            Long segment = segmentOf(file);
+            if (segment == null || segment >= current) continue;
+            segments.remove(segment);
+            file.delete();
+        }
+    }
+
+    // The offset up to which messages have been acknowledged.
+    public long ackOffset() {
+        return index.getLong(ACK_OFFSET);
+    }
+
+    // The number of messages acknowledged.
+    public long acked() {
+        return index.getLong(ACKED);
+    }
+
+    // The number of messages appended but not yet acknowledged. Producing
+    // threads racing to publish their counts may leave this briefly behind.
+    public long depth() {
+        return Math.max(index.getLong(PRODUCED) - index.getLong(ACKED), 0);
+    }
+
+    // Releases the producer's lock, letting another process produce, and
+    // drops the queue from those open. Call once appends have stopped;
+    // appending again retakes the lock.
+    public synchronized void close() {
+        try {
+            if (lock != null) lock.release();
+            if (lockFile != null) lockFile.close();
+        } catch (IOException e) {
+            // The lock goes with the file, closed or not.
+        }
+        lock = null;
+        lockFile = null;
+        tail.set(-1);
+
+        for (String key : queues.keySet()) queues.remove(key, this);
+    }
+
+
+    // Finds the tail: scans the records from the acknowledged offset to the
+    // end of the last segment, pads over any holes left by a producer which
+    // died mid-append, and resumes after the last committed record, clearing
+    // whatever was left uncommitted beyond it.
+    private synchronized void recover() throws IOException {
+        if (tail.get() >= 0) return;
+        lockProducer();
+
+        long last = -1;
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                Long segment = segmentOf(file);
+                if (segment != null) last = Math.max(last, segment);
+            }
+        }
+
+        long offset = ackOffset();
+        long end = Math.max(last + 1, 0) * segmentSize;
+        long resume = offset;
+
+        while (offset < end) {
+            int length = committed(offset);
+            if (length != 0) {
+                offset += (length < 0 ? -length : align(HEADER + length));
+                resume = offset;
+                continue;
+            }
+
+            // A hole: pad over it to the next committed record in its segment,
+            // or to the segment's end if there's one in a later segment.
+            long segmentEnd = (offset / segmentSize + 1) * segmentSize;
+            long next = offset + ALIGNMENT;
+            while (next < segmentEnd && committed(next) == 0) next += ALIGNMENT;
+            if (next == segmentEnd && !committedFrom(segmentEnd, end)) break;
+
+            pad(offset, next);
+            offset = next;
+            resume = offset;
+        }
+
+        clear(resume, end);
+        produced.set(index.getLong(PRODUCED));
+        tail.set(resume);
+    }
+
+    // Takes the producer's lock, failing if another holds it.
+    private void lockProducer() throws IOException {
+        if (lock != null) return;
+
+        RandomAccessFile file = new RandomAccessFile(new File(directory, "producer.lock"), "rw");
+        try {
+            lock = file.getChannel().tryLock();
+        } catch (OverlappingFileLockException e) {
+            lock = null;
+        }
+
+        if (lock == null) {
+            file.close();
+            throw new IOException("Local queue " + directory +
+                " is held by another producer.");
+        }
+        lockFile = file;
+    }
+
+    // Returns the length in the committed header at offset, or 0 if there's
+    // no header there which passes its check.
+    private int committed(long offset) throws IOException {
+        int position = (int) (offset % segmentSize);
+        long header = segment(offset / segmentSize).getLong(position);
+        int length = (int) (header >> 32);
+
+        if (header == 0 || header != header(length, offset)) return 0;
+        int size = (length < 0 ? -length : align(HEADER + length));
+        return (size >= HEADER && position + size <= segmentSize) ? length : 0;
+    }
+
+    // Whether any record is committed between offset and end.
+    private boolean committedFrom(long offset, long end) throws IOException {
+        for (; offset < end; offset += ALIGNMENT)
+            if (committed(offset) != 0) return true;
+        return false;
+    }
+
+    private void pad(long offset, long next) throws IOException {
+        segment(offset / segmentSize).putLong((int) (offset % segmentSize),
+            header(-(int) (next - offset), offset));
+    }
+
+    // Zeroes the queue from offset to end, so nothing left there by a
+    // record never committed can be taken for a header.
+    private void clear(long offset, long end) throws IOException {
+        ByteBuffer zeroes = ByteBuffer.allocate(64 * 1024);
+        while (offset < end) {
+            int position = (int) (offset % segmentSize);
+            int count = Math.min(zeroes.capacity(), segmentSize - position);
+            ByteBuffer region = segment(offset / segmentSize).duplicate();
+            region.position(position);
+            zeroes.clear().limit(count);
+            region.put(zeroes);
+            offset += count;
+        }
+    }
+
+    // A header for a record of length at offset (negative for padding),
+    // with a check on both so that recovery can tell it from message bytes.
+    private static long header(int length, long offset) {
+        int check = (length * 0x9E3779B1) ^ (int) (offset * 0x85EBCA6B) ^
+            (int) (offset >>> 32) ^ 0x5A5A5A5A;
+        return ((long) length << 32) | (check & 0xFFFFFFFFL);
+    }
+
+    // Returns the mapping of a segment, mapping it if need be. Mapping a
+    // new one drops those wholly behind the acknowledged offset, which the
+    // consumer deletes: a producer in another process would otherwise hold
+    // every segment it had written mapped, and their disk space with them,
+    // until it exited. A mapping is released once it's collected.
+    private MappedByteBuffer segment(long segment) throws IOException {
+        MappedByteBuffer buffer = segments.get(segment);
+        if (buffer != null) return buffer;
+
+        synchronized (segments) {
+            buffer = segments.get(segment);
+            if (buffer == null) {
+                long acknowledged = ackOffset() / segmentSize;
+                for (Long mapped : segments.keySet())
+                    if (mapped < acknowledged) segments.remove(mapped);
+
+                buffer = map(new File(directory, segmentName(segment)), segmentSize);
+                segments.put(segment, buffer);
+            }
+            return buffer;
+        }
+    }
+
+    // Maps a file, sized to at least size bytes. The mapping outlives the file.
+    private static MappedByteBuffer map(File file, int size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            if (raf.length() < size) raf.setLength(size);
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static String segmentName(long segment) {
+        return String.format("%020d.seg", segment);
+    }
+
+    // Returns the number of a segment file, or null for any other file.
+    private static Long segmentOf(File file) {
+        String name = file.getName();
+        if (!name.endsWith(".seg")) return null;
+        try { return Long.parseLong(name.substring(0, name.length() - 4)); }
+        catch (NumberFormatException e) { return null; }
+    }
+
+    private static int align(int size) {
+        return (size + ALIGNMENT - 1) & -ALIGNMENT;
+    }
+
+}
@@ -1,7 +1,11 @@
 package com.urbanairship.octobot;
 
 import org.apache.log4j.Logger;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 // E-mail Imports
 import javax.mail.Message;
@@ -16,6 +20,13 @@ import java.util.Properties;
 
 // This singleton class provides an internal queue allowing us to asynchronously
 // send email notifications rather than processing them in main app loop.
+//
+// Workers report failures without ever waiting: if the queue is full (say,
+// through an SMTP outage or a storm of errors), the failure is dropped and
+// counted instead. The mail thread gathers failures into an ErrorDigest,
+// and sends one e-mail per email_digest_interval seconds (or as failures
+// arrive, if 0) listing each kind of failure once, with its count, over an
+// SMTP connection it keeps open between sends.
 
 public class MailQueue implements Runnable {
 
@@ -28,39 +39,74 @@ public class MailQueue implements Runnable {
     private static Integer port = Settings.getAsInt("Octobot", "email_port");
     private static Boolean useSSL = Settings.getAsBoolean("Octobot", "email_ssl");
     private static Boolean useAuth = Settings.getAsBoolean("Octobot", "email_auth");
+    private static int digestInterval = Settings.getAsInt("Octobot", "email_digest_interval", 60);
 
-    // This internal queue is backed by an ArrayBlockingQueue. By specifying the
-    // number of messages to be held here before the queue blocks (below), we
-    // provide ourselves a safety threshold in terms of how many messages could
-    // be backed up before we force the delivery of all current waiting messages.
+    // This internal queue is backed by an ArrayBlockingQueue, holding up to
+    // email_queue_size failures waiting on the mail thread. Failures which
+    // don't fit are counted, and the count reported in the next e-mail.
 
-    private static ArrayBlockingQueue<String> messages;
+    private static ArrayBlockingQueue<ErrorDigest.Failure> failures;
+    private static final AtomicLong dropped = new AtomicLong();
+
+    // Failures gathered since the last e-mail. Guarded by the mail thread,
+    // save for its size, which is published for Lifecycle to wait on.
+    private final ErrorDigest digest = new ErrorDigest();
+    private volatile int pending = 0;
+    private volatile boolean flushRequested = false;
+
+    // The session and connection, made on first send and kept thereafter.
+    private Session session = null;
+    private Transport transport = null;
 
     // Initialize the queue's singleton instance.
     private static final MailQueue INSTANCE = new MailQueue();
 
     private MailQueue() {
-        messages = new ArrayBlockingQueue<String>(100);
+        failures = new ArrayBlockingQueue<ErrorDigest.Failure>(
+            Settings.getAsInt("Octobot", "email_queue_size", 1000));
     }
 
     public static MailQueue get() {
         return INSTANCE;
     }
 
+    // Reports a task's failure, to be e-mailed. Never blocks: returns false
+    // if the queue is full, in which case the failure is only counted.
+    public static boolean report(String task, String summary, String input, Throwable error) {
+        if (failures.offer(new ErrorDigest.Failure(task, summary, input, error))) return true;
+
+        if (dropped.incrementAndGet() == 1)
+            logger.warn("Error e-mail queue is full; dropping failures until it drains.");
+        return false;
+    }
+
+    // Queues a ready-made notification. Never blocks, despite the signature
+    // kept for existing callers: it's dropped if the queue is full.
     public static void put(String message) throws InterruptedException {
-        messages.put(message);
+        report(null, message, null, null);
     }
 
+    // The number of failures yet to be e-mailed.
     public static int size() {
-        return messages.size();
+        return failures.size() + INSTANCE.pending;
     }
 
     public static int remainingCapacity() {
-        return messages.remainingCapacity();
+        return failures.remainingCapacity();
+    }
+
+    // The number of failures dropped since the last e-mail.
+    public static long dropped() {
+        return dropped.get();
     }
 
-    // As this thread runs, it consumes messages from the internal queue and
-    // delivers each to the recipients configured in the YML file.
+    // Asks the mail thread to send what it has now, ahead of shutdown.
+    public static void flush() {
+        INSTANCE.flushRequested = true;
+    }
+
+    // As this thread runs, it consumes failures from the internal queue and
+    // delivers digests of them to the recipient configured in the YML file.
     public void run() {
         
         if (!validSettings()) {
@@ -68,52 +114,114 @@ public class MailQueue implements Runnable {
             return;
         }
 
+        long interval = TimeUnit.SECONDS.toMillis(digestInterval);
+        long nextDigest = System.currentTimeMillis() + interval;
+        List<ErrorDigest.Failure> batch = new ArrayList<ErrorDigest.Failure>();
+
         while (true) {
             try {
-                String message = messages.take();
-                deliverMessage(message);
+                ErrorDigest.Failure failure = failures.poll(100, TimeUnit.MILLISECONDS);
+
+                if (failure != null) {
+                    batch.add(failure);
+                    failures.drainTo(batch);
+                    for (ErrorDigest.Failure each : batch) digest.add(each);
+                    batch.clear();
+                    pending = digest.groups();
+                }
             } catch (InterruptedException e) {
                 // Pass
             }
+
+            boolean due = (System.currentTimeMillis() >= nextDigest || flushRequested);
+            if (due && (!digest.isEmpty() || dropped.get() > 0)) {
+                if (deliverDigest()) nextDigest = System.currentTimeMillis() + interval;
+                else nextDigest = System.currentTimeMillis() + Math.max(interval, 10000);
+            } else if (due) {
+                nextDigest = System.currentTimeMillis() + interval;
+            }
+            flushRequested = false;
         }
     }
 
-    // Delivers email error notificiations.
-    private void deliverMessage(String message) {
+    // Delivers the digest, returning whether it was sent. Kept to be sent
+    // again with the next if not, while SMTP is unavailable.
+    private boolean deliverDigest() {
+        long droppedSince = dropped.getAndSet(0);
+        String subject = (digest.failures() > 1 ?
+            "Task Error Digest: " + digest.failures() + " failures" : "Task Error Notification");
+        String message = digest.render(droppedSince);
 
         logger.info("Sending error notification to: " + recipient);
 
         try {
-            MimeMessage email = prepareEmail();
-            email.setFrom(new InternetAddress(from));
-            email.addRecipient(Message.RecipientType.TO, new InternetAddress(recipient));
-
-            email.setSubject("Task Error Notification");
-            email.setText(message);
-
-            // Send message
-            Transport.send(email);
+            deliverMessage(subject, message);
             logger.info("Sent error e-mail to " + recipient + ". "
                 + "Message: \n\n" + message);
-
+            digest.clear();
+            pending = 0;
+            return true;
         } catch (MessagingException e) {
             logger.error("Error delivering error notification.", e);
+            dropped.addAndGet(droppedSince);
+            return false;
         }
     }
 
+    // Sends an e-mail over the open connection, reconnecting and trying
+    // once more if the server has dropped it.
+    private void deliverMessage(String subject, String text) throws MessagingException {
+        MimeMessage email = new MimeMessage(session());
+        email.setFrom(new InternetAddress(from));
+        email.addRecipient(Message.RecipientType.TO, new InternetAddress(recipient));
+        email.setSubject(subject);
+        email.setText(text);
+        email.saveChanges();
+
+        try {
+            transport().sendMessage(email, email.getAllRecipients());
+        } catch (MessagingException e) {
+            closeTransport();
+            transport().sendMessage(email, email.getAllRecipients());
+        }
+    }
+
+    private Transport transport() throws MessagingException {
+        if (transport == null) transport = session().getTransport("smtp");
+
+        if (!transport.isConnected()) {
+            try {
+                if (useAuth) transport.connect(server, port, username, password);
+                else transport.connect();
+            } catch (MessagingException e) {
+                closeTransport();
+                throw e;
+            }
+        }
+
+        return transport;
+    }
+
+    private void closeTransport() {
+        try { if (transport != null) transport.close(); }
+        catch (MessagingException e) { logger.debug("Error closing SMTP connection.", e); }
+        transport = null;
+    }
+
+    // Prepares a session based on Octobot's SMTP, SSL, and Authentication
+    // configuration, once. Its properties are its own, not the system's.
+    private Session session() {
+        if (session != null) return session;
 
-    // Prepares a sendable email object based on Octobot's SMTP, SSL, and
-    // Authentication configuration.
-    private MimeMessage prepareEmail() {
         // Prepare our configuration.
-        Properties properties = System.getProperties();
+        Properties properties = new Properties();
         properties.setProperty("mail.smtp.host", server);
+        properties.setProperty("mail.smtp.port", port.toString());
         properties.put("mail.smtp.auth", "true");
-        Session session = null;
 
         // Configure SSL.
         if (useSSL) {
-            properties.put("mail.smtp.socketFactory.port", port);
+            properties.put("mail.smtp.socketFactory.port", port.toString());
             properties.put("mail.smtp.starttls.enable","true");
             properties.put("mail.smtp.socketFactory.fallback", "false");
             properties.put("mail.smtp.socketFactory.class", "javax.net.ssl.SSLSocketFactory");
@@ -125,10 +233,10 @@ public class MailQueue implements Runnable {
             Authenticator authenticator = new Authenticator(username, password);
             session = Session.getInstance(properties, authenticator);
         } else {
-            session = Session.getDefaultInstance(properties);
+            session = Session.getInstance(properties);
         }
 
-        return new MimeMessage(session);
+        return session;
     }
 
 
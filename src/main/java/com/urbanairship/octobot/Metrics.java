@@ -1,55 +1,101 @@
 package com.urbanairship.octobot;
 
-import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Gauge;
 import com.yammer.metrics.core.MetricName;
 import com.yammer.metrics.core.MetricsRegistry;
-import com.yammer.metrics.core.Timer;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Records the results of each task, and publishes them to the registry
+// served by the Introspector. A task's instruments are resolved once, on
+// its first result, and looked up from a map thereafter.
 
 public class Metrics {
 
-    protected static final MetricsRegistry registry = new MetricsRegistry();
+    // The registry MetricsServlet reports from.
+    protected static final MetricsRegistry registry =
+        com.yammer.metrics.Metrics.defaultRegistry();
+
+    private static final ConcurrentHashMap<String, TaskMetrics> tasks =
+        new ConcurrentHashMap<String, TaskMetrics>();
 
     // Updates internal metrics following task execution.
     public static void update(String task, long time, boolean status, int retries) {
-        updateExecutionTimes(task, time);
-        updateTaskRetries(task, retries);
-        updateTaskResults(task, status);
+        forTask(task).record(time, status, retries);
+    }
+
+
+    // Returns a task's instruments, creating and registering them if new.
+    public static TaskMetrics forTask(String task) {
+        TaskMetrics metrics = tasks.get(task);
+        if (metrics != null) return metrics;
+
+        metrics = new TaskMetrics();
+        TaskMetrics existing = tasks.putIfAbsent(task, metrics);
+        if (existing != null) return existing;
+
+        register(task, metrics);
+        return metrics;
     }
 
 
-    // Update the list of execution times, keeping the last 10,000 per task.
-    private static void updateExecutionTimes(String task, long time) {
-        MetricName timerName = new MetricName("Octobot", "Metrics", task + ":Timer");
-        Timer timer = registry.newTimer(timerName, TimeUnit.NANOSECONDS, TimeUnit.MILLISECONDS);
-        timer.update(time, TimeUnit.NANOSECONDS);
+    // Publishes a task's instruments as gauges, with latencies in ms.
+    private static void register(String task, final TaskMetrics metrics) {
+        final LatencyHistogram latency = metrics.latency();
+
+        registry.newGauge(name(task, "Success"), new Gauge<Long>() {
+            public Long value() { return metrics.successes(); }
+        });
+
+        registry.newGauge(name(task, "Failure"), new Gauge<Long>() {
+            public Long value() { return metrics.failures(); }
+        });
+
+        registry.newGauge(name(task, "Retries"), new Gauge<Long>() {
+            public Long value() { return metrics.retries(); }
+        });
+
+        registry.newGauge(name(task, "Deferred"), new Gauge<Long>() {
+            public Long value() { return metrics.deferrals(); }
+        });
+
+        registerLatency("Metrics", task + ":Timer", latency);
     }
 
 
-    // Update the number of times this task has been retried.
-    private static void updateTaskRetries(String task, int retries) {
-        MetricName counterRetriesName = new MetricName("Octobot", "Metrics", task + ":Retries");
-        Counter counterRetries = registry.newCounter(counterRetriesName);
-        counterRetries.inc();
+    // Publishes a histogram's count, and its mean, max and percentiles in ms,
+    // as gauges named for the prefix (e.g. "prefix:p99").
+    static void registerLatency(String type, String prefix, final LatencyHistogram latency) {
+        registry.newGauge(name(type, prefix, "count"), new Gauge<Long>() {
+            public Long value() { return latency.count(); }
+        });
+
+        registry.newGauge(name(type, prefix, "mean"), new Gauge<Double>() {
+            public Double value() { return latency.mean() / 1e6; }
+        });
+
+        registry.newGauge(name(type, prefix, "max"), new Gauge<Double>() {
+            public Double value() { return latency.max() / 1e6; }
+        });
+
+        registerPercentile(type, prefix, latency, "p50", 50);
+        registerPercentile(type, prefix, latency, "p99", 99);
+        registerPercentile(type, prefix, latency, "p999", 99.9);
     }
 
+    private static void registerPercentile(String type, String prefix,
+            final LatencyHistogram latency, String label, final double percentile) {
+        registry.newGauge(name(type, prefix, label), new Gauge<Double>() {
+            public Double value() { return latency.percentile(percentile) / 1e6; }
+        });
+    }
 
-    // Update the number of times this task has succeeded or failed.
-    private static void updateTaskResults(String task, boolean status) {
-        if (status == true) {
-            MetricName counterSuccessName = new MetricName("Octobot", "Metrics", task + ":Success");
-            Counter counterSuccess = registry.newCounter(counterSuccessName);
-            counterSuccess.inc();
-        } else {
-            MetricName counterFailureName = new MetricName("Octobot", "Metrics", task + ":Failure");
-            Counter counterFailure = registry.newCounter(counterFailureName);
-            counterFailure.inc();
-        }
+    private static MetricName name(String task, String metric) {
+        return name("Metrics", task, metric);
     }
-    
-}
 
+    static MetricName name(String type, String prefix, String metric) {
+        return new MetricName("Octobot", type, prefix + ":" + metric);
+    }
+
+}
@@ -1,7 +1,12 @@
 package com.urbanairship.octobot;
 
+import java.io.File;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.HashMap;
+import java.util.Map;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Set;
 import java.lang.reflect.Method;
 import java.lang.reflect.InvocationTargetException;
 
@@ -20,6 +25,16 @@ public class Octobot {
 
     private static final Logger logger = Logger.getLogger("Octobot");
 
+    // The pool shared by queues with the "shared" executor, once started.
+    private static FairScheduler sharedPool = null;
+
+    // The queues running, by name. Guarded by the class.
+    private static final Map<String, QueueRunner> running =
+        new LinkedHashMap<String, QueueRunner>();
+
+    // Held while reconfiguring, so that reloads are applied one at a time.
+    private static final Object reconfiguring = new Object();
+
     public static void main(String[] args) {
 
         // Initialize logging from a log4j configuration file.
@@ -39,6 +54,23 @@ public class Octobot {
         if (startupHook != null && !startupHook.equals(""))
             launchStartupHook(startupHook);
 
+        // Deploy tasks from the jars in task_dir, redeploying them as they change.
+        String taskDir = Settings.get("Octobot", "task_dir");
+        if (taskDir != null && !taskDir.equals("")) {
+            TaskDeployer deployer = new TaskDeployer(new File(taskDir),
+                Settings.getAsInt("Octobot", "task_dir_interval", 5));
+            deployer.scan();
+            new Thread(deployer, "Task Deployer").start();
+        }
+
+        // Bind any tasks listed in the config before messages arrive for them.
+        List<String> tasks = getTasks();
+        if (tasks != null) TaskExecutor.preload(tasks);
+
+        // Cap the share of workers any one task may take up.
+        List<Map<String, Object>> taskLimits = getTaskLimits();
+        if (taskLimits != null) TaskLimit.configure(taskLimits);
+
         // If a shutdown hook is configured, register it.
         String shutdownHook = Settings.get("Octobot", "shutdown_hook");
         if (shutdownHook != null && !shutdownHook.equals(""))
@@ -50,41 +82,35 @@ public class Octobot {
             new Thread(MailQueue.get(), "Email Queue").start();
         }
 
+        // Drain workers on shutdown, giving their tasks in flight time to finish.
+        Lifecycle.install(Settings.getAsInt("Octobot", "shutdown_timeout", 30));
+
         logger.info("Launching Introspector...");
         new Thread(new Introspector(), "Introspector").start();
         
         logger.info("Launching Workers...");
-        List<HashMap<String, Object>> queues = null;
-        try {
-            queues = getQueues();
-        } catch (NullPointerException e) {
+        List<Map<String, Object>> queues = getQueues();
+        if (queues == null) {
             logger.fatal("Error: No valid queues found in Settings. Exiting.");
             throw new Error("Error: No valid queues found in Settings. Exiting.");
         }
 
         // Start a thread for each queue Octobot is configured to listen on.
-        for (HashMap<String, Object> queueConf : queues) {
-
-            // Fetch the number of workers to spawn and their priority.
-            int numWorkers = Settings.getIntFromYML(queueConf.get("workers"), 1);
-            int priority = Settings.getIntFromYML(queueConf.get("priority"), 5);
-
-            Queue queue = new Queue(queueConf);
-
-            // Spawn worker threads for each queue in our configuration.
-            for (int i = 0; i < numWorkers; i++) {
-                QueueConsumer consumer = new QueueConsumer(queue);
-                Thread worker = new Thread(consumer, "Worker");
-
-                logger.info("Attempting to connect to " + queueConf.get("protocol") +
-                    " queue: " + queueConf.get("name") + " with priority " +
-                    priority + "/10 " + "(Worker " + (i+1) + "/" + numWorkers + ").");
-
-                worker.setPriority(priority);
-                worker.start();
+        synchronized (Octobot.class) {
+            for (Map<String, Object> queueConf : queues) {
+                QueueRunner runner = new QueueRunner(queueConf);
+                running.put(runner.name(), runner);
+                runner.start();
             }
         }
 
+        // Follow changes to the config file, checking every config_interval seconds.
+        int configInterval = Settings.getAsInt("Octobot", "config_interval", 5);
+        if (configInterval > 0) {
+            new Thread(new ConfigWatcher(Settings.path(), configInterval),
+                "Config Watcher").start();
+        }
+
         logger.info("Octobot ready to rock!");
     }
 
@@ -141,10 +167,134 @@ public class Octobot {
         }
     }
 
+    // Brings the running queues and task limits in line with the settings,
+    // once they've been reloaded. New queues are started, and those gone
+    // from the config drained. A queue whose entry changed has its workers
+    // updated in place where they can be, or else is drained and started
+    // anew, which leaves the others running meanwhile. Queues are drained
+    // in parallel, and without holding the lock.
+    public static void reconfigure() {
+        synchronized (reconfiguring) {
+            List<QueueRunner> stopping = new ArrayList<QueueRunner>();
+            List<QueueRunner> restarting = new ArrayList<QueueRunner>();
+            long timeout = Settings.getAsInt("Octobot", "shutdown_timeout", 30) * 1000L;
+
+            synchronized (Octobot.class) {
+                if (!Lifecycle.isRunning()) return;
+
+                List<String> tasks = getTasks();
+                if (tasks != null) TaskExecutor.preload(tasks);
+                TaskLimit.reconfigure(getTaskLimits());
+
+                List<Map<String, Object>> queues = getQueues();
+                if (queues == null) {
+                    logger.error("No valid queues found in the reloaded settings; " +
+                        "leaving queues as they are.");
+                    return;
+                }
+
+                Set<String> listed = new HashSet<String>();
+                for (Map<String, Object> queueConf : queues) {
+                    QueueRunner runner = new QueueRunner(queueConf);
+                    listed.add(runner.name());
+                    QueueRunner current = running.get(runner.name());
+
+                    if (current == null) {
+                        logger.info("Starting new queue " + runner.name() + ".");
+                        running.put(runner.name(), runner);
+                        runner.start();
+                    } else if (!current.config().equals(queueConf) && !current.update(queueConf)) {
+                        logger.info("Restarting queue " + runner.name() + " for its new settings.");
+                        running.put(runner.name(), runner);
+                        stopping.add(current);
+                        restarting.add(runner);
+                    }
+                }
+
+                for (String name : new HashSet<String>(running.keySet())) {
+                    if (listed.contains(name)) continue;
+                    logger.info("Stopping queue " + name + ", which is no longer configured.");
+                    stopping.add(running.remove(name));
+                }
+            }
+
+            stopAll(stopping, timeout);
+
+            synchronized (Octobot.class) {
+                if (!Lifecycle.isRunning()) return;
+                for (QueueRunner runner : restarting) runner.start();
+
+                // Close the connections of brokers no queue uses any more.
+                List<Queue> queues = new ArrayList<Queue>();
+                for (QueueRunner runner : running.values()) queues.add(runner.queue());
+                AMQPConnections.retain(queues);
+            }
+        }
+    }
+
+    // Drains runners in parallel, each from a thread of its own, and waits
+    // for them all.
+    private static void stopAll(List<QueueRunner> runners, final long timeout) {
+        List<Thread> stoppers = new ArrayList<Thread>();
+        for (final QueueRunner runner : runners) {
+            Thread stopper = new Thread(new Runnable() {
+                public void run() {
+                    if (!runner.stop(timeout))
+                        logger.warn("Not all of " + runner.name() + "'s consumers drained " +
+                            "in time; their unacknowledged messages will be redelivered.");
+                }
+            }, "Queue Stopper");
+            stopper.start();
+            stoppers.add(stopper);
+        }
+
+        for (Thread stopper : stoppers) {
+            try {
+                stopper.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    // Starts the shared pool on first use, sized by shared_pool_size.
+    static synchronized FairScheduler getSharedPool() {
+        if (sharedPool == null) {
+            int size = Settings.getAsInt("Octobot", "shared_pool_size", 16);
+            int starvationTimeout = Settings.getAsInt("Octobot", "starvation_timeout", 1000);
+            logger.info("Launching shared pool of " + size + " workers...");
+            sharedPool = new FairScheduler(size, starvationTimeout);
+        }
+
+        return sharedPool;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<String> getTasks() {
+        Map<String, Map<String, Object>> configuration = Settings.configuration;
+        if (configuration == null || configuration.get("Octobot") == null)
+            return null;
+
+        return (List<String>) configuration.get("Octobot").get("tasks");
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Map<String, Object>> getTaskLimits() {
+        Map<String, Map<String, Object>> configuration = Settings.configuration;
+        if (configuration == null || configuration.get("Octobot") == null)
+            return null;
+
+        return (List<Map<String, Object>>) configuration.get("Octobot").get("task_limits");
+    }
+
     @SuppressWarnings("unchecked")
-    private static List<HashMap<String, Object>> getQueues() {
-        return (List<HashMap<String, Object>>)
-            Settings.configuration.get("Octobot").get("queues");
+    private static List<Map<String, Object>> getQueues() {
+        Map<String, Map<String, Object>> configuration = Settings.configuration;
+        if (configuration == null || configuration.get("Octobot") == null)
+            return null;
+
+        return (List<Map<String, Object>>) configuration.get("Octobot").get("queues");
     }
 
 }
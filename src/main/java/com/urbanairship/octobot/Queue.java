@@ -1,6 +1,6 @@
 package com.urbanairship.octobot;
 
-import java.util.HashMap;
+import java.util.Map;
 
 public class Queue {
 
@@ -13,6 +13,84 @@ public class Queue {
     public String password;
     public String vhost;
 
+    // The number of inline workers to start with. When maxWorkers is above
+    // minWorkers, workers are added and drained between the two as load
+    // changes, checking every scaleInterval seconds.
+    public Integer workers = 1;
+    public Integer minWorkers = 1;
+    public Integer maxWorkers = 1;
+    public Integer scaleInterval = 10;
+
+    // Execution mode. "inline" runs each task on the thread that received it;
+    // "pool" runs a single receiver which hands messages to a bounded pool,
+    // and "virtual" does the same with a virtual thread per message.
+    // "shared" hands messages to a pool shared by all such queues, which
+    // grants its slots by weighted fair queuing on their priorities.
+    public String executor = "inline";
+    public Integer poolSize = 16;
+    public Integer maxInFlight = 32;
+
+    // AMQP flow control. Prefetch caps the unacknowledged messages RabbitMQ
+    // will push to each consumer (0 for no limit). Acks are sent in batches
+    // of up to ackBatchSize, each held for at most ackBatchDelay ms.
+    public Integer prefetch = 0;
+    public Integer ackBatchSize = 1;
+    public Integer ackBatchDelay = 100;
+
+    // The number of AMQP connections shared by workers on the same broker.
+    public Integer connections = 1;
+
+    // Redis delivery. "pubsub" subscribes to a channel; "list" consumes from
+    // a list as a reliable work queue, fetching up to fetchBatch messages at
+    // a time and requeueing those held by workers gone for reapInterval (s).
+    // Beanstalk workers also reserve up to fetchBatch jobs at a time.
+    public String redisMode = "pubsub";
+    public Integer fetchBatch = 1;
+    public Integer reapInterval = 30;
+
+    // Messages for tasks which declare runBatch are run in batches of up to
+    // batchSize, each waiting at most batchLinger ms to fill.
+    public Integer batchSize = 1;
+    public Integer batchLinger = 100;
+
+    // Failed tasks are retried after an exponential backoff, starting from
+    // retryDelay ms and doubling up to retryMaxDelay, so that the worker is
+    // free to take other messages meanwhile. A retryDelay of 0 retries each
+    // task immediately on the same worker.
+    public Integer retryDelay = 1000;
+    public Integer retryMaxDelay = 60000;
+
+    // How often (in seconds) to poll the broker for the queue's depth, for
+    // the Introspector. 0 disables polling.
+    public Integer depthInterval = 10;
+
+    // Local queues are memory-mapped files in a directory named for the
+    // queue under path, written in segments of segmentSize MB.
+    public String path = System.getProperty("java.io.tmpdir") + "/octobot";
+    public Integer segmentSize = 64;
+
+    // With dedup on, a message whose task has already completed is acked
+    // without running it again, if it is redelivered within dedupTtl
+    // seconds. Messages are told apart by their dedupField (or their whole
+    // body, without one), and up to dedupCapacity are remembered in memory;
+    // set dedupRedis ("host:port") to share them between Octobot instances.
+    public Boolean dedup = false;
+    public String dedupField = "id";
+    public Integer dedupTtl = 3600;
+    public Integer dedupCapacity = 100000;
+    public String dedupRedis = null;
+
+    // Where a transport has no reply queues, tasks' results are pushed onto
+    // a list in Redis at resultRedis ("host:port"), under the key a message
+    // names in its reply_to field, which expires after resultTtl seconds.
+    public String resultRedis = null;
+    public Integer resultTtl = 60;
+
+    // A TaskPublisher sends messages in batches of publishBatch, and holds
+    // at most publishWindow sent to AMQP and not yet confirmed.
+    public Integer publishBatch = 256;
+    public Integer publishWindow = 4096;
+
     public Queue(String queueType, String queueName, String host, Integer port,
         String username, String password) {
             this.queueType = queueType.toLowerCase();
@@ -31,7 +109,7 @@ public class Queue {
             this.port = port;
     }
 
-    public Queue(HashMap<String, Object> config) {
+    public Queue(Map<String, Object> config) {
         this.queueName = (String) config.get("name");
         this.queueType = ((String) config.get("protocol")).toLowerCase();
         this.host = (String) config.get("host");
@@ -41,6 +119,62 @@ public class Queue {
 
         if (config.get("port") != null)
             this.port = Integer.parseInt(((Long) config.get("port")).toString());
+
+        this.workers = Settings.getIntFromYML(config.get("workers"), workers);
+        this.minWorkers = Settings.getIntFromYML(config.get("min_workers"), workers);
+        this.maxWorkers = Settings.getIntFromYML(config.get("max_workers"), workers);
+        this.scaleInterval = Settings.getIntFromYML(config.get("scale_interval"), scaleInterval);
+
+        // Start within the bounds, however they were given.
+        if (maxWorkers < minWorkers) this.maxWorkers = minWorkers;
+        this.workers = Math.min(Math.max(workers, minWorkers), maxWorkers);
+
+        if (config.get("executor") != null)
+            this.executor = ((String) config.get("executor")).toLowerCase();
+
+        this.poolSize = Settings.getIntFromYML(config.get("pool_size"), poolSize);
+        this.maxInFlight = Settings.getIntFromYML(config.get("max_in_flight"), poolSize * 2);
+
+        this.prefetch = Settings.getIntFromYML(config.get("prefetch"), prefetch);
+        this.ackBatchSize = Settings.getIntFromYML(config.get("ack_batch_size"), ackBatchSize);
+        this.ackBatchDelay = Settings.getIntFromYML(config.get("ack_batch_delay"), ackBatchDelay);
+        this.connections = Settings.getIntFromYML(config.get("connections"), connections);
+
+        if (config.get("redis_mode") != null)
+            this.redisMode = ((String) config.get("redis_mode")).toLowerCase();
+
+        this.fetchBatch = Settings.getIntFromYML(config.get("fetch_batch"), fetchBatch);
+        this.reapInterval = Settings.getIntFromYML(config.get("reap_interval"), reapInterval);
+
+        this.batchSize = Settings.getIntFromYML(config.get("batch_size"), batchSize);
+        this.batchLinger = Settings.getIntFromYML(config.get("batch_linger"), batchLinger);
+
+        this.retryDelay = Settings.getIntFromYML(config.get("retry_delay"), retryDelay);
+        this.retryMaxDelay = Settings.getIntFromYML(config.get("retry_max_delay"), retryMaxDelay);
+        this.depthInterval = Settings.getIntFromYML(config.get("depth_interval"), depthInterval);
+
+        if (config.get("path") != null)
+            this.path = (String) config.get("path");
+        this.segmentSize = Settings.getIntFromYML(config.get("segment_size"), segmentSize);
+
+        if (config.get("dedup") != null)
+            this.dedup = (Boolean) config.get("dedup");
+        if (config.get("dedup_field") != null)
+            this.dedupField = (String) config.get("dedup_field");
+        this.dedupTtl = Settings.getIntFromYML(config.get("dedup_ttl"), dedupTtl);
+        this.dedupCapacity = Settings.getIntFromYML(config.get("dedup_capacity"), dedupCapacity);
+        this.dedupRedis = (String) config.get("dedup_redis");
+
+        this.resultRedis = (String) config.get("result_redis");
+        this.resultTtl = Settings.getIntFromYML(config.get("result_ttl"), resultTtl);
+
+        this.publishBatch = Settings.getIntFromYML(config.get("publish_batch"), publishBatch);
+        this.publishWindow = Settings.getIntFromYML(config.get("publish_window"), publishWindow);
+
+        // A batch larger than the prefetch window could never fill, as the
+        // broker would stop sending until some of it had been acked.
+        if (prefetch > 0 && ackBatchSize > prefetch)
+            this.ackBatchSize = prefetch;
     }
 
 
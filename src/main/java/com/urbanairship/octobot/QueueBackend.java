@@ -0,0 +1,78 @@
+package com.urbanairship.octobot;
+
+import java.io.IOException;
+import java.util.List;
+
+
+// A transport from which a QueueConsumer fetches messages and to which it
+// reports how they fared. The consumer owns everything else -- batching,
+// the worker pool, retries and metrics -- so that a backend need only move
+// messages. Backends are found through QueueBackendProvider, and each is
+// used by the single thread of the consumer which created it.
+//
+// A backend is created unconnected. Its connection errors surface as
+// IOExceptions, after which the consumer calls connect() again.
+
+public interface QueueBackend {
+
+    // Connects, or reconnects after an error, to the queue server, backing
+    // off while it's unavailable. Messages held over a lost connection may
+    // be redelivered.
+    void connect();
+
+    // Waits up to timeout ms for a message, then takes up to max - 1 more
+    // which are ready without waiting. Returns an empty list if none came.
+    List<Delivery> fetch(int max, long timeout) throws IOException;
+
+    // Records a message as handled, to be removed from the queue.
+    void ack(Delivery delivery) throws IOException;
+
+    // Records a message as failed for good, with no retries left.
+    void nack(Delivery delivery) throws IOException;
+
+    // Puts a message back on the queue to be retried after delay ms, and
+    // acks the original. Returns false if the queue can't delay messages,
+    // in which case the consumer holds the retry itself.
+    boolean reschedule(Delivery delivery, Envelope retry, long delay) throws IOException;
+
+    // Sends a task's result to the reply address a message named, without
+    // waiting for it to be delivered. Returns false if this transport has
+    // no way to reply, in which case the consumer stores it in Redis, if
+    // the queue has a result_redis.
+    boolean reply(Delivery delivery, String replyTo, String correlationId, byte[] result)
+        throws IOException;
+
+    // Sends any acks and nacks held back to be sent together.
+    void flush() throws IOException;
+
+    // Returns the number of messages waiting on the queue, or -1 if it
+    // can't be known. May be called on a backend which never connected.
+    long depth() throws IOException;
+
+    // Asks the server to stop delivering messages, ahead of a drain.
+    void cancel();
+
+    // Lets go of the connection. Messages fetched and not acked are left
+    // to the queue to redeliver.
+    void close();
+
+
+    // A message as fetched, with the connection it arrived on and the
+    // backend's handle on it (a delivery tag, job ID, or the item itself).
+    // Transports which carry reply addresses alongside messages set them.
+    public static class Delivery {
+        public final Object source;
+        public final Object handle;
+        public final byte[] body;
+
+        public String replyTo = null;
+        public String correlationId = null;
+
+        public Delivery(Object source, Object handle, byte[] body) {
+            this.source = source;
+            this.handle = handle;
+            this.body = body;
+        }
+    }
+
+}
@@ -0,0 +1,21 @@
+package com.urbanairship.octobot;
+
+
+// Creates QueueBackends for the queues it supports, and QueuePublishers to
+// send messages to them. Providers are found
+// with java.util.ServiceLoader: to add a transport, implement this with a
+// public no-argument constructor, and list the class in a jar's
+// META-INF/services/com.urbanairship.octobot.QueueBackendProvider.
+
+public interface QueueBackendProvider {
+
+    // Whether this provider serves the queue, by its protocol (and mode).
+    boolean supports(Queue queue);
+
+    // Returns a new, unconnected backend for the queue.
+    QueueBackend create(Queue queue);
+
+    // Returns a new, unconnected publisher for the queue.
+    QueuePublisher createPublisher(Queue queue);
+
+}
@@ -0,0 +1,56 @@
+package com.urbanairship.octobot;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.ServiceLoader;
+
+import org.apache.log4j.Logger;
+
+
+// Finds the backend for a queue among the QueueBackendProviders on the
+// classpath. Providers are loaded once, in classpath order, and the first
+// to support a queue serves it.
+
+public class QueueBackends {
+
+    private static final Logger logger = Logger.getLogger("Queue Backends");
+
+    private static List<QueueBackendProvider> providers = null;
+
+    // Returns a new, unconnected backend for the queue. Throws an
+    // IllegalArgumentException if no provider supports it.
+    public static QueueBackend create(Queue queue) {
+        for (QueueBackendProvider provider : providers())
+            if (provider.supports(queue)) return provider.create(queue);
+
+        throw new IllegalArgumentException("No backend for queue type: " + queue.queueType);
+    }
+
+    // Returns a new, unconnected publisher for the queue. Throws an
+    // IllegalArgumentException if no provider supports it.
+    public static QueuePublisher createPublisher(Queue queue) {
+        for (QueueBackendProvider provider : providers())
+            if (provider.supports(queue)) return provider.createPublisher(queue);
+
+        throw new IllegalArgumentException("No publisher for queue type: " + queue.queueType);
+    }
+
+    // Whether any provider supports the queue.
+    public static boolean supported(Queue queue) {
+        for (QueueBackendProvider provider : providers())
+            if (provider.supports(queue)) return true;
+        return false;
+    }
+
+    private static synchronized List<QueueBackendProvider> providers() {
+        if (providers != null) return providers;
+
+        providers = new ArrayList<QueueBackendProvider>();
+        for (QueueBackendProvider provider : ServiceLoader.load(QueueBackendProvider.class)) {
+            logger.debug("Found queue backend: " + provider.getClass().getName());
+            providers.add(provider);
+        }
+        return providers;
+    }
+
+}
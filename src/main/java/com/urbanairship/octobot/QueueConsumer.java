@@ -1,198 +1,505 @@
 package com.urbanairship.octobot;
 
-// AMQP Support
 import java.io.IOException;
-import com.rabbitmq.client.Channel;
-import com.rabbitmq.client.Connection;
-import com.rabbitmq.client.QueueingConsumer;
-
-// Beanstalk Support
-import com.surftools.BeanstalkClient.BeanstalkException;
-import com.surftools.BeanstalkClient.Job;
-import com.surftools.BeanstalkClientImpl.ClientImpl;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.ArrayList;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
-import org.json.simple.JSONObject;
-import org.json.simple.JSONValue;
 import org.apache.log4j.Logger;
-import redis.clients.jedis.Jedis;
-import redis.clients.jedis.JedisPubSub;
-import redis.clients.jedis.exceptions.JedisConnectionException;
+import org.json.simple.JSONValue;
 
 
 // This thread opens a streaming connection to a queue, which continually
 // pushes messages to Octobot queue workers. The tasks contained within these
 // messages are invoked, then acknowledged and removed from the queue.
+//
+// The connection itself is a QueueBackend, chosen for the queue's protocol
+// from those on the classpath; batching, the worker pool, retries and
+// metrics are the consumer's, and work the same whatever the transport.
+//
+// A message may ask for its task's result, naming a reply_to address in
+// its properties (AMQP) or as a field. Once the task has run, the result is
+// sent back as JSON (or as is, if the task returns bytes), just before the
+// message is acknowledged: over the backend, if it has reply queues, or
+// otherwise through the queue's ResultStore.
 
 public class QueueConsumer implements Runnable {
 
     Queue queue = null;
-    Channel channel = null;
-    Connection connection = null;
-    QueueingConsumer consumer = null;
+    QueueBackend backend = null;
+
+    // When set, messages for tasks which accept batches are collected here.
+    TaskBatcher<Receipt> batcher = null;
+
+    // When set, tasks are handed off to this pool rather than run inline.
+    TaskPool pool = null;
+
+    // Instruments shared by the workers on this queue.
+    QueueMetrics metrics = null;
+
+    // When set, failed tasks are retried after a delay from this backoff,
+    // rather than immediately. Retries held locally wait on the timer, as
+    // do messages put off by their task's limit.
+    Backoff retryBackoff = null;
+    TimerWheel<Receipt> retryTimer = null;
+
+    // When set, messages whose tasks have already completed are acked
+    // without running them again.
+    Deduplicator dedup = null;
+
+    // When set, results which the backend can't reply with are stored here.
+    ResultStore results = null;
+
+    // Set when asked to drain: the consumer stops taking messages, finishes
+    // those in flight, and exits.
+    private volatile boolean draining = false;
+
+    // Receipts for tasks which have finished running on the pool. These are
+    // acknowledged by the receiving thread, which owns the connection.
+    private final ConcurrentLinkedQueue<Receipt> completed =
+        new ConcurrentLinkedQueue<Receipt>();
+
+    // How long (in ms) the receiver waits on the queue or for a free worker
+    // before checking back in to acknowledge completed tasks.
+    private static final long POLL_INTERVAL = 100;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
 
     private final Logger logger = Logger.getLogger("Queue Consumer");
     private boolean enableEmailErrors = Settings.getAsBoolean("Octobot", "email_enabled");
 
     // Initialize the consumer with a queue object (AMQP, Beanstalk, or Redis).
     public QueueConsumer(Queue queue) {
+        this(queue, null);
+    }
+
+    // Initialize a receiver which hands tasks off to a pool of workers.
+    public QueueConsumer(Queue queue, TaskPool pool) {
         this.queue = queue;
+        this.pool = pool;
+
+        if (queue != null)
+            this.metrics = QueueMetrics.forQueue(queue.queueName);
+
+        if (queue != null && queue.batchSize > 1)
+            this.batcher = new TaskBatcher<Receipt>(queue.batchSize, queue.batchLinger);
+
+        if (queue != null && queue.retryDelay > 0)
+            this.retryBackoff = new Backoff(queue.retryDelay, queue.retryMaxDelay);
+
+        if (retryBackoff != null || TaskLimit.any())
+            this.retryTimer = new TimerWheel<Receipt>(POLL_INTERVAL, 1024);
+
+        if (queue != null && queue.dedup)
+            this.dedup = Deduplicator.forQueue(queue);
+
+        if (queue != null && queue.resultRedis != null)
+            this.results = new ResultStore(queue);
     }
 
     // Fire up the appropriate queue listener and begin invoking tasks!.
     public void run() {
-        if (queue.queueType.equals("amqp")) {
-            channel = getAMQPChannel(queue);
-            consumeFromAMQP();
-        } else if (queue.queueType.equals("beanstalk")) {
-            consumeFromBeanstalk();
-        } else if (queue.queueType.equals("redis")) {
-            consumeFromRedis();
-        } else {
+        try {
+            backend = QueueBackends.create(queue);
+        } catch (IllegalArgumentException e) {
             logger.error("Invalid queue type specified: " + queue.queueType);
+            return;
         }
+
+        backend.connect();
+        consume();
     }
 
 
-    // Attempts to register to receive streaming messages from RabbitMQ.
-    // In the event that RabbitMQ is unavailable the call to getChannel()
-    // will attempt to reconnect. If it fails, the loop simply repeats.
-    private void consumeFromAMQP() {
+    // Asks the consumer to stop taking messages. Tasks already running are
+    // finished and acknowledged before its thread exits.
+    public void drain() {
+        draining = true;
+    }
+
+    public boolean isDraining() {
+        return draining;
+    }
+
 
-        while (true) {
-            QueueingConsumer.Delivery task = null;
-            try { task = consumer.nextDelivery(); }
-            catch (Exception e){
-                logger.error("Error in AMQP connection; reconnecting.", e);
-                channel = getAMQPChannel(queue);
+    // Fetches messages from the queue and invokes their tasks, until asked
+    // to drain. Between fetches, we run whatever work has come due and
+    // acknowledge completed tasks. Should the connection fail, the backend
+    // reconnects, and the loop simply repeats.
+    private void consume() {
+        while (!draining) {
+            List<QueueBackend.Delivery> deliveries = null;
+            try {
+                checkIn();
+                long waitingSince = System.nanoTime();
+                deliveries = backend.fetch(queue.fetchBatch, POLL_INTERVAL);
+                metrics.idle(System.nanoTime() - waitingSince);
+            } catch (IOException e) {
+                logger.error("Error in " + queue.queueType + " connection; reconnecting.", e);
+                metrics.reconnected();
+                backend.connect();
                 continue;
             }
 
-            // If we've got a message, fetch the body and invoke the task.
-            // Then, send an acknowledgement back to RabbitMQ that we got it.
-            if (task != null && task.getBody() != null) {
-                invokeTask(new String(task.getBody()));
-                try { channel.basicAck(task.getEnvelope().getDeliveryTag(), false); }
-                catch (IOException e) { logger.error("Error ack'ing message.", e); }
+            for (QueueBackend.Delivery delivery : deliveries)
+                handle(delivery.body, new Receipt(delivery));
+        }
+
+        finish();
+    }
+
+
+    // Finishes up once draining: runs any batches still collecting, waits
+    // for tasks in flight on the pool, acknowledges all which completed, and
+    // lets go of the connection. Messages received but never started are
+    // left to the queue to redeliver.
+    private void finish() {
+        logger.info("Draining worker on " + queue.queueName + "...");
+        backend.cancel();
+
+        if (batcher != null)
+            for (TaskBatcher.Batch<Receipt> batch : batcher.drain())
+                runBatch(batch);
+
+        if (pool != null) {
+            while (pool.inFlight() > 0) {
+                acknowledgeCompleted();
+                try { Thread.sleep(POLL_INTERVAL / 10); }
+                catch (InterruptedException e) { break; }
             }
+            pool.shutdown();
         }
+
+        acknowledgeCompleted();
+
+        if (retryTimer != null && retryTimer.size() > 0)
+            logger.warn("Abandoning " + retryTimer.size() + " retries waiting on " +
+                queue.queueName + ".");
+
+        try {
+            backend.close();
+            if (results != null) results.close();
+        } catch (Exception e) {
+            logger.error("Error releasing connection while draining.", e);
+        }
+
+        logger.info("Worker on " + queue.queueName + " drained.");
     }
 
 
-    // Attempt to register to receive messages from Beanstalk and invoke tasks.
-    private void consumeFromBeanstalk() {
-        ClientImpl beanstalkClient = new ClientImpl(queue.host, queue.port);
-        beanstalkClient.watch(queue.queueName);
-        beanstalkClient.useTube(queue.queueName);
-        logger.info("Connected to Beanstalk; waiting for jobs.");
-
-        while (true) {
-            Job job = null;
-            try { job = beanstalkClient.reserve(1); }
-            catch (BeanstalkException e) {
-                logger.error("Beanstalk connection error.", e);
-                beanstalkClient = Beanstalk.getBeanstalkChannel(queue.host, 
-                        queue.port, queue.queueName);
-                continue;
+    // Handles a message received from the queue. Invalid messages are
+    // logged, and acknowledged so that they aren't redelivered, as are
+    // redeliveries of messages which have already completed.
+    private void handle(byte[] message, Receipt receipt) {
+        metrics.received(receipt != null);
+
+        Envelope envelope = null;
+        try {
+            envelope = Envelope.parse(message);
+        } catch (IllegalArgumentException e) {
+            logger.error("Error: Invalid message received: " + new String(message, UTF8));
+            if (receipt != null) {
+                receipt.failed = true;
+                completed.add(receipt);
             }
+            return;
+        }
 
-            if (job != null) {
-                String message = new String(job.getData());
+        if (dedup != null && receipt != null) {
+            receipt.key = dedup.keyOf(envelope);
+            if (dedup.completed(receipt.key)) {
+                logger.info("Skipping duplicate message for " + envelope.task + ".");
+                metrics.duplicate();
+                completed.add(receipt);
+                return;
+            }
+        }
+
+        handle(envelope, receipt);
+    }
 
-                try { invokeTask(message); }
-                catch (Exception e) { logger.error("Error handling message.", e); }
 
-                try { beanstalkClient.delete(job.getJobId()); }
-                catch (BeanstalkException e) {
-                    logger.error("Error sending message receipt.", e);
-                    beanstalkClient = Beanstalk.getBeanstalkChannel(queue.host, 
-                        queue.port, queue.queueName);
+    // Messages for tasks which accept batches are collected into one; the
+    // rest are run on their own, inline or on the pool. The receipt is
+    // queued once the task has run, marked with any retry it needs.
+    // Messages over their task's limit are put off, and run later.
+    private void handle(final Envelope envelope, final Receipt receipt) {
+        if (receipt != null && !admit(envelope, receipt)) return;
+
+        if (batcher != null && TaskExecutor.acceptsBatches(envelope.task)) {
+            TaskBatcher.Batch<Receipt> batch = batcher.add(envelope, receipt);
+            if (batch != null) runBatch(batch);
+            return;
+        }
+
+        Runnable task = new Runnable() {
+            public void run() {
+                long startedAt = System.nanoTime();
+                try {
+                    if (invokeTask(envelope, receipt) && dedup != null && receipt != null)
+                        dedup.complete(receipt.key);
+                } finally {
+                    metrics.busy(System.nanoTime() - startedAt);
+                    if (receipt != null) {
+                        receipt.release();
+                        completed.add(receipt);
+                    }
                 }
             }
+        };
+
+        if (pool == null) task.run();
+        else dispatch(task);
+    }
+
+
+    // Runs a batch of messages for a task, then queues each of their receipts.
+    private void runBatch(final TaskBatcher.Batch<Receipt> batch) {
+        Runnable task = new Runnable() {
+            public void run() {
+                long startedAt = System.nanoTime();
+                try {
+                    boolean[] succeeded = invokeBatch(batch.task, batch.envelopes, batch.receipts);
+                    if (dedup != null) {
+                        for (int i = 0; i < succeeded.length; i++) {
+                            Receipt receipt = batch.receipts.get(i);
+                            if (succeeded[i] && receipt != null) dedup.complete(receipt.key);
+                        }
+                    }
+                } finally {
+                    metrics.busy(System.nanoTime() - startedAt);
+                    for (Receipt receipt : batch.receipts) {
+                        if (receipt == null) continue;
+                        receipt.release();
+                        completed.add(receipt);
+                    }
+                }
+            }
+        };
+
+        if (pool == null) task.run();
+        else dispatch(task);
+    }
+
+
+    // Takes a slot for a message under its task's limit, if it has one.
+    // Otherwise, marks its receipt to run it again once the limit allows,
+    // and queues the receipt to be rescheduled.
+    private boolean admit(Envelope envelope, Receipt receipt) {
+        TaskLimit limit = TaskLimit.forTask(envelope.task);
+        if (limit == null) return true;
+
+        long wait = limit.acquire();
+        if (wait == 0) {
+            receipt.limit = limit;
+            return true;
         }
+
+        Metrics.forTask(envelope.task).deferred();
+        receipt.retry = envelope;
+        receipt.delay = wait;
+        completed.add(receipt);
+        return false;
+    }
+
+
+    // Runs any batches which have waited out their linger time unfilled.
+    private void runExpiredBatches() {
+        if (batcher == null) return;
+        for (TaskBatcher.Batch<Receipt> batch : batcher.expired())
+            runBatch(batch);
     }
 
 
-    private void consumeFromRedis() {
-        logger.info("Connecting to Redis...");
-        Jedis jedis = new Jedis(queue.host, queue.port);
+    // Runs any retries held on the local timer which have come due.
+    private void runDueRetries() {
+        if (retryTimer == null) return;
+        for (Receipt receipt : retryTimer.expire()) {
+            Envelope envelope = receipt.retry;
+            receipt.retry = null;
+            handle(envelope, receipt);
+        }
+    }
+
+
+    // Called from the fetch loop between messages: runs whatever work has
+    // come due, then acknowledges completed tasks.
+    private void checkIn() {
+        runExpiredBatches();
+        runDueRetries();
+        acknowledgeCompleted();
+    }
+
+
+    // Hands a task off to the worker pool. While waiting for a free slot,
+    // we keep acknowledging completed tasks so that the queue keeps moving.
+    private void dispatch(Runnable task) {
         try {
-            jedis.connect();
-        } catch (JedisConnectionException e) {
-            logger.error("Unable to connect to Redis.", e);
+            while (!pool.submit(task, POLL_INTERVAL, TimeUnit.MILLISECONDS))
+                acknowledgeCompleted();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
-        
-        logger.info("Connected to Redis.");
+    }
 
-        jedis.subscribe(new JedisPubSub() {
-            @Override
-    	    public void onMessage(String channel, String message) {
-    		    invokeTask(message);
-    	    }
 
-            @Override
-            public void onPMessage(String string, String string1, String string2) {
-                logger.info("onPMessage Triggered - Not implemented.");
-            }
+    // Reports the outcome of messages whose tasks have run to the backend,
+    // which acknowledges, deletes or removes them, and flushes any which it
+    // holds back to send together. Failed messages with retries left are
+    // rescheduled on the queue if it can delay them, or otherwise held on
+    // the local timer, with the original unacknowledged until the retry
+    // has run.
+    private void acknowledgeCompleted() {
+        Receipt receipt = null;
+        while ((receipt = completed.poll()) != null) {
+            if (receipt.result != null) reply(receipt);
 
-            @Override
-            public void onSubscribe(String string, int i) {
-                logger.info("onSubscribe called - Not implemented.");
+            try {
+                if (receipt.retry == null) {
+                    if (receipt.failed) backend.nack(receipt.delivery);
+                    else backend.ack(receipt.delivery);
+                } else if (!backend.reschedule(receipt.delivery, receipt.retry, receipt.delay)) {
+                    // Task limits added by a reload may need a timer we didn't start with.
+                    if (retryTimer == null)
+                        retryTimer = new TimerWheel<Receipt>(POLL_INTERVAL, 1024);
+                    retryTimer.schedule(receipt, receipt.delay);
+                    continue;
+                }
+            } catch (IOException e) {
+                logger.error("Error acknowledging message.", e);
             }
 
-            @Override
-            public void onUnsubscribe(String string, int i) {
-                logger.info("onUnsubscribe Called - Not implemented.");
-            }
+            metrics.acknowledged(receipt.receivedAt);
+        }
 
-            @Override
-            public void onPUnsubscribe(String string, int i) {
-                logger.info("onPUnsubscribe called - Not implemented.");
-            }
+        if (results != null) results.flush();
 
-            @Override
-            public void onPSubscribe(String string, int i) {
-                logger.info("onPSubscribe Triggered - Not implemented.");
-            }
-	    }, queue.queueName);
+        // Unflushed acknowledgements are kept, and retried after the next fetch.
+        try { backend.flush(); }
+        catch (IOException e) { logger.error("Error acknowledging messages.", e); }
+    }
+
+
+    // Sends a task's result to the address its message asked for it at.
+    private void reply(Receipt receipt) {
+        try {
+            if (backend.reply(receipt.delivery, receipt.replyTo,
+                    receipt.correlationId, receipt.result))
+                return;
+        } catch (IOException e) {
+            logger.error("Error sending a result to " + receipt.replyTo + ".", e);
+            return;
+        }
+
+        if (results != null) results.add(receipt.replyTo, receipt.result);
+        else logger.warn("Unable to send a result to " + receipt.replyTo + ": " +
+            queue.queueType + " queues need a result_redis to reply.");
+    }
+
+
+    // Marks a receipt with a task's result, if its message asked for one.
+    private void setResult(Envelope envelope, Receipt receipt, Object result) {
+        String replyTo = receipt.delivery.replyTo;
+        String correlationId = receipt.delivery.correlationId;
+
+        if (replyTo == null && results != null) {
+            replyTo = envelope.field("reply_to");
+            correlationId = envelope.field("correlation_id");
+        }
+
+        if (replyTo == null) return;
+        receipt.replyTo = replyTo;
+        receipt.correlationId = correlationId;
+        receipt.result = (result instanceof byte[]) ? (byte[]) result :
+            JSONValue.toJSONString(result).getBytes(UTF8);
+    }
+
+
+    // Identifies a received message to the backend it arrived from. A failed
+    // (or deferred) message's receipt carries the retry to schedule for it,
+    // or marks it as failed for good.
+    private static class Receipt {
+        final QueueBackend.Delivery delivery;
+
+        final long receivedAt = System.nanoTime();
+
+        Envelope retry = null;
+        long delay = 0;
+
+        // Set if the message failed for good, having run out of retries.
+        boolean failed = false;
+
+        // Identifies the message to the deduplicator, if there is one.
+        long key = 0;
+
+        // The limit the message holds a slot under while it runs, if any.
+        TaskLimit limit = null;
+
+        // The task's result, to send to replyTo, if its message asked.
+        byte[] result = null;
+        String replyTo = null;
+        String correlationId = null;
+
+        Receipt(QueueBackend.Delivery delivery) {
+            this.delivery = delivery;
+        }
 
+        void release() {
+            if (limit != null) limit.release();
+            limit = null;
+        }
     }
 
 
-// Invokes a task based on the name of the task passed in the message via
-// reflection, accounting for non-existent tasks and errors while running.
 public boolean invokeTask(String rawMessage) {
-    String taskName = "";
-    JSONObject message;
-    int retryCount = 0;
-    long retryTimes = 0;
+    return invokeTask(rawMessage.getBytes(UTF8));
+}
+
+public boolean invokeTask(byte[] rawMessage) {
+    Envelope envelope = null;
+
+    try {
+        envelope = Envelope.parse(rawMessage);
+    } catch (Exception e) {
+        logger.error("Error: Invalid message received: " + new String(rawMessage, UTF8));
+        return false;
+    }
+
+    return invokeTask(envelope, null);
+}
+
+// Invokes a task based on the name of the task passed in the message,
+// accounting for non-existent tasks and errors while running. If retries
+// are delayed and there's a receipt to carry it, a failed task's retry is
+// marked on the receipt to be scheduled; otherwise it's retried at once.
+boolean invokeTask(Envelope envelope, Receipt receipt) {
+    int retryCount = (int) envelope.retried;
+    boolean retryLater = (receipt != null && retryBackoff != null);
 
     long startedAt = System.nanoTime();
     String errorMessage = null;
     Throwable lastException = null;
     boolean executedSuccessfully = false;
 
+    String taskName = envelope.task;
+    long retryTimes = envelope.retries;
+
     while (retryCount < retryTimes + 1) {
         if (retryCount > 0)
             logger.info("Retrying task. Attempt " + retryCount + " of " + retryTimes);
 
-        try {
-            message = (JSONObject) JSONValue.parse(rawMessage);
-            taskName = (String) message.get("task");
-            if (message.containsKey("retries"))
-                retryTimes = (Long) message.get("retries");
-        } catch (Exception e) {
-            logger.error("Error: Invalid message received: " + rawMessage);
-            return executedSuccessfully;
-        }
-
         // Locate the task, then invoke it, supplying our message.
-        // Cache methods after lookup to avoid unnecessary reflection lookups.
+        // Tasks are bound on first lookup, so repeat calls skip reflection.
         try {
 
-            TaskExecutor.execute(taskName, message);
+            Object result = TaskExecutor.execute(envelope);
             executedSuccessfully = true;
+            if (receipt != null) setResult(envelope, receipt, result);
 
         } catch (ClassNotFoundException e) {
             lastException = e;
@@ -214,19 +521,22 @@ public boolean invokeTask(String rawMessage) {
         
         if (executedSuccessfully) break;
         else retryCount++;
+
+        if (retryLater && retryCount < retryTimes + 1) {
+            receipt.retry = envelope.retried(retryCount);
+            receipt.delay = retryBackoff.delayFor(retryCount - 1);
+            logger.info("Retrying task in " + receipt.delay + " ms.");
+            return false;
+        }
     }
 
-    // Deliver an e-mail error notification if enabled.
-    if (enableEmailErrors && !executedSuccessfully) {
-        String email = "Error running task: " + taskName + ".\n\n"
-            + "Attempted executing " + retryCount + " times as specified.\n\n"
-            + "The original input was: \n\n" + rawMessage + "\n\n"
-            + "Here's the error that resulted while running the task:\n\n"
-            + stackToString(lastException);
+    // Report the failure for an e-mail notification if enabled. This never
+    // blocks; the mail thread builds and sends the e-mail.
+    if (enableEmailErrors && !executedSuccessfully)
+        MailQueue.report(taskName, "Attempted executing " + retryCount + " times as specified.",
+            envelope.toString(), lastException);
 
-        try { MailQueue.put(email); }
-        catch (InterruptedException e) { }
-    }
+    if (receipt != null && !executedSuccessfully) receipt.failed = true;
 
     long finishedAt = System.nanoTime();
     Metrics.update(taskName, finishedAt - startedAt, executedSuccessfully, retryCount);
@@ -234,31 +544,92 @@ public boolean invokeTask(String rawMessage) {
     return executedSuccessfully;
 }
 
-    // Opens up a connection to RabbitMQ, retrying every five seconds
-    // if the queue server is unavailable.
-    private Channel getAMQPChannel(Queue queue) {
-        int attempts = 0;
-        logger.info("Opening connection to AMQP " + queue.vhost + " "  + queue.queueName + "...");
 
-        while (true) {
-            attempts++;
-            logger.debug("Attempt #" + attempts);
+    public boolean[] invokeBatch(String taskName, List<Envelope> envelopes) {
+        return invokeBatch(taskName, envelopes, null);
+    }
+
+    // Runs a batch of messages for a task through its runBatch method. Any
+    // which fail are retried, each up to its own retry count: later, marked
+    // on their receipts, if retries are delayed, or otherwise together, at
+    // once. Returns whether each message succeeded.
+    boolean[] invokeBatch(String taskName, List<Envelope> envelopes, List<Receipt> receipts) {
+        int size = envelopes.size();
+        boolean[] succeeded = new boolean[size];
+        boolean[] deferred = new boolean[size];
+        int[] attempts = new int[size];
+        for (int i = 0; i < size; i++) attempts[i] = (int) envelopes.get(i).retried;
+
+        long startedAt = System.nanoTime();
+        Throwable lastException = null;
+
+        List<Integer> pending = new ArrayList<Integer>(size);
+        for (int i = 0; i < size; i++) pending.add(i);
+
+        while (!pending.isEmpty()) {
+            List<Envelope> batch = new ArrayList<Envelope>(pending.size());
+            for (int i : pending) batch.add(envelopes.get(i));
+
+            if (attempts[pending.get(0)] > 0)
+                logger.info("Retrying " + batch.size() + " failed messages for " + taskName);
+
+            boolean[] results = null;
             try {
-                connection = new RabbitMQ(queue).getConnection();
-                channel = connection.createChannel();
-                consumer = new QueueingConsumer(channel);
-                channel.exchangeDeclare(queue.queueName, "direct", true);
-                channel.queueDeclare(queue.queueName, true, false, false, null);
-                channel.queueBind(queue.queueName, queue.queueName, queue.queueName);
-                channel.basicConsume(queue.queueName, false, consumer);
-                logger.info("Connected to RabbitMQ");
-                return channel;
-            } catch (Exception e) {
-                logger.error("Cannot connect to AMQP. Retrying in 5 sec.", e);
-                try { Thread.sleep(1000 * 5); }
-                catch (InterruptedException ex) { }
+                results = TaskExecutor.executeBatch(taskName, batch);
+            } catch (Throwable e) {
+                lastException = e;
+                results = new boolean[batch.size()];
+                logger.error("An error occurred while running a batch of " +
+                    batch.size() + " messages for " + taskName + ".", e);
+            }
+
+            List<Integer> retry = new ArrayList<Integer>();
+            for (int j = 0; j < results.length; j++) {
+                int i = pending.get(j);
+                if (results[j]) succeeded[i] = true;
+                else if (attempts[i]++ < envelopes.get(i).retries) retry.add(i);
+            }
+
+            // Hand off those retries which can be scheduled for later.
+            if (retryBackoff != null && receipts != null) {
+                for (int i : retry) {
+                    Receipt receipt = receipts.get(i);
+                    if (receipt == null) continue;
+                    receipt.retry = envelopes.get(i).retried(attempts[i]);
+                    receipt.delay = retryBackoff.delayFor(attempts[i] - 1);
+                    deferred[i] = true;
+                }
+                List<Integer> remaining = new ArrayList<Integer>();
+                for (int i : retry) if (!deferred[i]) remaining.add(i);
+                retry = remaining;
+            }
+
+            pending = retry;
+        }
+
+        // Attribute an even share of the batch's running time to each message.
+        long elapsed = (System.nanoTime() - startedAt) / size;
+        int failures = 0;
+        Envelope failed = null;
+
+        for (int i = 0; i < size; i++) {
+            if (deferred[i]) continue;
+            Metrics.update(taskName, elapsed, succeeded[i], attempts[i]);
+            if (!succeeded[i]) {
+                if (receipts != null && receipts.get(i) != null) receipts.get(i).failed = true;
+                failures++;
+                if (failed == null) failed = envelopes.get(i);
             }
         }
+
+        // Report a single failure for the batch if enabled, with its first
+        // failed input and the last error.
+        if (enableEmailErrors && failures > 0)
+            MailQueue.report(taskName, failures + " of " + size + " messages in a batch " +
+                "failed, after retrying each as many times as specified.",
+                failed.toString(), lastException);
+
+        return succeeded;
     }
 
     // Converts a stacktrace from task invocation to a string for error logging.
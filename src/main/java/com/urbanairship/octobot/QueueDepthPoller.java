@@ -0,0 +1,73 @@
+package com.urbanairship.octobot;
+
+import org.apache.log4j.Logger;
+
+// Periodically asks the broker how many messages are waiting on a queue,
+// publishing the answer as the queue's Depth metric. The question is put
+// to the queue's backend: RabbitMQ is asked with a passive declare,
+// Beanstalk with stats-tube, and Redis lists with LLEN. Redis pub/sub
+// channels hold nothing, so have no depth to poll.
+//
+// The poller keeps a backend of its own, replaced on the next poll after
+// an error, so it never contends with the consumers for their connections.
+// Each poll connects in a single attempt rather than retrying until the
+// broker is back, so interrupting the poller's thread stops it even while
+// the broker is down.
+
+public class QueueDepthPoller implements Runnable {
+
+    private static final Logger logger = Logger.getLogger("Queue Depth Poller");
+
+    private final Queue queue;
+    private final QueueMetrics metrics;
+
+    private QueueBackend backend = null;
+
+    public QueueDepthPoller(Queue queue) {
+        this.queue = queue;
+        this.metrics = QueueMetrics.forQueue(queue.queueName);
+    }
+
+    public void run() {
+        while (true) {
+            try {
+                if (backend == null) backend = QueueBackends.create(queue);
+                long depth = backend.depth();
+                metrics.setDepth(depth);
+                if (depth < 0) {
+                    logger.info("The depth of " + queue.queueName + " can't be polled.");
+                    backend.close();
+                    return;
+                }
+            } catch (Exception e) {
+                logger.warn("Unable to poll the depth of " + queue.queueName + ".", e);
+                metrics.setDepth(-1);
+                disconnect();
+            }
+
+            try { Thread.sleep(queue.depthInterval * 1000L); }
+            catch (InterruptedException e) {
+                disconnect();
+                return;
+            }
+        }
+    }
+
+    private void disconnect() {
+        try {
+            if (backend != null) backend.close();
+        } catch (Exception e) {
+            logger.debug("Error disconnecting depth poller.", e);
+        }
+
+        backend = null;
+    }
+
+    // Whether a queue has a depth which can be polled.
+    public static boolean pollable(Queue queue) {
+        if (queue.depthInterval < 1) return false;
+        if (queue.queueType.equals("redis")) return queue.redisMode.equals("list");
+        return QueueBackends.supported(queue);
+    }
+
+}
@@ -0,0 +1,152 @@
+package com.urbanairship.octobot;
+
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Meter;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Instruments shared by the workers consuming from a queue: the rate at
+// which messages are received and acknowledged, and skipped as duplicates,
+// how long each takes from receipt to acknowledgement, how many are in
+// flight, how workers split their time between waiting on the queue and
+// running tasks, reconnects, and the broker's depth as last polled.
+// Published to the Introspector as "queue:Metric" under Octobot.Queues.
+
+public class QueueMetrics {
+
+    private static final ConcurrentHashMap<String, QueueMetrics> queues =
+        new ConcurrentHashMap<String, QueueMetrics>();
+
+    private final Meter received;
+    private final Meter acknowledged;
+    private final Meter duplicates;
+    private final LatencyHistogram ackLatency = new LatencyHistogram();
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final LongAdder idle = new LongAdder();
+    private final LongAdder busy = new LongAdder();
+    private final LongAdder reconnects = new LongAdder();
+
+    // The number of messages waiting on the broker, or -1 if unknown.
+    private volatile long depth = -1;
+
+    private QueueMetrics(String queue) {
+        received = Metrics.registry.newMeter(Metrics.name("Queues", queue, "Received"),
+            "messages", TimeUnit.SECONDS);
+        acknowledged = Metrics.registry.newMeter(Metrics.name("Queues", queue, "Acknowledged"),
+            "messages", TimeUnit.SECONDS);
+        duplicates = Metrics.registry.newMeter(Metrics.name("Queues", queue, "Duplicates"),
+            "messages", TimeUnit.SECONDS);
+    }
+
+    // Returns a queue's instruments, creating and registering them if new.
+    public static QueueMetrics forQueue(String queue) {
+        QueueMetrics metrics = queues.get(queue);
+        if (metrics != null) return metrics;
+
+        metrics = new QueueMetrics(queue);
+        QueueMetrics existing = queues.putIfAbsent(queue, metrics);
+        if (existing != null) return existing;
+
+        metrics.register(queue);
+        return metrics;
+    }
+
+    private void register(String queue) {
+        Metrics.registry.newGauge(Metrics.name("Queues", queue, "InFlight"), new Gauge<Integer>() {
+            public Integer value() { return inFlight.get(); }
+        });
+
+        Metrics.registry.newGauge(Metrics.name("Queues", queue, "Depth"), new Gauge<Long>() {
+            public Long value() { return depth; }
+        });
+
+        Metrics.registry.newGauge(Metrics.name("Queues", queue, "Reconnects"), new Gauge<Long>() {
+            public Long value() { return reconnects.sum(); }
+        });
+
+        Metrics.registry.newGauge(Metrics.name("Queues", queue, "IdleTime"), new Gauge<Long>() {
+            public Long value() { return idle.sum() / 1000000; }
+        });
+
+        Metrics.registry.newGauge(Metrics.name("Queues", queue, "BusyTime"), new Gauge<Long>() {
+            public Long value() { return busy.sum() / 1000000; }
+        });
+
+        // The share of worker time spent running tasks rather than waiting.
+        Metrics.registry.newGauge(Metrics.name("Queues", queue, "Utilization"),
+            new Gauge<Double>() {
+                public Double value() { return utilization(); }
+            });
+
+        Metrics.registerLatency("Queues", queue + ":AckLatency", ackLatency);
+    }
+
+    // Records a message received, and if it's to be acknowledged, in flight.
+    public void received(boolean tracked) {
+        received.mark();
+        if (tracked) inFlight.incrementAndGet();
+    }
+
+    // Records a message as acknowledged, receivedAt ns (from nanoTime).
+    public void acknowledged(long receivedAt) {
+        acknowledged.mark();
+        inFlight.decrementAndGet();
+        ackLatency.record(System.nanoTime() - receivedAt);
+    }
+
+    // Records a redelivered message skipped as already completed.
+    public void duplicate() {
+        duplicates.mark();
+    }
+
+    // Records time (in ns) spent waiting on the queue for messages.
+    public void idle(long time) {
+        idle.add(time);
+    }
+
+    // Records time (in ns) spent running tasks.
+    public void busy(long time) {
+        busy.add(time);
+    }
+
+    public void reconnected() {
+        reconnects.increment();
+    }
+
+    public void setDepth(long depth) {
+        this.depth = depth;
+    }
+
+    public int inFlight() {
+        return inFlight.get();
+    }
+
+    public long depth() {
+        return depth;
+    }
+
+    public long reconnects() {
+        return reconnects.sum();
+    }
+
+    // Returns the total time (in ns) spent waiting on the queue.
+    public long idleTime() {
+        return idle.sum();
+    }
+
+    // Returns the total time (in ns) spent running tasks.
+    public long busyTime() {
+        return busy.sum();
+    }
+
+    public double utilization() {
+        long busyTime = busy.sum();
+        long total = busyTime + idle.sum();
+        return total == 0 ? 0 : (double) busyTime / total;
+    }
+
+}
@@ -0,0 +1,32 @@
+package com.urbanairship.octobot;
+
+import java.io.IOException;
+import java.util.List;
+
+
+// A transport onto which a TaskPublisher sends messages, created by the
+// QueueBackendProvider serving the queue. Messages are sent a batch at a
+// time without waiting on each, and flush() waits until the server has
+// taken every one sent. A publisher is used by one thread at a time.
+//
+// A publisher is created unconnected. Its connection errors surface as
+// IOExceptions, after which the TaskPublisher calls connect() again and
+// resends the batch; messages sent over a lost connection may arrive twice.
+
+public interface QueuePublisher {
+
+    // Connects, or reconnects after an error, to the queue server, backing
+    // off while it's unavailable.
+    void connect();
+
+    // Sends a batch of messages. The list is the caller's, to reuse once
+    // this returns.
+    void send(List<byte[]> messages) throws IOException;
+
+    // Waits until the server has taken every message sent.
+    void flush() throws IOException;
+
+    // Lets go of the connection. Call flush() first.
+    void close();
+
+}
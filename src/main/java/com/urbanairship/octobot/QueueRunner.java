@@ -0,0 +1,188 @@
+package com.urbanairship.octobot;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+
+// Runs a queue from its entry in the config: its workers (inline, under a
+// WorkerScaler), or a receiver feeding its pool, and its depth poller.
+//
+// When the config is reloaded, a queue whose entry changed only in the
+// settings listed below for its executor is updated in place. Any other
+// change to the entry calls for a new runner: Octobot drains this one's
+// consumers, which finish and acknowledge the tasks they hold, and starts
+// the new one once they have.
+
+public class QueueRunner {
+
+    private static final Logger logger = Logger.getLogger("Queue Runner");
+
+    // Settings which can change while the queue runs, by executor.
+    private static final Set<String> INLINE_SETTINGS = new HashSet<String>(
+        Arrays.asList("workers", "min_workers", "max_workers", "scale_interval", "priority"));
+    private static final Set<String> POOL_SETTINGS = new HashSet<String>(
+        Arrays.asList("pool_size"));
+
+    private Map<String, Object> config;
+    private final Queue queue;
+    private final int priority;
+
+    private Thread poller = null;
+    private WorkerScaler scaler = null;
+    private Thread scalerThread = null;
+    private TaskPool pool = null;
+    private QueueConsumer consumer = null;
+    private Thread receiver = null;
+
+    public QueueRunner(Map<String, Object> config) {
+        this.config = config;
+        this.queue = new Queue(config);
+        this.priority = Settings.getIntFromYML(config.get("priority"), 5);
+    }
+
+    public String name() {
+        return queue.queueName;
+    }
+
+    public Map<String, Object> config() {
+        return config;
+    }
+
+    public Queue queue() {
+        return queue;
+    }
+
+    public synchronized void start() {
+        // Poll the broker for the queue's depth, for the Introspector.
+        if (QueueDepthPoller.pollable(queue)) {
+            poller = new Thread(new QueueDepthPoller(queue), "Depth Poller");
+            poller.start();
+        }
+
+        // In pool mode, a single receiver feeds a bounded pool of workers
+        // rather than each worker holding a connection of its own. Virtual
+        // mode is the same, but runs each task on a virtual thread.
+        String workers = null;
+        if (queue.executor.equals("pool")) {
+            pool = new WorkerPool(queue.queueName, queue.poolSize,
+                queue.maxInFlight, priority);
+            workers = queue.poolSize + " pooled workers";
+        } else if (queue.executor.equals("virtual")) {
+            pool = WorkerPool.virtual(queue.queueName, queue.maxInFlight);
+            workers = "virtual workers";
+        } else if (queue.executor.equals("shared")) {
+            pool = Octobot.getSharedPool().lane(queue.queueName, priority, queue.maxInFlight);
+            workers = "shared workers, weight " + priority;
+        }
+
+        if (pool != null) {
+            consumer = new QueueConsumer(queue, pool);
+            receiver = new Thread(consumer, "Receiver");
+            Lifecycle.register(consumer, receiver);
+
+            logger.info("Attempting to connect to " + config.get("protocol") +
+                " queue: " + config.get("name") + " with priority " +
+                priority + "/10 " + "(" + workers + ", " +
+                queue.maxInFlight + " tasks in flight).");
+
+            receiver.setPriority(priority);
+            receiver.start();
+            return;
+        }
+
+        // Spawn worker threads for the queue, scaling them with the queue's
+        // load if it's allowed a range.
+        scaler = new WorkerScaler(queue, priority);
+        scaler.start();
+        startScaling();
+    }
+
+    // Updates the queue in place for a reloaded entry, if the changes allow
+    // it. Returns false if the queue has to be restarted to take them up.
+    public synchronized boolean update(Map<String, Object> updated) {
+        if (!updatable(config, updated)) return false;
+        config = updated;
+
+        Queue reloaded = new Queue(updated);
+        if (scaler != null) {
+            scaler.reconfigure(reloaded, Settings.getIntFromYML(updated.get("priority"), 5));
+            startScaling();
+        } else if (pool instanceof WorkerPool) {
+            logger.info("Resizing " + queue.queueName + "'s pool to " +
+                reloaded.poolSize + " workers.");
+            ((WorkerPool) pool).resize(reloaded.poolSize);
+        }
+
+        return true;
+    }
+
+    // Drains the queue's consumers, waiting up to timeout ms for them to
+    // finish. Returns whether they all did.
+    public synchronized boolean stop(long timeout) {
+        long deadline = System.currentTimeMillis() + timeout;
+
+        if (poller != null) poller.interrupt();
+        if (scalerThread != null) scalerThread.interrupt();
+        List<Thread> workers = (scaler == null ? null : scaler.stop());
+        if (consumer != null) consumer.drain();
+
+        boolean drained = true;
+        if (receiver != null) drained = join(receiver, deadline);
+        if (workers != null) {
+            for (Thread worker : workers) drained &= join(worker, deadline);
+        }
+
+        // A shared queue's lane goes once the tasks left in it have run.
+        if (pool instanceof FairScheduler.Lane)
+            Octobot.getSharedPool().remove((FairScheduler.Lane) pool);
+
+        return drained;
+    }
+
+    // Whether a queue's entry can change from one to the other in place:
+    // all that differs must be settings its executor can change live.
+    public static boolean updatable(Map<String, Object> current, Map<String, Object> updated) {
+        if (!same(current.get("executor"), updated.get("executor"))) return false;
+
+        String executor = (current.get("executor") == null ? "inline" :
+            current.get("executor").toString().toLowerCase());
+        Set<String> live = new HashSet<String>();
+        if (executor.equals("inline")) live = INLINE_SETTINGS;
+        else if (executor.equals("pool")) live = POOL_SETTINGS;
+
+        Set<String> keys = new HashSet<String>(current.keySet());
+        keys.addAll(updated.keySet());
+        for (String key : keys) {
+            if (!live.contains(key) && !same(current.get(key), updated.get(key)))
+                return false;
+        }
+
+        return true;
+    }
+
+    private static boolean same(Object a, Object b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    private void startScaling() {
+        if (!scaler.isScaling() || (scalerThread != null && scalerThread.isAlive())) return;
+        scalerThread = new Thread(scaler, "Worker Scaler");
+        scalerThread.start();
+    }
+
+    private static boolean join(Thread thread, long deadline) {
+        long remaining = deadline - System.currentTimeMillis();
+        try {
+            if (remaining > 0) thread.join(remaining);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return !thread.isAlive();
+    }
+
+}
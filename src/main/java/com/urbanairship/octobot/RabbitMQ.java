@@ -1,6 +1,5 @@
 package com.urbanairship.octobot;
 
-import org.apache.log4j.Logger;
 import com.rabbitmq.client.Channel;
 import java.io.IOException;
 import com.rabbitmq.client.Connection;
@@ -13,10 +12,15 @@ import com.rabbitmq.client.ConnectionFactory;
 
 public class RabbitMQ {
 
-    private static final Logger logger = Logger.getLogger("RabbitMQ");
+    // The factory last configured by a RabbitMQ, kept for callers which used
+    // it directly. Channels now come from AMQPConnections' pools instead.
+    @Deprecated
     public static final ConnectionFactory factory = new ConnectionFactory();
 
+    private final Queue queue;
+
     public RabbitMQ(Queue queue) {
+        this.queue = queue;
         factory.setHost(queue.host);
         factory.setPort(queue.port);
         factory.setUsername(queue.username);
@@ -29,25 +33,10 @@ public class RabbitMQ {
         return factory.newConnection();
     }
 
-    // Returns a live channel for publishing messages.
+    // Returns a live channel for publishing messages, over a connection
+    // shared with any other channels open to the same broker. To enqueue
+    // tasks in bulk, see TaskPublisher, which batches and confirms them.
     public Channel getTaskChannel() {
-        Channel taskChannel = null;
-
-        int attempts = 0;
-        while (true) {
-            attempts++;
-            logger.info("Attempting to connect to queue: attempt " + attempts);
-            try {
-                Connection connection = getConnection();
-                taskChannel = connection.createChannel();
-                break;
-            } catch (IOException e) {
-                logger.error("Error creating AMQP channel, retrying in 5 sec", e);
-                try { Thread.sleep(1000 * 5); }
-                catch (InterruptedException ex) { }
-            }
-        }
-        return taskChannel;
+        return AMQPConnections.createChannel(queue);
     }
 }
-
@@ -0,0 +1,125 @@
+package com.urbanairship.octobot;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisException;
+
+
+// Consumes from a Redis list as a reliable work queue (redis_mode: list),
+// through a RedisListQueue. Messages are moved into a processing list of
+// our own as they're fetched, and removed from it once their tasks have
+// run; should we go away, they're requeued. Redis can't delay a message,
+// so retries are held by the consumer.
+
+public class RedisListBackend implements QueueBackend {
+
+    private static final Logger logger = Logger.getLogger("Redis List Backend");
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final Queue queue;
+    private RedisListQueue redisList = null;
+
+    // A connection of our own for polling depth, when not consuming.
+    private Jedis jedis = null;
+
+    public RedisListBackend(Queue queue) {
+        this.queue = queue;
+    }
+
+    public void connect() {
+        if (redisList == null) {
+            redisList = new RedisListQueue(queue);
+        } else {
+            redisList.close();
+            redisList.connect();
+        }
+    }
+
+    // Redis waits in whole seconds, so waits at least one.
+    public List<Delivery> fetch(int max, long timeout) throws IOException {
+        try {
+            redisList.maintain();
+            List<String> items = redisList.fetch(max, (int) Math.max((timeout + 999) / 1000, 1));
+            List<Delivery> deliveries = new ArrayList<Delivery>(items.size());
+            for (String item : items)
+                deliveries.add(new Delivery(redisList, item, item.getBytes(UTF8)));
+            return deliveries;
+        } catch (JedisException e) {
+            throw new IOException("Redis connection error.", e);
+        }
+    }
+
+    public void ack(Delivery delivery) {
+        redisList.completed((String) delivery.handle);
+    }
+
+    // Failed messages are removed as ever, rather than requeued to fail again.
+    public void nack(Delivery delivery) {
+        ack(delivery);
+    }
+
+    public boolean reschedule(Delivery delivery, Envelope retry, long delay) {
+        return false;
+    }
+
+    // Results are left to the consumer's result store.
+    public boolean reply(Delivery delivery, String replyTo, String correlationId, byte[] result) {
+        return false;
+    }
+
+    // Unflushed messages are kept, and removed after the next fetch.
+    public void flush() throws IOException {
+        try { redisList.flush(); }
+        catch (JedisException e) { throw new IOException("Redis connection error.", e); }
+    }
+
+    public long depth() throws IOException {
+        try {
+            if (redisList != null) return redisList.depth();
+            if (jedis == null) {
+                jedis = new Jedis(queue.host, queue.port);
+                jedis.connect();
+            }
+            return jedis.llen(queue.queueName);
+        } catch (JedisException e) {
+            throw new IOException("Redis connection error.", e);
+        }
+    }
+
+    // Messages are only taken from the list as they're fetched.
+    public void cancel() { }
+
+    // Returns messages left in our processing list to the queue.
+    public void close() {
+        try {
+            if (redisList != null) {
+                redisList.flush();
+                redisList.release();
+            }
+            if (jedis != null) jedis.disconnect();
+        } catch (JedisException e) {
+            logger.error("Error releasing Redis list.", e);
+        }
+    }
+
+
+    public static class Provider implements QueueBackendProvider {
+        public boolean supports(Queue queue) {
+            return queue.queueType.equals("redis") && queue.redisMode.equals("list");
+        }
+
+        public QueueBackend create(Queue queue) {
+            return new RedisListBackend(queue);
+        }
+
+        public QueuePublisher createPublisher(Queue queue) {
+            return new RedisPublisher(queue);
+        }
+    }
+
+}
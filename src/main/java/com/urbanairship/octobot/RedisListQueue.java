@@ -0,0 +1,250 @@
+package com.urbanairship.octobot;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.apache.log4j.Logger;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisException;
+
+
+// A reliable work queue built on Redis lists. Producers LPUSH messages onto
+// a list named for the queue. Each worker atomically moves messages from it
+// into a processing list of its own (BRPOPLPUSH), and removes them from
+// there once their task has run. Messages are never lost with a worker:
+// while it is alive, its heartbeat key stays set, and once that expires,
+// any other worker on the queue returns its in-flight messages to the
+// queue. Delivery is at least once.
+//
+// The heartbeat is refreshed by a keeper thread over a connection of its
+// own, so that a worker busy with a long task, or blocked waiting on an
+// empty queue, isn't taken for dead.
+//
+// Fetching and acknowledgement belong to a single thread, which owns the
+// connection. Completions may be reported from any thread.
+
+public class RedisListQueue {
+
+    private static final Logger logger = Logger.getLogger("Redis List Queue");
+
+    private final Queue queue;
+    private final String workerId = UUID.randomUUID().toString();
+
+    private final String processing;
+    private final String heartbeat;
+    private final String workers;
+
+    private Jedis jedis;
+    private long lastMaintained = 0;
+    private Thread keeper = null;
+
+    private final ConcurrentLinkedQueue<String> completed =
+        new ConcurrentLinkedQueue<String>();
+
+    public RedisListQueue(Queue queue) {
+        this.queue = queue;
+        this.processing = processingList(workerId);
+        this.heartbeat = queue.queueName + ":worker:" + workerId;
+        this.workers = queue.queueName + ":workers";
+        connect();
+    }
+
+    private String processingList(String worker) {
+        return queue.queueName + ":processing:" + worker;
+    }
+
+    // Connects to Redis, backing off exponentially while it's unavailable.
+    // Our processing list is kept across reconnects.
+    public void connect() {
+        Backoff backoff = new Backoff(100, 30000);
+
+        while (true) {
+            try {
+                jedis = new Jedis(queue.host, queue.port);
+                jedis.connect();
+
+                // Beat before registering, so we're never seen as expired.
+                lastMaintained = System.currentTimeMillis();
+                jedis.setex(heartbeat, queue.reapInterval * 3, Long.toString(lastMaintained));
+                jedis.sadd(workers, workerId);
+
+                logger.info("Connected to Redis list " + queue.queueName +
+                    " as worker " + workerId + ".");
+                startKeeper();
+                return;
+            } catch (JedisException e) {
+                long delay = backoff.nextDelay();
+                logger.error("Unable to connect to Redis. Retrying in " + delay + " ms.", e);
+                backoff.sleep(delay);
+            }
+        }
+    }
+
+    // Blocks for up to timeout seconds waiting for a message, then takes up
+    // to max - 1 more without blocking in a single pipelined round trip.
+    public List<String> fetch(int max, int timeout) {
+        List<String> items = new ArrayList<String>(max);
+
+        String first = jedis.brpoplpush(queue.queueName, processing, timeout);
+        if (first == null) return items;
+        items.add(first);
+
+        if (max > 1) {
+            Pipeline pipeline = jedis.pipelined();
+            List<Response<String>> responses = new ArrayList<Response<String>>(max - 1);
+            for (int i = 1; i < max; i++)
+                responses.add(pipeline.rpoplpush(queue.queueName, processing));
+            pipeline.sync();
+
+            for (Response<String> response : responses)
+                if (response.get() != null) items.add(response.get());
+        }
+
+        return items;
+    }
+
+    // Records a message as handled. Safe to call from any thread.
+    public void completed(String item) {
+        completed.add(item);
+    }
+
+    // Removes handled messages from our processing list in one round trip.
+    // If this fails, they remain queued for the next flush.
+    public void flush() {
+        if (completed.isEmpty()) return;
+
+        List<String> items = new ArrayList<String>();
+        String item = null;
+        while ((item = completed.poll()) != null) items.add(item);
+
+        try {
+            Pipeline pipeline = jedis.pipelined();
+            for (String handled : items)
+                pipeline.lrem(processing, -1, handled);
+            pipeline.sync();
+        } catch (JedisException e) {
+            completed.addAll(items);
+            throw e;
+        }
+    }
+
+    // Reaps expired workers. Runs at most once per reap interval; call it
+    // from the fetch loop.
+    public void maintain() {
+        long now = System.currentTimeMillis();
+        if (now - lastMaintained < queue.reapInterval * 1000L) return;
+        lastMaintained = now;
+
+        reap();
+    }
+
+    // Returns the in-flight messages of any worker whose heartbeat has
+    // expired to the queue.
+    public void reap() {
+        for (String worker : jedis.smembers(workers)) {
+            if (worker.equals(workerId)) continue;
+            if (jedis.exists(queue.queueName + ":worker:" + worker)) continue;
+
+            int requeued = 0;
+            while (jedis.rpoplpush(processingList(worker), queue.queueName) != null)
+                requeued++;
+
+            jedis.srem(workers, worker);
+            if (requeued > 0)
+                logger.warn("Requeued " + requeued + " messages held by expired worker " +
+                    worker + " on " + queue.queueName + ".");
+        }
+    }
+
+    // Returns any messages still in our processing list to the queue, and
+    // deregisters this worker, for a clean exit. Call flush() first.
+    public void release() {
+        stopKeeper();
+
+        int requeued = 0;
+        while (jedis.rpoplpush(processing, queue.queueName) != null)
+            requeued++;
+
+        jedis.srem(workers, workerId);
+        jedis.del(heartbeat);
+        close();
+
+        if (requeued > 0)
+            logger.info("Returned " + requeued + " unfinished messages to " +
+                queue.queueName + ".");
+    }
+
+    // Returns the number of messages waiting on the queue.
+    public long depth() {
+        return jedis.llen(queue.queueName);
+    }
+
+    // Disconnects, and stops the keeper; the heartbeat lapses unless we
+    // connect again.
+    public void close() {
+        stopKeeper();
+        disconnect(jedis);
+    }
+
+    // Starts the keeper, which refreshes our heartbeat every reap interval
+    // until stopped. A beat which fails is logged, and retried over a new
+    // connection on the next.
+    private void startKeeper() {
+        if (keeper != null) return;
+
+        Runnable beat = new Runnable() {
+            public void run() {
+                Jedis connection = null;
+
+                while (true) {
+                    try { Thread.sleep(queue.reapInterval * 1000L); }
+                    catch (InterruptedException e) { break; }
+
+                    try {
+                        if (connection == null) {
+                            connection = new Jedis(queue.host, queue.port);
+                            connection.connect();
+                        }
+                        connection.setex(heartbeat, queue.reapInterval * 3,
+                            Long.toString(System.currentTimeMillis()));
+                    } catch (JedisException e) {
+                        logger.warn("Unable to refresh the heartbeat of worker " +
+                            workerId + " on " + queue.queueName + ".", e);
+                        disconnect(connection);
+                        connection = null;
+                    }
+                }
+
+                disconnect(connection);
+            }
+        };
+
+        keeper = new Thread(beat, queue.queueName + " Redis Keeper");
+        keeper.setDaemon(true);
+        keeper.start();
+    }
+
+    // Stops the keeper, waiting for any beat it's sending to finish.
+    private void stopKeeper() {
+        if (keeper == null) return;
+
+        keeper.interrupt();
+        try {
+            keeper.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        keeper = null;
+    }
+
+    private static void disconnect(Jedis connection) {
+        if (connection == null) return;
+        try { connection.disconnect(); }
+        catch (JedisException e) { logger.debug("Error disconnecting from Redis.", e); }
+    }
+
+}
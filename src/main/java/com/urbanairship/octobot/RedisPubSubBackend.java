@@ -0,0 +1,196 @@
+package com.urbanairship.octobot;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPubSub;
+import redis.clients.jedis.exceptions.JedisException;
+
+
+// Subscribes to a Redis pub/sub channel named for the queue. A subscription
+// blocks the thread holding it, so a subscriber thread of ours hands each
+// message over to be fetched, waiting while fetch_batch are already waiting
+// so that a slow consumer pushes back on Redis rather than buffering here.
+//
+// Pub/sub delivers at most once: nothing is acked, a message published while
+// no worker is subscribed is dropped, and so are any handed over but not yet
+// fetched when the consumer drains.
+
+public class RedisPubSubBackend implements QueueBackend {
+
+    private static final Logger logger = Logger.getLogger("Redis Pub/Sub Backend");
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final Queue queue;
+    private final ArrayBlockingQueue<String> messages;
+
+    private Jedis jedis = null;
+    private JedisPubSub subscriber = null;
+    private volatile boolean subscribed = false;
+    private volatile boolean cancelled = false;
+
+    public RedisPubSubBackend(Queue queue) {
+        this.queue = queue;
+        this.messages = new ArrayBlockingQueue<String>(Math.max(queue.fetchBatch, 1));
+    }
+
+    public void connect() {
+        Backoff backoff = new Backoff(100, 30000);
+        if (jedis != null) disconnect();
+
+        logger.info("Connecting to Redis...");
+        while (true) {
+            try {
+                jedis = new Jedis(queue.host, queue.port);
+                jedis.connect();
+                break;
+            } catch (JedisException e) {
+                long delay = backoff.nextDelay();
+                logger.error("Unable to connect to Redis. Retrying in " + delay + " ms.", e);
+                backoff.sleep(delay);
+            }
+        }
+        logger.info("Connected to Redis.");
+
+        subscriber = new Subscriber();
+        subscribed = true;
+
+        final Jedis connection = jedis;
+        Runnable subscription = new Runnable() {
+            public void run() {
+                // Subscribing blocks until we unsubscribe, or the connection drops.
+                try { connection.subscribe(subscriber, queue.queueName); }
+                catch (JedisException e) {
+                    if (!cancelled) logger.error("Redis subscription lost.", e);
+                }
+                finally { subscribed = false; }
+            }
+        };
+
+        Thread thread = new Thread(subscription, queue.queueName + " Subscriber");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public List<Delivery> fetch(int max, long timeout) throws IOException {
+        List<Delivery> deliveries = new ArrayList<Delivery>(max);
+
+        String message = null;
+        try { message = messages.poll(timeout, TimeUnit.MILLISECONDS); }
+        catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+
+        while (message != null) {
+            deliveries.add(new Delivery(subscriber, null, message.getBytes(UTF8)));
+            if (deliveries.size() >= max) break;
+            message = messages.poll();
+        }
+
+        if (deliveries.isEmpty() && !subscribed && !cancelled)
+            throw new IOException("Not subscribed to Redis channel " + queue.queueName + ".");
+        return deliveries;
+    }
+
+    // Pub/sub messages have nothing to acknowledge.
+    public void ack(Delivery delivery) { }
+    public void nack(Delivery delivery) { }
+
+    public boolean reschedule(Delivery delivery, Envelope retry, long delay) {
+        return false;
+    }
+
+    // Results are left to the consumer's result store.
+    public boolean reply(Delivery delivery, String replyTo, String correlationId, byte[] result) {
+        return false;
+    }
+
+    public void flush() { }
+
+    // A channel holds no messages.
+    public long depth() {
+        return -1;
+    }
+
+    public void cancel() {
+        cancelled = true;
+        JedisPubSub subscription = subscriber;
+        if (subscription != null && subscribed) {
+            try { subscription.unsubscribe(); }
+            catch (Exception e) { logger.debug("Error unsubscribing from Redis.", e); }
+        }
+    }
+
+    public void close() {
+        cancel();
+        if (!messages.isEmpty())
+            logger.warn("Dropping " + messages.size() + " unfetched messages from " +
+                queue.queueName + ".");
+        messages.clear();
+        disconnect();
+    }
+
+    private void disconnect() {
+        if (jedis == null) return;
+        try { jedis.disconnect(); }
+        catch (JedisException e) { logger.debug("Error disconnecting from Redis.", e); }
+    }
+
+
+    // Hands messages over to fetch, waiting for room.
+    private class Subscriber extends JedisPubSub {
+        @Override
+        public void onMessage(String channel, String message) {
+            try {
+                while (!cancelled && !messages.offer(message, 100, TimeUnit.MILLISECONDS)) { }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void onPMessage(String string, String string1, String string2) {
+            logger.info("onPMessage Triggered - Not implemented.");
+        }
+
+        @Override
+        public void onSubscribe(String string, int i) {
+            logger.info("onSubscribe called - Not implemented.");
+        }
+
+        @Override
+        public void onUnsubscribe(String string, int i) {
+            logger.info("onUnsubscribe Called - Not implemented.");
+        }
+
+        @Override
+        public void onPUnsubscribe(String string, int i) {
+            logger.info("onPUnsubscribe called - Not implemented.");
+        }
+
+        @Override
+        public void onPSubscribe(String string, int i) {
+            logger.info("onPSubscribe Triggered - Not implemented.");
+        }
+    }
+
+
+    public static class Provider implements QueueBackendProvider {
+        public boolean supports(Queue queue) {
+            return queue.queueType.equals("redis") && !queue.redisMode.equals("list");
+        }
+
+        public QueueBackend create(Queue queue) {
+            return new RedisPubSubBackend(queue);
+        }
+
+        public QueuePublisher createPublisher(Queue queue) {
+            return new RedisPublisher(queue);
+        }
+    }
+
+}
@@ -0,0 +1,70 @@
+package com.urbanairship.octobot;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.exceptions.JedisException;
+
+
+// Sends messages to a Redis queue in a single pipelined round trip per
+// batch: LPUSHed onto the queue's list in list mode, or PUBLISHed to its
+// channel otherwise. Redis has taken a batch once send() returns.
+
+public class RedisPublisher implements QueuePublisher {
+
+    private static final Logger logger = Logger.getLogger("Redis Publisher");
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final Queue queue;
+    private final boolean list;
+    private Jedis jedis = null;
+
+    public RedisPublisher(Queue queue) {
+        this.queue = queue;
+        this.list = queue.redisMode.equals("list");
+    }
+
+    public void connect() {
+        Backoff backoff = new Backoff(100, 30000);
+        close();
+
+        while (true) {
+            try {
+                jedis = new Jedis(queue.host, queue.port);
+                jedis.connect();
+                return;
+            } catch (JedisException e) {
+                long delay = backoff.nextDelay();
+                logger.error("Unable to connect to Redis. Retrying in " + delay + " ms.", e);
+                backoff.sleep(delay);
+            }
+        }
+    }
+
+    public void send(List<byte[]> messages) throws IOException {
+        try {
+            Pipeline pipeline = jedis.pipelined();
+            for (byte[] message : messages) {
+                if (list) pipeline.lpush(queue.queueName, new String(message, UTF8));
+                else pipeline.publish(queue.queueName, new String(message, UTF8));
+            }
+            pipeline.sync();
+        } catch (JedisException e) {
+            throw new IOException("Redis connection error.", e);
+        }
+    }
+
+    // Each batch is taken as it's sent.
+    public void flush() { }
+
+    public void close() {
+        try { if (jedis != null) jedis.disconnect(); }
+        catch (JedisException e) { logger.debug("Error closing Redis connection.", e); }
+        jedis = null;
+    }
+
+}
@@ -0,0 +1,79 @@
+package com.urbanairship.octobot;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+
+import org.apache.log4j.Logger;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.exceptions.JedisException;
+
+
+// Hands tasks' results back to their callers through Redis, for transports
+// without reply queues of their own. Each result is pushed onto a list at
+// the key its message named in reply_to, which expires after result_ttl
+// seconds, so that a caller can wait on it with BLPOP rather than polling.
+//
+// Results are held until the consumer's next acknowledgement pass, then
+// written in a single pipelined round trip. Like the acks which follow,
+// they belong to the consumer's receiving thread. Results which can't be
+// written are logged and dropped; callers are expected to time out.
+
+public class ResultStore {
+
+    private static final Logger logger = Logger.getLogger("Result Store");
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final String host;
+    private final int port;
+    private final int ttl;
+    private Jedis jedis = null;
+
+    private final ArrayList<String> keys = new ArrayList<String>();
+    private final ArrayList<String> results = new ArrayList<String>();
+
+    public ResultStore(Queue queue) {
+        String[] address = queue.resultRedis.split(":");
+        this.host = address[0];
+        this.port = (address.length > 1 ? Integer.parseInt(address[1]) : 6379);
+        this.ttl = queue.resultTtl;
+    }
+
+    // Holds a result to be written on the next flush.
+    public void add(String key, byte[] result) {
+        keys.add(key);
+        results.add(new String(result, UTF8));
+    }
+
+    // Writes the results held since the last flush.
+    public void flush() {
+        if (keys.isEmpty()) return;
+
+        try {
+            if (jedis == null) {
+                jedis = new Jedis(host, port);
+                jedis.connect();
+            }
+
+            Pipeline pipeline = jedis.pipelined();
+            for (int i = 0; i < keys.size(); i++) {
+                pipeline.rpush(keys.get(i), results.get(i));
+                pipeline.expire(keys.get(i), ttl);
+            }
+            pipeline.sync();
+        } catch (JedisException e) {
+            logger.error("Unable to store " + keys.size() + " task results in Redis.", e);
+            close();
+        }
+
+        keys.clear();
+        results.clear();
+    }
+
+    public void close() {
+        try { if (jedis != null) jedis.disconnect(); }
+        catch (JedisException e) { logger.debug("Error closing Redis connection.", e); }
+        jedis = null;
+    }
+
+}
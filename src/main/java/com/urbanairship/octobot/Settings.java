@@ -1,8 +1,13 @@
 package com.urbanairship.octobot;
 
 import org.jvyaml.YAML;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.io.FileReader;
+import java.io.IOException;
 
 import org.apache.log4j.Logger;
 
@@ -14,24 +19,25 @@ import org.apache.log4j.Logger;
 // as a standard map by calling Settings.get("Octobot", "queues").
 
 // Implemented as a singleton to avoid reading the file in multiple times.
-// Changes to application configuration require a restart to take effect.
+// The settings are held as an immutable snapshot, which reload() replaces
+// wholesale when the file changes (see ConfigWatcher), so readers never
+// lock and never see a half-loaded file. Queues, their workers and task
+// limits follow a reload; other settings are read once, at startup.
 
 public class Settings {
 
     private static final Logger logger = Logger.getLogger("Settings");
-    public static HashMap<String, HashMap<String, Object>> configuration = null;
+    public static volatile Map<String, Map<String, Object>> configuration = null;
+
+    private static final String settingsFile = System.getProperty("configFile") == null ?
+        "/usr/local/octobot/octobot.yml" : System.getProperty("configFile");
 
     // Load the settings once on initialization, and hang onto them.
     private static final Settings INSTANCE = new Settings();
 
-    @SuppressWarnings("unchecked")
     private Settings() {
-        String settingsFile = System.getProperty("configFile");
-        if (settingsFile == null) settingsFile = "/usr/local/octobot/octobot.yml";
-
         try {
-            configuration = (HashMap<String,HashMap<String, Object>>)
-                    YAML.load(new FileReader(settingsFile));
+            configuration = load(settingsFile);
         } catch (Exception e) {
             // Logging to Stdout here because Log4J not yet initialized.
             logger.warn("Warning: No valid config at " + settingsFile);
@@ -46,6 +52,61 @@ public class Settings {
         return INSTANCE;
     }
 
+    // The path of the config file.
+    public static String path() {
+        return settingsFile;
+    }
+
+    // Reads the config file again, replacing the settings if it has
+    // changed. Returns whether it had; a file which can't be read or
+    // parsed leaves the current settings in place.
+    public static synchronized boolean reload() {
+        Map<String, Map<String, Object>> reloaded = null;
+        try {
+            reloaded = load(settingsFile);
+        } catch (Exception e) {
+            logger.error("Unable to reload " + settingsFile + "; keeping the current settings.", e);
+            return false;
+        }
+
+        if (reloaded.equals(configuration)) return false;
+        configuration = reloaded;
+        logger.info("Reloaded settings from " + settingsFile + ".");
+        return true;
+    }
+
+    // Reads the settings from a YAML file, as an immutable snapshot.
+    @SuppressWarnings("unchecked")
+    public static Map<String, Map<String, Object>> load(String path) throws IOException {
+        FileReader reader = new FileReader(path);
+        try {
+            Object settings = YAML.load(reader);
+            if (!(settings instanceof Map))
+                throw new IOException(path + " does not hold a map of settings.");
+            return (Map<String, Map<String, Object>>) freeze(settings);
+        } finally {
+            reader.close();
+        }
+    }
+
+    // Copies maps and lists parsed from YAML into unmodifiable ones.
+    private static Object freeze(Object value) {
+        if (value instanceof Map) {
+            Map<Object, Object> copy = new LinkedHashMap<Object, Object>();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet())
+                copy.put(entry.getKey(), freeze(entry.getValue()));
+            return Collections.unmodifiableMap(copy);
+        }
+
+        if (value instanceof List) {
+            List<Object> copy = new ArrayList<Object>();
+            for (Object item : (List<?>) value) copy.add(freeze(item));
+            return Collections.unmodifiableList(copy);
+        }
+
+        return value;
+    }
+
 
     /**
      * Fetches a setting from YAML configuration.
@@ -59,7 +120,7 @@ public class Settings {
         String result = null;
 
         try {
-            HashMap configCategory = configuration.get(category);
+            Map<String, Object> configCategory = configuration.get(category);
             result = configCategory.get(key).toString();
         } catch (NullPointerException e) {
             logger.warn("Warning - unable to load " + category + " / " +
@@ -98,16 +159,16 @@ public class Settings {
     public static Integer getAsInt(String category, String key) {
         Integer result = null;
         Object value = null;
-        HashMap configCategory = null;
+        Map<String, Object> configCategory = null;
 
         try {
             configCategory = configuration.get(category);
             value = configCategory.get(key);
 
             if (value instanceof Long) {
-                result = ((Long) configCategory.get(key)).intValue();
+                result = ((Long) value).intValue();
             } else if (value instanceof Integer) {
-                result = (Integer) configCategory.get(key);
+                result = (Integer) value;
             }
 
         } catch (NullPointerException e) {
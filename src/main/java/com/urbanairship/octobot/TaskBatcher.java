@@ -0,0 +1,82 @@
+package com.urbanairship.octobot;
+
+import java.util.List;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.ArrayList;
+
+
+// Collects messages for tasks which accept batches, grouped by task. A batch
+// is handed back to run once it's full, or once its first message has
+// lingered long enough. Each message keeps the receipt it arrived with, so
+// that messages can be acknowledged one by one after the batch runs.
+//
+// Not thread-safe: a batcher belongs to the thread receiving messages.
+
+public class TaskBatcher<R> {
+
+    private final int maxSize;
+    private final long linger;
+    private final HashMap<String, Batch<R>> batches = new HashMap<String, Batch<R>>();
+
+    // A batch of messages for a single task.
+    public static class Batch<R> {
+        public final String task;
+        public final List<Envelope> envelopes = new ArrayList<Envelope>();
+        public final List<R> receipts = new ArrayList<R>();
+        final long startedAt = System.currentTimeMillis();
+
+        Batch(String task) {
+            this.task = task;
+        }
+    }
+
+    // Collects batches of up to maxSize, lingering up to linger ms.
+    public TaskBatcher(int maxSize, long linger) {
+        this.maxSize = maxSize;
+        this.linger = linger;
+    }
+
+    // Adds a message to its task's batch, returning the batch if now full.
+    public Batch<R> add(Envelope envelope, R receipt) {
+        Batch<R> batch = batches.get(envelope.task);
+        if (batch == null) {
+            batch = new Batch<R>(envelope.task);
+            batches.put(envelope.task, batch);
+        }
+
+        batch.envelopes.add(envelope);
+        batch.receipts.add(receipt);
+
+        if (batch.envelopes.size() < maxSize) return null;
+
+        batches.remove(envelope.task);
+        return batch;
+    }
+
+    // Removes and returns the batches which have lingered long enough.
+    public List<Batch<R>> expired() {
+        List<Batch<R>> result = new ArrayList<Batch<R>>();
+        if (batches.isEmpty()) return result;
+
+        long now = System.currentTimeMillis();
+        Iterator<Batch<R>> iterator = batches.values().iterator();
+        while (iterator.hasNext()) {
+            Batch<R> batch = iterator.next();
+            if (now - batch.startedAt >= linger) {
+                result.add(batch);
+                iterator.remove();
+            }
+        }
+
+        return result;
+    }
+
+    // Removes and returns every batch, full or not.
+    public List<Batch<R>> drain() {
+        List<Batch<R>> result = new ArrayList<Batch<R>>(batches.values());
+        batches.clear();
+        return result;
+    }
+
+}
@@ -0,0 +1,139 @@
+package com.urbanairship.octobot;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+
+// Deploys tasks from the jars in a directory (task_dir), each jar in a
+// class loader of its own (see TaskJar), and redeploys them as the jars
+// change, without a restart. Every interval seconds:
+//
+//  - A jar added or changed, once it's stayed the same for an interval
+//    (so as not to load one half-copied), is loaded, and its tasks are
+//    dispatched to the new version from then on.
+//  - A jar removed has its tasks dropped; messages for them then fail as
+//    for any task not on the classpath.
+//
+// Other queues and tasks run on undisturbed. A version replaced keeps
+// running the calls it had in flight, and its loader is closed once the
+// last has finished.
+
+public class TaskDeployer implements Runnable {
+
+    private static final Logger logger = Logger.getLogger("Task Deployer");
+
+    private final File directory;
+    private final int interval;
+
+    // Jars deployed, with the stamp (modification time and size) each had,
+    // and the stamp each jar in the directory had on the last scan.
+    private final HashMap<File, TaskJar> deployed = new HashMap<File, TaskJar>();
+    private final HashMap<File, String> deployedStamps = new HashMap<File, String>();
+    private final HashMap<File, String> seenStamps = new HashMap<File, String>();
+
+    // Versions replaced or removed, waiting on their calls in flight.
+    private final List<TaskJar> retiring = new ArrayList<TaskJar>();
+
+    private boolean scanned = false;
+
+    public TaskDeployer(File directory, int interval) {
+        this.directory = directory;
+        this.interval = Math.max(interval, 1);
+    }
+
+    public void run() {
+        logger.info("Watching " + directory + " for task jars every " + interval + " seconds.");
+
+        while (Lifecycle.isRunning()) {
+            try { Thread.sleep(interval * 1000L); }
+            catch (InterruptedException e) { return; }
+
+            try {
+                scan();
+            } catch (Exception e) {
+                logger.error("Error scanning " + directory + " for task jars.", e);
+            }
+        }
+    }
+
+    // Deploys jars added or changed since the last scan, and drops those
+    // removed. On the first scan, jars are deployed without waiting.
+    public synchronized void scan() {
+        File[] jars = directory.listFiles(new FileFilter() {
+            public boolean accept(File file) {
+                return file.isFile() && file.getName().endsWith(".jar");
+            }
+        });
+
+        if (jars == null) {
+            logger.warn("Unable to list task jars in " + directory + ".");
+            jars = new File[0];
+        }
+
+        Set<File> present = new HashSet<File>();
+        for (File jar : jars) {
+            present.add(jar);
+            String stamp = jar.lastModified() + ":" + jar.length();
+            String lastSeen = seenStamps.put(jar, stamp);
+
+            if (stamp.equals(deployedStamps.get(jar))) continue;
+            if (scanned && !stamp.equals(lastSeen)) continue;
+
+            deploy(jar, stamp);
+        }
+
+        for (File jar : new ArrayList<File>(deployed.keySet())) {
+            if (present.contains(jar)) continue;
+
+            TaskJar removed = deployed.remove(jar);
+            deployedStamps.remove(jar);
+            seenStamps.remove(jar);
+            TaskExecutor.undeploy(removed);
+            retiring.add(removed);
+            logger.info("Removed tasks " + removed.tasks().keySet() + " with " + jar + ".");
+        }
+
+        Iterator<TaskJar> iterator = retiring.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().close()) iterator.remove();
+        }
+
+        scanned = true;
+    }
+
+    private void deploy(File jar, String stamp) {
+        // Whether or not it loads, leave this version be until it changes.
+        deployedStamps.put(jar, stamp);
+
+        TaskJar loaded = null;
+        try {
+            loaded = TaskJar.load(jar);
+        } catch (IOException e) {
+            logger.error("Unable to load task jar " + jar + ".", e);
+            return;
+        }
+
+        if (loaded.tasks().isEmpty())
+            logger.warn("Found no tasks in " + jar + ".");
+
+        TaskExecutor.deploy(loaded);
+        TaskJar previous = deployed.put(jar, loaded);
+        if (previous != null) {
+            TaskExecutor.undeploy(previous);
+            retiring.add(previous);
+        }
+
+        logger.info((previous == null ? "Deployed" : "Redeployed") + " tasks " +
+            loaded.tasks().keySet() + " from " + jar + ".");
+    }
+
+}
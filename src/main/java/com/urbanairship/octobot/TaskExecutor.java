@@ -1,33 +1,451 @@
 package com.urbanairship.octobot;
 
-import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.ArrayList;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.LambdaMetafactory;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
 import org.json.simple.JSONObject;
-import java.lang.reflect.InvocationTargetException;
+
+
+// Resolves tasks by name and invokes their static run method. Tasks may
+// accept either the parsed message, via run(JSONObject), or the message as
+// it arrived off the queue, via run(byte[]). If a task has both, it is
+// handed the raw bytes. A run method may return a result, which is handed
+// back to the consumer to send to the message's sender, if it asked for one.
+//
+// Tasks may also declare a static boolean[] runBatch(List<JSONObject>), to
+// be handed several messages at once. It returns whether each succeeded.
+//
+// The first lookup of each task binds its run method to a generated
+// implementation, so subsequent dispatch is a map read and a direct call
+// rather than a reflective invocation.
+//
+// Tasks deployed from jars (see TaskDeployer) are bound as each version
+// of their jar is loaded, replacing the previous version's in the map.
+// Calls already running on the previous version finish there.
 
 public class TaskExecutor {
 
-    private static final HashMap<String, Method> taskCache =
-            new HashMap<String, Method>();
+    private static final Logger logger = Logger.getLogger("Task Executor");
+
+    private static final ConcurrentHashMap<String, Task> taskCache =
+            new ConcurrentHashMap<String, Task>();
+
+    private static final MethodType JSON_RUN_TYPE =
+            MethodType.methodType(void.class, JSONObject.class);
+    private static final MethodType RAW_RUN_TYPE =
+            MethodType.methodType(void.class, byte[].class);
+    private static final MethodType JSON_CALL_TYPE =
+            MethodType.methodType(Object.class, JSONObject.class);
+    private static final MethodType RAW_CALL_TYPE =
+            MethodType.methodType(Object.class, byte[].class);
+    private static final MethodType BATCH_RUN_TYPE =
+            MethodType.methodType(boolean[].class, List.class);
+
+    // Batch entry points by task. Tasks without one map to NO_BATCH.
+    private static final ConcurrentHashMap<String, BatchTask> batchCache =
+            new ConcurrentHashMap<String, BatchTask>();
+    private static final BatchTask NO_BATCH = new HandleTask(null);
+
+    // A task, bound to a callable target. Returns the task's result, or null
+    // if its run method returns nothing.
+    interface Task {
+        Object run(Envelope envelope) throws Exception;
+    }
+
+    // The run methods tasks may declare, implemented by generated classes.
+    interface JSONTask {
+        void run(JSONObject message) throws Exception;
+    }
+
+    interface RawTask {
+        void run(byte[] message) throws Exception;
+    }
+
+    // The same, for run methods which return a result.
+    interface JSONFunction {
+        Object run(JSONObject message) throws Exception;
+    }
+
+    interface RawFunction {
+        Object run(byte[] message) throws Exception;
+    }
+
+    interface BatchTask {
+        boolean[] runBatch(List<JSONObject> messages) throws Exception;
+    }
+
+    public static Object execute(String taskName, JSONObject message) throws Exception {
+        return execute(Envelope.of(taskName, message));
+    }
+
+    // Runs a message's task, returning its result, if it has one.
+    public static Object execute(Envelope envelope) throws Exception {
+        Task task = taskCache.get(envelope.task);
+        if (task == null) task = bind(envelope.task);
+
+        return task.run(envelope);
+    }
+
+    // Returns true if the task named declares a runBatch method. Tasks which
+    // can't be found are reported as not accepting batches, so that their
+    // messages fail one by one through execute.
+    public static boolean acceptsBatches(String taskName) {
+        BatchTask batchTask = batchCache.get(taskName);
+        if (batchTask == null) batchTask = bindBatch(taskName);
+
+        return batchTask != NO_BATCH;
+    }
+
+    // Runs a batch of messages through a task's runBatch method, returning
+    // whether each message succeeded.
+    public static boolean[] executeBatch(String taskName, List<Envelope> envelopes)
+            throws Exception {
+        BatchTask batchTask = batchCache.get(taskName);
+        if (batchTask == null) batchTask = bindBatch(taskName);
+
+        if (batchTask == NO_BATCH)
+            throw new NoSuchMethodException(taskName + ".runBatch(List)");
+
+        List<JSONObject> messages = new ArrayList<JSONObject>(envelopes.size());
+        for (Envelope envelope : envelopes) messages.add(envelope.message());
+
+        boolean[] results = batchTask.runBatch(messages);
+        if (results == null || results.length != messages.size())
+            throw new IllegalStateException(taskName + ".runBatch returned " +
+                (results == null ? "null" : results.length + " results") +
+                " for " + messages.size() + " messages.");
+
+        return results;
+    }
+
+    private static BatchTask bindBatch(String taskName) {
+        BatchTask batchTask = NO_BATCH;
+
+        try {
+            batchTask = bindBatch(Class.forName(taskName));
+        } catch (Exception e) {
+            // Not found; messages are run singly, and fail in execute.
+        } catch (LinkageError e) {
+            // As above, for tasks whose dependencies are missing.
+        }
+
+        BatchTask existing = batchCache.putIfAbsent(taskName, batchTask);
+        return (existing == null) ? batchTask : existing;
+    }
+
+    // Binds a task class's runBatch method, or returns NO_BATCH without one.
+    private static BatchTask bindBatch(Class<?> taskClass) {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            return (BatchTask) generate(lookup, lookup.findStatic(taskClass,
+                "runBatch", BATCH_RUN_TYPE), BatchTask.class, BATCH_RUN_TYPE);
+        } catch (Exception e) {
+            return NO_BATCH;
+        } catch (LinkageError e) {
+            return NO_BATCH;
+        }
+    }
+
+    // Dispatches the tasks in a newly loaded jar to it from now on.
+    public static void deploy(TaskJar jar) {
+        for (Map.Entry<String, Class<?>> entry : jar.tasks().entrySet()) {
+            String taskName = entry.getKey();
+
+            try {
+                Task task = bind(entry.getValue());
+                BatchTask batchTask = bindBatch(entry.getValue());
+
+                taskCache.put(taskName, new DeployedTask(jar, task));
+                batchCache.put(taskName, batchTask == NO_BATCH ? NO_BATCH :
+                    new DeployedBatch(jar, taskName, batchTask));
+            } catch (Exception e) {
+                logger.error("Unable to deploy task: " + taskName + " from " +
+                    jar.source() + ". It must have a public static run method.", e);
+            } catch (LinkageError e) {
+                logger.error("Unable to deploy task: " + taskName + " from " +
+                    jar.source() + ".", e);
+            }
+        }
+    }
+
+    // Stops dispatching to the tasks in a jar which haven't since been
+    // deployed from another. Their next messages look them up afresh.
+    public static void undeploy(TaskJar jar) {
+        for (String taskName : jar.tasks().keySet()) {
+            Task task = taskCache.get(taskName);
+            if (!(task instanceof DeployedTask) || ((DeployedTask) task).jar != jar)
+                continue;
+
+            taskCache.remove(taskName, task);
+            batchCache.remove(taskName);
+        }
+    }
+
+    // Binds each of the tasks listed ahead of time, so that the first
+    // messages to arrive for them don't pay for class loading and lookup.
+    public static void preload(List<String> taskNames) {
+        for (String taskName : taskNames) {
+            try {
+                if (!taskCache.containsKey(taskName)) bind(taskName);
+                logger.info("Preloaded task: " + taskName);
+            } catch (Exception e) {
+                logger.error("Unable to preload task: " + taskName + ". It must " +
+                    "be on the classpath, with a public static run method.", e);
+            } catch (LinkageError e) {
+                logger.error("Unable to preload task: " + taskName + ". It must " +
+                    "be on the classpath, with its dependencies.", e);
+            }
+        }
+    }
+
+    private static Task bind(String taskName) throws ClassNotFoundException,
+            NoSuchMethodException, IllegalAccessException {
+        Task task = bind(Class.forName(taskName));
 
-    @SuppressWarnings("unchecked")
-    public static void execute(String taskName, JSONObject message) 
-            throws ClassNotFoundException,
-                   NoSuchMethodException,
-                   IllegalAccessException,
-                   InvocationTargetException {
+        Task existing = taskCache.putIfAbsent(taskName, task);
+        return (existing == null) ? task : existing;
+    }
+
+    private static Task bind(Class<?> taskClass) throws NoSuchMethodException,
+            IllegalAccessException {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+
+        try {
+            return bindRaw(lookup, findRun(lookup, taskClass, byte[].class));
+        } catch (NoSuchMethodException e) {
+            return bindJSON(lookup, findRun(lookup, taskClass, JSONObject.class));
+        }
+    }
+
+    // Finds a task's static run method for the message type, whether it
+    // returns nothing or a result.
+    private static MethodHandle findRun(MethodHandles.Lookup lookup, Class<?> taskClass,
+            Class<?> messageType) throws NoSuchMethodException, IllegalAccessException {
+        try {
+            return lookup.findStatic(taskClass, "run",
+                MethodType.methodType(void.class, messageType));
+        } catch (NoSuchMethodException e) {
+            Method method = taskClass.getMethod("run", messageType);
+            if (!Modifier.isStatic(method.getModifiers())) throw e;
+            return lookup.unreflect(method);
+        }
+    }
+
+    private static Task bindRaw(MethodHandles.Lookup lookup, MethodHandle run) {
+        if (run.type().returnType() != void.class) {
+            final RawFunction raw = (RawFunction)
+                generate(lookup, run, RawFunction.class, RAW_CALL_TYPE);
+            return new Task() {
+                public Object run(Envelope envelope) throws Exception {
+                    return raw.run(envelope.body());
+                }
+            };
+        }
 
-        Method method = null;
+        final RawTask raw = (RawTask) generate(lookup, run, RawTask.class, RAW_RUN_TYPE);
+        return new Task() {
+            public Object run(Envelope envelope) throws Exception {
+                raw.run(envelope.body());
+                return null;
+            }
+        };
+    }
 
-        if (taskCache.containsKey(taskName)) {
-            method = taskCache.get(taskName);
-        } else {
-            Class task = Class.forName(taskName);
-            method = task.getMethod("run", new Class[]{ JSONObject.class });
-            taskCache.put(taskName, method);
+    private static Task bindJSON(MethodHandles.Lookup lookup, MethodHandle run) {
+        if (run.type().returnType() != void.class) {
+            final JSONFunction json = (JSONFunction)
+                generate(lookup, run, JSONFunction.class, JSON_CALL_TYPE);
+            return new Task() {
+                public Object run(Envelope envelope) throws Exception {
+                    return json.run(envelope.message());
+                }
+            };
         }
 
-        method.invoke(null, new Object[]{ message });
+        final JSONTask json = (JSONTask) generate(lookup, run, JSONTask.class, JSON_RUN_TYPE);
+        return new Task() {
+            public Object run(Envelope envelope) throws Exception {
+                json.run(envelope.message());
+                return null;
+            }
+        };
+    }
+
+    // Generates an implementation of the given interface which calls run.
+    private static Object generate(MethodHandles.Lookup lookup, MethodHandle run,
+            Class<?> type, MethodType runType) {
+        String method = (type == BatchTask.class) ? "runBatch" : "run";
+
+        // Classes from a loader below ours (such as a deployed jar's) link
+        // here but can't be resolved when called, so use the handle.
+        if (!visible(MethodHandles.reflectAs(Method.class, run).getDeclaringClass()))
+            return wrap(run, type);
+
+        try {
+            CallSite site = LambdaMetafactory.metafactory(lookup, method,
+                MethodType.methodType(type), runType, run, runType);
+            return site.getTarget().invoke();
+        } catch (Throwable e) {
+            // Classes the metafactory can't link against are called through
+            // the handle.
+            logger.debug("Falling back to a method handle for " + run, e);
+            return wrap(run, type);
+        }
+    }
+
+    private static Object wrap(MethodHandle run, Class<?> type) {
+        if (type == JSONFunction.class || type == RawFunction.class)
+            return new HandleFunction(run);
+        return new HandleTask(run);
+    }
+
+    // Whether a class resolves by name from Octobot's own class loader.
+    private static boolean visible(Class<?> taskClass) {
+        try {
+            return Class.forName(taskClass.getName(), false,
+                TaskExecutor.class.getClassLoader()) == taskClass;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    // A task deployed from a jar, counted in and out of it so that the jar's
+    // loader is kept until its calls finish. A call which finds the jar
+    // already replaced and closed runs the current version instead.
+    private static class DeployedTask implements Task {
+        private final TaskJar jar;
+        private final Task task;
+
+        DeployedTask(TaskJar jar, Task task) {
+            this.jar = jar;
+            this.task = task;
+        }
+
+        public Object run(Envelope envelope) throws Exception {
+            if (!jar.enter()) return execute(envelope);
+
+            try {
+                return task.run(envelope);
+            } finally {
+                jar.exit();
+            }
+        }
+    }
+
+    private static class DeployedBatch implements BatchTask {
+        private final TaskJar jar;
+        private final String taskName;
+        private final BatchTask batchTask;
+
+        DeployedBatch(TaskJar jar, String taskName, BatchTask batchTask) {
+            this.jar = jar;
+            this.taskName = taskName;
+            this.batchTask = batchTask;
+        }
+
+        public boolean[] runBatch(List<JSONObject> messages) throws Exception {
+            if (!jar.enter()) {
+                BatchTask current = batchCache.get(taskName);
+                if (current == null) current = bindBatch(taskName);
+                if (current == NO_BATCH)
+                    throw new NoSuchMethodException(taskName + ".runBatch(List)");
+                return current.runBatch(messages);
+            }
+
+            try {
+                return batchTask.runBatch(messages);
+            } finally {
+                jar.exit();
+            }
+        }
+    }
+
+    // Invokes a task's run method through an exactly-typed method handle.
+    private static class HandleTask implements JSONTask, RawTask, BatchTask {
+        private final MethodHandle handle;
+
+        HandleTask(MethodHandle handle) {
+            this.handle = handle;
+        }
+
+        public void run(JSONObject message) throws Exception {
+            try {
+                handle.invokeExact(message);
+            } catch (Exception e) {
+                throw e;
+            } catch (Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        public void run(byte[] message) throws Exception {
+            try {
+                handle.invokeExact(message);
+            } catch (Exception e) {
+                throw e;
+            } catch (Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        public boolean[] runBatch(List<JSONObject> messages) throws Exception {
+            try {
+                return (boolean[]) handle.invokeExact((List) messages);
+            } catch (Exception e) {
+                throw e;
+            } catch (Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    // Invokes a run method which returns a result, boxing it if primitive.
+    private static class HandleFunction implements JSONFunction, RawFunction {
+        private final MethodHandle handle;
+
+        HandleFunction(MethodHandle handle) {
+            this.handle = handle.asType(handle.type().changeReturnType(Object.class));
+        }
+
+        public Object run(JSONObject message) throws Exception {
+            try {
+                return handle.invokeExact(message);
+            } catch (Exception e) {
+                throw e;
+            } catch (Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        public Object run(byte[] message) throws Exception {
+            try {
+                return handle.invokeExact(message);
+            } catch (Exception e) {
+                throw e;
+            } catch (Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new RuntimeException(e);
+            }
+        }
     }
 
 }
@@ -0,0 +1,161 @@
+package com.urbanairship.octobot;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import org.apache.log4j.Logger;
+import org.json.simple.JSONObject;
+
+
+// A version of a jar of tasks, loaded in a class loader of its own. The
+// jar is copied before loading, so that it can be replaced on disk while
+// this version still runs. Its tasks are the top-level classes with a
+// public static run method.
+//
+// The loader delegates to Octobot's first, as usual, so a task that's also
+// on the classpath is run from there rather than from the jar.
+//
+// Each call into the jar is counted in and out, so that once a newer
+// version has replaced it, its loader can be closed as soon as the calls
+// still running on it have finished.
+
+public class TaskJar {
+
+    private static final Logger logger = Logger.getLogger("Task Jar");
+
+    private final File source;
+    private final File copy;
+    private final URLClassLoader loader;
+    private final Map<String, Class<?>> tasks;
+
+    // Calls running on this version, or -1 once it's closed.
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private TaskJar(File source, File copy, URLClassLoader loader, Map<String, Class<?>> tasks) {
+        this.source = source;
+        this.copy = copy;
+        this.loader = loader;
+        this.tasks = Collections.unmodifiableMap(tasks);
+    }
+
+    // Loads the tasks in a jar.
+    public static TaskJar load(File source) throws IOException {
+        File copy = File.createTempFile("octobot-task-", ".jar");
+        URLClassLoader loader = null;
+
+        try {
+            Files.copy(source.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            loader = new URLClassLoader(new URL[] { copy.toURI().toURL() },
+                TaskJar.class.getClassLoader());
+
+            Map<String, Class<?>> tasks = new LinkedHashMap<String, Class<?>>();
+            JarFile jar = new JarFile(copy);
+            try {
+                Enumeration<JarEntry> entries = jar.entries();
+                while (entries.hasMoreElements()) {
+                    String name = entries.nextElement().getName();
+                    if (!name.endsWith(".class") || name.contains("$") ||
+                            name.endsWith("-info.class"))
+                        continue;
+
+                    String className = name.substring(0, name.length() - 6).replace('/', '.');
+                    Class<?> taskClass = findTask(loader, className);
+                    if (taskClass == null) continue;
+
+                    if (taskClass.getClassLoader() != loader)
+                        logger.warn(className + " in " + source + " is also on the classpath, " +
+                            "which takes precedence; the jar's version won't be run.");
+                    else
+                        tasks.put(className, taskClass);
+                }
+            } finally {
+                jar.close();
+            }
+
+            return new TaskJar(source, copy, loader, tasks);
+        } catch (IOException e) {
+            if (loader != null) loader.close();
+            copy.delete();
+            throw e;
+        }
+    }
+
+    // Returns the class named if it's a task, without initializing it.
+    private static Class<?> findTask(ClassLoader loader, String className) {
+        try {
+            Class<?> taskClass = Class.forName(className, false, loader);
+            if (!Modifier.isPublic(taskClass.getModifiers())) return null;
+
+            for (Class<?> messageType : new Class<?>[] { JSONObject.class, byte[].class }) {
+                try {
+                    Method run = taskClass.getMethod("run", messageType);
+                    if (Modifier.isStatic(run.getModifiers())) return taskClass;
+                } catch (NoSuchMethodException e) {
+                    // Try the other message type.
+                }
+            }
+        } catch (ClassNotFoundException e) {
+            logger.debug("Unable to load " + className + ".", e);
+        } catch (LinkageError e) {
+            logger.debug("Unable to link " + className + ".", e);
+        }
+
+        return null;
+    }
+
+    public File source() {
+        return source;
+    }
+
+    // The tasks in the jar, by name.
+    public Map<String, Class<?>> tasks() {
+        return tasks;
+    }
+
+    // Counts a call in, returning false if this version is closed.
+    public boolean enter() {
+        while (true) {
+            int current = inFlight.get();
+            if (current < 0) return false;
+            if (inFlight.compareAndSet(current, current + 1)) return true;
+        }
+    }
+
+    public void exit() {
+        inFlight.decrementAndGet();
+    }
+
+    // The number of calls running on this version.
+    public int inFlight() {
+        return Math.max(inFlight.get(), 0);
+    }
+
+    // Closes this version's loader if no calls are running on it, and
+    // returns whether it's closed. Calls made after are turned away.
+    public boolean close() {
+        if (inFlight.get() < 0) return true;
+        if (!inFlight.compareAndSet(0, -1)) return false;
+
+        try {
+            loader.close();
+        } catch (IOException e) {
+            logger.debug("Error closing the class loader for " + source + ".", e);
+        }
+        copy.delete();
+        return true;
+    }
+
+}
@@ -0,0 +1,184 @@
+package com.urbanairship.octobot;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+
+// Bounds how much of Octobot a single task may take up: at most
+// maxConcurrent of its messages running at once, and at most rate started
+// per second, across every queue. Without limits, a task stalled on a slow
+// downstream service can occupy every worker on its queue, starving the
+// other tasks which share it.
+//
+// Consumers never wait on a limit. A message over its task's limit is put
+// off instead, rescheduled on the queue (or held by the consumer, if the
+// queue can't delay it) for deferDelay ms, or as long as the rate requires,
+// leaving the worker free for other tasks meanwhile. Each wait is stretched
+// by up to half again at random, so that messages put off together don't
+// all come back together to be put off again.
+
+public class TaskLimit {
+
+    private static final Logger logger = Logger.getLogger("Task Limit");
+
+    private static final ConcurrentHashMap<String, TaskLimit> limits =
+        new ConcurrentHashMap<String, TaskLimit>();
+
+    private final int maxConcurrent;
+    private final double rate;
+    private final int deferDelay;
+
+    private final AtomicInteger running = new AtomicInteger();
+
+    // Tokens for the rate limit, refilled continuously up to a second's
+    // worth. Guarded by this.
+    private final double burst;
+    private double tokens;
+    private long refilledAt = System.nanoTime();
+
+    // A maxConcurrent or rate of 0 leaves that dimension unlimited.
+    public TaskLimit(int maxConcurrent, double rate, int deferDelay) {
+        this.maxConcurrent = maxConcurrent;
+        this.rate = rate;
+        this.deferDelay = deferDelay;
+        this.burst = Math.max(1, rate);
+        this.tokens = burst;
+    }
+
+    // Sets up the limits listed in the config's task_limits, each a map
+    // naming the task, with max_concurrent, rate and defer.
+    public static void configure(List<Map<String, Object>> config) {
+        for (Map<String, Object> entry : config) {
+            TaskLimit limit = parse(entry);
+            if (limit == null) continue;
+
+            String task = (String) entry.get("task");
+            logger.info("Limiting " + task + " to " + limit + ".");
+            set(task, limit);
+        }
+    }
+
+    // Brings the limits in line with a reloaded task_limits (or null, for
+    // none), keeping those unchanged so their running counts carry over.
+    public static void reconfigure(List<Map<String, Object>> config) {
+        Set<String> listed = new HashSet<String>();
+
+        if (config != null) {
+            for (Map<String, Object> entry : config) {
+                TaskLimit limit = parse(entry);
+                if (limit == null) continue;
+
+                String task = (String) entry.get("task");
+                listed.add(task);
+                if (limit.sameAs(limits.get(task))) continue;
+
+                logger.info("Limiting " + task + " to " + limit + ".");
+                set(task, limit);
+            }
+        }
+
+        for (String task : limits.keySet()) {
+            if (listed.contains(task)) continue;
+            logger.info("No longer limiting " + task + ".");
+            set(task, null);
+        }
+    }
+
+    // Reads a limit from its config, or returns null if it names no task.
+    private static TaskLimit parse(Map<String, Object> entry) {
+        String task = (String) entry.get("task");
+        if (task == null) {
+            logger.error("Ignoring a task limit which names no task.");
+            return null;
+        }
+
+        int maxConcurrent = Settings.getIntFromYML(entry.get("max_concurrent"), 0);
+        double rate = 0;
+        if (entry.get("rate") != null) {
+            try { rate = Double.parseDouble(entry.get("rate").toString()); }
+            catch (NumberFormatException e) { logger.info("Error reading settings."); }
+        }
+        int deferDelay = Settings.getIntFromYML(entry.get("defer"), 100);
+
+        return new TaskLimit(maxConcurrent, rate, deferDelay);
+    }
+
+    public String toString() {
+        return (maxConcurrent > 0 ? maxConcurrent + " at once" : "any number at once") +
+            (rate > 0 ? ", " + rate + " per second" : "");
+    }
+
+    private boolean sameAs(TaskLimit other) {
+        return other != null && other.maxConcurrent == maxConcurrent &&
+            other.rate == rate && other.deferDelay == deferDelay;
+    }
+
+    public static void set(String task, TaskLimit limit) {
+        if (limit == null) limits.remove(task);
+        else limits.put(task, limit);
+    }
+
+    // Returns a task's limit, or null if it has none.
+    public static TaskLimit forTask(String task) {
+        if (limits.isEmpty()) return null;
+        return limits.get(task);
+    }
+
+    // Whether any task is limited.
+    public static boolean any() {
+        return !limits.isEmpty();
+    }
+
+    // Takes a slot for a message if the limits allow it, returning 0, or
+    // otherwise returns how long (in ms) to put the message off for.
+    // Each slot taken must be released once its message has run.
+    public long acquire() {
+        while (true) {
+            int current = running.get();
+            if (maxConcurrent > 0 && current >= maxConcurrent) return jitter(deferDelay);
+            if (running.compareAndSet(current, current + 1)) break;
+        }
+
+        long wait = (rate > 0 ? take() : 0);
+        if (wait == 0) return 0;
+
+        running.decrementAndGet();
+        return jitter(wait);
+    }
+
+    public void release() {
+        running.decrementAndGet();
+    }
+
+    // The number of the task's messages running now.
+    public int running() {
+        return running.get();
+    }
+
+    // Stretches a wait by up to half again.
+    private static long jitter(long wait) {
+        return wait + ThreadLocalRandom.current().nextLong(wait / 2 + 1);
+    }
+
+    // Takes a token, returning 0, or the time until one will be available.
+    private synchronized long take() {
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - refilledAt) * rate / 1e9);
+        refilledAt = now;
+
+        if (tokens >= 1) {
+            tokens--;
+            return 0;
+        }
+
+        return Math.max(1, (long) Math.ceil((1 - tokens) * 1000 / rate));
+    }
+
+}
@@ -0,0 +1,52 @@
+package com.urbanairship.octobot;
+
+import java.util.concurrent.atomic.LongAdder;
+
+
+// The instruments recording a single task's results. Each task's holder is
+// created once and cached by Metrics, so recording a result is just a few
+// striped counter increments and a histogram update.
+
+public class TaskMetrics {
+
+    private final LongAdder successes = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder deferred = new LongAdder();
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    // Records a run of the task, taking time ns after retrying it retries times.
+    public void record(long time, boolean succeeded, int retries) {
+        latency.record(time);
+        if (retries > 0) this.retries.add(retries);
+
+        if (succeeded) successes.increment();
+        else failures.increment();
+    }
+
+    // Records a message put off by the task's limit.
+    public void deferred() {
+        deferred.increment();
+    }
+
+    public long successes() {
+        return successes.sum();
+    }
+
+    public long failures() {
+        return failures.sum();
+    }
+
+    public long retries() {
+        return retries.sum();
+    }
+
+    public long deferrals() {
+        return deferred.sum();
+    }
+
+    public LatencyHistogram latency() {
+        return latency;
+    }
+
+}
@@ -0,0 +1,22 @@
+package com.urbanairship.octobot;
+
+import java.util.concurrent.TimeUnit;
+
+
+// Somewhere a queue's receiver can hand off tasks to run: a pool of its
+// own (WorkerPool), or its lane of a pool shared between queues
+// (FairScheduler).
+
+public interface TaskPool {
+
+    // Submits a task for execution, waiting up to the timeout for room.
+    // Returns false if there was still none.
+    boolean submit(Runnable task, long timeout, TimeUnit unit) throws InterruptedException;
+
+    // Returns the number of tasks submitted but not yet completed.
+    int inFlight();
+
+    // Stops accepting tasks once those submitted have run.
+    void shutdown();
+
+}
@@ -0,0 +1,89 @@
+package com.urbanairship.octobot;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+import org.json.simple.JSONObject;
+
+
+// Enqueues tasks for Octobot workers. Messages are built from a task name
+// and payload, and sent to the queue in batches of publish_batch over the
+// QueuePublisher for its protocol: published with asynchronous confirms to
+// AMQP, pipelined LPUSHes (or PUBLISHes) to Redis, pipelined puts to
+// Beanstalk, or appended to a local queue. A producer enqueueing many
+// tasks then pays one round trip per batch rather than one per message.
+//
+// Messages are only sent once a batch fills, so call flush() once done
+// publishing (or close(), which also flushes), which returns once the
+// server has taken every message. Safe to share between threads.
+//
+//     TaskPublisher publisher = new TaskPublisher(queue);
+//     for (JSONObject subtask : subtasks)
+//         publisher.publish("org.example.taquito.tasks.AddSalsa", subtask);
+//     publisher.close();
+
+public class TaskPublisher {
+
+    private final Queue queue;
+    private final QueuePublisher transport;
+    private final ArrayList<byte[]> batch;
+    private boolean connected = false;
+
+    // Throws an IllegalArgumentException if no transport serves the queue.
+    public TaskPublisher(Queue queue) {
+        this.queue = queue;
+        this.transport = QueueBackends.createPublisher(queue);
+        this.batch = new ArrayList<byte[]>(queue.publishBatch);
+    }
+
+    public void publish(String task, JSONObject payload) throws IOException {
+        publish(Envelope.create(task, 0, payload));
+    }
+
+    // Publishes a task, to be retried up to retries times if it fails.
+    public void publish(String task, JSONObject payload, long retries) throws IOException {
+        publish(Envelope.create(task, retries, payload));
+    }
+
+    public synchronized void publish(Envelope envelope) throws IOException {
+        batch.add(envelope.body());
+        if (batch.size() >= queue.publishBatch) send();
+    }
+
+    // Sends any messages waiting for their batch to fill, and waits until
+    // the server has taken every message published.
+    public synchronized void flush() throws IOException {
+        send();
+
+        try { transport.flush(); }
+        catch (IOException e) {
+            connected = false;
+            throw e;
+        }
+    }
+
+    public synchronized void close() throws IOException {
+        try { flush(); }
+        finally { transport.close(); }
+    }
+
+    // Sends the batch, reconnecting first if the last send failed. A batch
+    // which fails to send is kept, to be sent again.
+    private void send() throws IOException {
+        if (batch.isEmpty()) return;
+
+        if (!connected) {
+            transport.connect();
+            connected = true;
+        }
+
+        try { transport.send(batch); }
+        catch (IOException e) {
+            connected = false;
+            throw e;
+        }
+
+        batch.clear();
+    }
+
+}
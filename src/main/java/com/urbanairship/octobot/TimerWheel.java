@@ -0,0 +1,85 @@
+package com.urbanairship.octobot;
+
+import java.util.List;
+import java.util.Iterator;
+import java.util.ArrayList;
+
+
+// A hashed timer wheel holding items until they come due. Time is divided
+// into ticks, and each item is filed in the slot for the tick it's due in,
+// so scheduling is constant time and each expiry only looks at the slots
+// for the ticks which have passed. Items due more than a revolution out
+// share their slot, and stay put until their own tick comes around.
+//
+// Nothing runs on a timer thread: the owner calls expire() as it polls,
+// so items come due to the nearest tick at the owner's next check-in.
+
+public class TimerWheel<T> {
+
+    private final long tick;
+    private final List<List<Entry<T>>> slots;
+    private final long startedAt = System.currentTimeMillis();
+
+    // The last tick whose slot has been expired, and the items waiting.
+    private long expiredTick = 0;
+    private int size = 0;
+
+    private static class Entry<T> {
+        final T item;
+        final long dueTick;
+
+        Entry(T item, long dueTick) {
+            this.item = item;
+            this.dueTick = dueTick;
+        }
+    }
+
+    // Creates a wheel of the given number of slots, each spanning tick ms.
+    public TimerWheel(long tick, int slots) {
+        this.tick = tick;
+        this.slots = new ArrayList<List<Entry<T>>>(slots);
+        for (int i = 0; i < slots; i++)
+            this.slots.add(new ArrayList<Entry<T>>());
+    }
+
+    // Schedules an item to come due after delay ms.
+    public synchronized void schedule(T item, long delay) {
+        long dueTick = (System.currentTimeMillis() - startedAt + delay + tick - 1) / tick;
+        if (dueTick <= expiredTick) dueTick = expiredTick + 1;
+
+        slots.get((int) (dueTick % slots.size())).add(new Entry<T>(item, dueTick));
+        size++;
+    }
+
+    // Removes and returns the items which have come due.
+    public synchronized List<T> expire() {
+        List<T> result = new ArrayList<T>();
+        long now = (System.currentTimeMillis() - startedAt) / tick;
+
+        while (expiredTick < now) {
+            if (size == 0) {
+                expiredTick = now;
+                break;
+            }
+
+            expiredTick++;
+            Iterator<Entry<T>> iterator = slots.get((int) (expiredTick % slots.size())).iterator();
+            while (iterator.hasNext()) {
+                Entry<T> entry = iterator.next();
+                if (entry.dueTick <= expiredTick) {
+                    result.add(entry.item);
+                    iterator.remove();
+                    size--;
+                }
+            }
+        }
+
+        return result;
+    }
+
+    // Returns the number of items waiting.
+    public synchronized int size() {
+        return size;
+    }
+
+}
@@ -0,0 +1,122 @@
+package com.urbanairship.octobot;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+
+// A bounded pool of worker threads fed by a queue's receiver. Tasks are run
+// on pool threads as they arrive; once the in-flight limit is reached,
+// submission blocks so the receiver stops pulling messages off the queue.
+
+public class WorkerPool implements TaskPool {
+
+    private static final Logger logger = Logger.getLogger("Worker Pool");
+
+    private final ExecutorService executor;
+    private final Semaphore permits;
+    private final int maxInFlight;
+
+    public WorkerPool(String name, int poolSize, int maxInFlight, int priority) {
+        // Permits bound the number of queued tasks, so the work queue itself
+        // can be left unbounded without risk of running away.
+        this(new ThreadPoolExecutor(poolSize, poolSize, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), threadFactory(name, priority)),
+            maxInFlight);
+    }
+
+    private WorkerPool(ExecutorService executor, int maxInFlight) {
+        this.executor = executor;
+        this.maxInFlight = maxInFlight;
+        this.permits = new Semaphore(maxInFlight);
+    }
+
+    // Returns a pool which runs each task on a virtual thread of its own,
+    // with concurrency capped at maxInFlight. Virtual threads are looked up
+    // reflectively, as they're only present on newer JVMs. Elsewhere, we
+    // fall back to a thread per task which is reused once idle.
+    public static WorkerPool virtual(String name, int maxInFlight) {
+        ExecutorService executor = null;
+
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            executor = (ExecutorService) factory.invoke(null);
+        } catch (Exception e) {
+            logger.warn("Virtual threads aren't available on this JVM; queue " + name +
+                " will run its tasks on platform threads instead, up to " + maxInFlight +
+                " at once.");
+            executor = Executors.newCachedThreadPool(
+                threadFactory(name, Thread.NORM_PRIORITY));
+        }
+
+        return new WorkerPool(executor, maxInFlight);
+    }
+
+    private static ThreadFactory threadFactory(final String name, final int priority) {
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable,
+                    "Worker " + name + "-" + count.incrementAndGet());
+                thread.setPriority(priority);
+                return thread;
+            }
+        };
+    }
+
+    // Submits a task for execution, waiting up to the timeout for a slot to
+    // free up. Returns false if the pool was still at capacity.
+    public boolean submit(final Runnable task, long timeout, TimeUnit unit)
+            throws InterruptedException {
+        if (!permits.tryAcquire(timeout, unit)) return false;
+
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    try { task.run(); }
+                    finally { permits.release(); }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            permits.release();
+            throw e;
+        }
+
+        return true;
+    }
+
+    // Returns the number of tasks submitted but not yet completed.
+    public int inFlight() {
+        return maxInFlight - permits.availablePermits();
+    }
+
+    // Changes the number of worker threads, for pools which have a fixed
+    // number. Threads over the new size exit once their tasks are done.
+    public void resize(int poolSize) {
+        if (!(executor instanceof ThreadPoolExecutor)) return;
+
+        ThreadPoolExecutor threads = (ThreadPoolExecutor) executor;
+        if (poolSize > threads.getMaximumPoolSize()) {
+            threads.setMaximumPoolSize(poolSize);
+            threads.setCorePoolSize(poolSize);
+        } else {
+            threads.setCorePoolSize(poolSize);
+            threads.setMaximumPoolSize(poolSize);
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+}
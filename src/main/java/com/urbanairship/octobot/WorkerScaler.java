@@ -0,0 +1,167 @@
+package com.urbanairship.octobot;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+
+// Starts a queue's inline workers, and if it's allowed a range of them,
+// grows and shrinks the set to suit its load. Every scale interval, the
+// scaler looks at how busy the workers were over the last interval, and
+// at the queue's backlog if its depth is polled:
+//
+//  - Workers busy at least 75% of the time, or a backlog which has grown,
+//    add half as many workers again (at least one), up to max_workers.
+//  - Workers busy at most 25% of the time with no known backlog drain one
+//    worker, down to min_workers.
+//
+// A worker scaled down is drained: it stops taking messages, finishes and
+// acknowledges the task in hand, and exits. When the config is reloaded,
+// the scaler takes up the queue's new worker range and priority in place.
+
+public class WorkerScaler implements Runnable {
+
+    private static final Logger logger = Logger.getLogger("Worker Scaler");
+
+    private static final double SCALE_UP_UTILIZATION = 0.75;
+    private static final double SCALE_DOWN_UTILIZATION = 0.25;
+
+    private volatile Queue queue;
+    private int priority;
+    private final QueueMetrics metrics;
+    private final List<QueueConsumer> workers = new ArrayList<QueueConsumer>();
+    private final List<Thread> threads = new ArrayList<Thread>();
+    private volatile boolean stopped = false;
+
+    private long lastBusy = 0;
+    private long lastIdle = 0;
+    private long lastDepth = -1;
+
+    public WorkerScaler(Queue queue, int priority) {
+        this.queue = queue;
+        this.priority = priority;
+        this.metrics = QueueMetrics.forQueue(queue.queueName);
+    }
+
+    // Starts the queue's initial workers.
+    public synchronized void start() {
+        for (int i = 0; i < queue.workers; i++) addWorker();
+    }
+
+    // Whether the queue's worker count is allowed to change.
+    public boolean isScaling() {
+        return queue.maxWorkers > queue.minWorkers;
+    }
+
+    public void run() {
+        logger.info("Scaling " + queue.queueName + " between " + queue.minWorkers +
+            " and " + queue.maxWorkers + " workers.");
+        lastBusy = metrics.busyTime();
+        lastIdle = metrics.idleTime();
+
+        while (Lifecycle.isRunning() && !stopped) {
+            try { Thread.sleep(queue.scaleInterval * 1000L); }
+            catch (InterruptedException e) { return; }
+
+            scale();
+        }
+    }
+
+    // Measures the last interval, and adds or drains workers to suit.
+    synchronized void scale() {
+        if (!Lifecycle.isRunning() || stopped) return;
+
+        long busy = metrics.busyTime();
+        long idle = metrics.idleTime();
+        long depth = metrics.depth();
+
+        long elapsed = (busy - lastBusy) + (idle - lastIdle);
+        double utilization = elapsed == 0 ? 0 : (double) (busy - lastBusy) / elapsed;
+
+        int current = workers.size();
+        int target = target(current, utilization, depth, lastDepth,
+            queue.minWorkers, queue.maxWorkers);
+
+        lastBusy = busy;
+        lastIdle = idle;
+        lastDepth = depth;
+
+        if (target == current) return;
+
+        logger.info("Scaling " + queue.queueName + " from " + current + " to " + target +
+            " workers (" + Math.round(utilization * 100) + "% busy, " +
+            (depth < 0 ? "unknown" : Long.toString(depth)) + " waiting).");
+
+        resize(target);
+    }
+
+    // Takes up a reloaded config for the queue, which differs only in its
+    // workers and priority: moves the worker count into the new range (or
+    // to the new count, if it's fixed), and reprioritizes the workers.
+    public synchronized void reconfigure(Queue queue, int priority) {
+        if (stopped) return;
+        this.queue = queue;
+        this.priority = priority;
+
+        for (Thread thread : threads) thread.setPriority(priority);
+
+        int target = isScaling() ?
+            Math.max(Math.min(workers.size(), queue.maxWorkers), queue.minWorkers) :
+            queue.workers;
+
+        if (target != workers.size())
+            logger.info("Resizing " + queue.queueName + " from " + workers.size() +
+                " to " + target + " workers.");
+        resize(target);
+    }
+
+    // Drains every worker, and stops scaling. Returns the workers' threads,
+    // which exit once they've drained.
+    public synchronized List<Thread> stop() {
+        List<Thread> draining = new ArrayList<Thread>(threads);
+        stopped = true;
+        resize(0);
+        return draining;
+    }
+
+    private void resize(int target) {
+        while (workers.size() < target) addWorker();
+        while (workers.size() > target) {
+            threads.remove(threads.size() - 1);
+            workers.remove(workers.size() - 1).drain();
+        }
+    }
+
+    // Returns the number of workers to run, given the current number, how
+    // busy they were, and the queue's depth now and at the last check (each
+    // -1 if unknown).
+    public static int target(int workers, double utilization, long depth, long lastDepth,
+            int min, int max) {
+        boolean backlogGrowing = (depth > 0 && lastDepth >= 0 && depth > lastDepth);
+
+        if (utilization >= SCALE_UP_UTILIZATION || backlogGrowing)
+            return Math.min(workers + Math.max(workers / 2, 1), max);
+
+        if (utilization <= SCALE_DOWN_UTILIZATION && depth <= 0)
+            return Math.max(workers - 1, min);
+
+        return Math.max(Math.min(workers, max), min);
+    }
+
+    private void addWorker() {
+        QueueConsumer consumer = new QueueConsumer(queue);
+        Thread worker = new Thread(consumer, "Worker");
+        workers.add(consumer);
+        threads.add(worker);
+        Lifecycle.register(consumer, worker);
+
+        logger.info("Attempting to connect to " + queue.queueType + " queue: " +
+            queue.queueName + " with priority " + priority + "/10 " + "(Worker " +
+            workers.size() + "/" + queue.maxWorkers + ").");
+
+        worker.setPriority(priority);
+        worker.start();
+    }
+
+}
@@ -0,0 +1,184 @@
+package com.urbanairship.octobot;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+
+
+// A stand-in for beanstalkd, holding jobs in memory, for specs to run
+// against. It speaks just enough of the protocol for BeanstalkQueue: a
+// single tube, without delays or TTR expiry, and counting touches.
+
+public class FakeBeanstalkd implements Runnable {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final ServerSocket server;
+    private long nextId = 1;
+
+    private final LinkedHashMap<Long, byte[]> ready = new LinkedHashMap<Long, byte[]>();
+    private final LinkedHashMap<Long, byte[]> reserved = new LinkedHashMap<Long, byte[]>();
+    private final Set<Long> buried = new HashSet<Long>();
+    private int touches = 0;
+
+    public FakeBeanstalkd() throws IOException {
+        server = new ServerSocket(0);
+        Thread thread = new Thread(this, "Fake Beanstalkd");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public int port() {
+        return server.getLocalPort();
+    }
+
+    public synchronized long put(String data) {
+        long id = nextId++;
+        ready.put(id, data.getBytes(ASCII));
+        return id;
+    }
+
+    public synchronized int ready() { return ready.size(); }
+    public synchronized int reserved() { return reserved.size(); }
+    public synchronized int buried() { return buried.size(); }
+    public synchronized int touches() { return touches; }
+
+    public void close() throws IOException {
+        server.close();
+    }
+
+    public void run() {
+        while (!server.isClosed()) {
+            try {
+                final Socket socket = server.accept();
+                Thread connection = new Thread(new Runnable() {
+                    public void run() { serve(socket); }
+                }, "Fake Beanstalkd Connection");
+                connection.setDaemon(true);
+                connection.start();
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        List<Long> mine = new ArrayList<Long>();
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+
+            String line = null;
+            while ((line = readLine(in)) != null) {
+                String[] command = line.split(" ");
+                String name = command[0];
+
+                if (name.equals("use")) {
+                    reply(out, "USING " + command[1]);
+                } else if (name.equals("watch") || name.equals("ignore")) {
+                    reply(out, "WATCHING 1");
+                } else if (name.equals("reserve-with-timeout")) {
+                    reserve(out, mine, Integer.parseInt(command[1]));
+                } else if (name.equals("stats-job")) {
+                    String stats = "---\nid: " + command[1] + "\npri: 1024\nttr: 1\n";
+                    reply(out, "OK " + stats.length() + "\r\n" + stats);
+                } else if (name.equals("stats-tube")) {
+                    String stats = "---\nname: " + command[1] +
+                        "\ncurrent-jobs-ready: " + ready() + "\n";
+                    reply(out, "OK " + stats.length() + "\r\n" + stats);
+                } else if (name.equals("delete")) {
+                    reply(out, release(mine, Long.parseLong(command[1])) ? "DELETED" : "NOT_FOUND");
+                } else if (name.equals("bury")) {
+                    long id = Long.parseLong(command[1]);
+                    boolean found = release(mine, id);
+                    if (found) synchronized (this) { buried.add(id); }
+                    reply(out, found ? "BURIED" : "NOT_FOUND");
+                } else if (name.equals("touch")) {
+                    synchronized (this) { touches++; }
+                    reply(out, mine.contains(Long.parseLong(command[1])) ? "TOUCHED" : "NOT_FOUND");
+                } else if (name.equals("put")) {
+                    byte[] body = new byte[Integer.parseInt(command[4])];
+                    int read = 0;
+                    while (read < body.length) read += in.read(body, read, body.length - read);
+                    in.read();
+                    in.read();
+                    synchronized (this) {
+                        long id = nextId++;
+                        ready.put(id, body);
+                        reply(out, "INSERTED " + id);
+                    }
+                } else {
+                    reply(out, "UNKNOWN_COMMAND");
+                }
+            }
+        } catch (IOException e) {
+            // The client went away.
+        } finally {
+            // As beanstalkd does, release the jobs held by a closed connection.
+            synchronized (this) {
+                for (long id : mine) ready.put(id, reserved.remove(id));
+            }
+            try { socket.close(); }
+            catch (IOException e) { }
+        }
+    }
+
+    private void reserve(OutputStream out, List<Long> mine, int timeout) throws IOException {
+        long deadline = System.currentTimeMillis() + timeout * 1000L;
+        while (true) {
+            synchronized (this) {
+                if (!ready.isEmpty()) {
+                    long id = ready.keySet().iterator().next();
+                    byte[] body = ready.remove(id);
+                    reserved.put(id, body);
+                    mine.add(id);
+                    out.write(("RESERVED " + id + " " + body.length + "\r\n").getBytes(ASCII));
+                    out.write(body);
+                    reply(out, "");
+                    return;
+                }
+            }
+            if (System.currentTimeMillis() >= deadline) {
+                reply(out, "TIMED_OUT");
+                return;
+            }
+            try { Thread.sleep(10); }
+            catch (InterruptedException e) { return; }
+        }
+    }
+
+    private synchronized boolean release(List<Long> mine, long id) {
+        if (!mine.remove(Long.valueOf(id))) return false;
+        reserved.remove(id);
+        return true;
+    }
+
+    private void reply(OutputStream out, String line) throws IOException {
+        out.write((line + "\r\n").getBytes(ASCII));
+        out.flush();
+    }
+
+    private String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int last = -1;
+        while (true) {
+            int b = in.read();
+            if (b < 0) return null;
+            if (last == '\r' && b == '\n') break;
+            if (last >= 0) line.write(last);
+            last = b;
+        }
+        return new String(line.toByteArray(), ASCII);
+    }
+
+}
@@ -0,0 +1,24 @@
+package com.urbanairship.octobot.tasks;
+
+import java.util.List;
+
+import org.apache.log4j.Logger;
+import org.json.simple.JSONObject;
+
+// This is a sample test used for execution verification in the test suite.
+
+public class SampleBatchTask {
+
+    private static final Logger logger = Logger.getLogger("Sample Batch Task");
+
+    // Succeeds for each message, unless it asks to fail.
+    public static boolean[] runBatch(List<JSONObject> tasks) {
+        logger.info("== Successfully ran SampleBatchTask with " + tasks.size() + " messages.");
+
+        boolean[] results = new boolean[tasks.size()];
+        for (int i = 0; i < results.length; i++)
+            results[i] = !Boolean.TRUE.equals(tasks.get(i).get("fail"));
+
+        return results;
+    }
+}
@@ -0,0 +1,15 @@
+package com.urbanairship.octobot.tasks;
+
+import org.apache.log4j.Logger;
+
+// This is a sample test used for execution verification in the test suite.
+
+public class SampleRawTask {
+
+    private static final Logger logger = Logger.getLogger("Sample Raw Task");
+
+    // Receives the message as it arrived off the queue.
+    public static void run(byte[] task) {
+        logger.info("== Successfully ran SampleRawTask with " + task.length + " bytes.");
+    }
+}
@@ -0,0 +1,13 @@
+package com.urbanairship.octobot.tasks;
+
+import org.json.simple.JSONObject;
+
+// This is a sample test used for execution verification in the test suite.
+
+public class SampleResultTask {
+
+    // Returns the message's "echo" field as its result.
+    public static Object run(JSONObject task) {
+        return task.get("echo");
+    }
+}
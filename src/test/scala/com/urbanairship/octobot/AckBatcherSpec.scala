@@ -0,0 +1,91 @@
+import com.codahale.simplespec.Spec
+
+import com.urbanairship.octobot.AckBatcher
+import com.rabbitmq.client.Channel
+
+import java.lang.reflect.{InvocationHandler, Method, Proxy}
+import scala.collection.mutable.ListBuffer
+
+import org.junit.Test
+
+class AckBatcherSpec extends Spec {
+
+  // A channel which records the acks sent through it.
+  class RecordingChannel {
+    val acks = new ListBuffer[(Long, Boolean)]
+
+    val channel = Proxy.newProxyInstance(classOf[Channel].getClassLoader,
+      Array[Class[_]](classOf[Channel]), new InvocationHandler {
+        def invoke(proxy: Object, method: Method, args: Array[Object]): Object = {
+          if (method.getName == "basicAck")
+            acks += ((args(0).asInstanceOf[Long], args(1).asInstanceOf[Boolean]))
+          null
+        }
+      }).asInstanceOf[Channel]
+  }
+
+  class `An ack batcher` {
+
+    @Test def `should do nothing when flushed with nothing pending` {
+      val recorder = new RecordingChannel
+      val batcher = new AckBatcher(recorder.channel, 3, 60000)
+      batcher.flush(true)
+      batcher.received(1L)
+      batcher.flush(true)
+
+      recorder.acks.toList must be(List())
+      batcher.pending must be(0)
+    }
+
+    @Test def `should ack a full batch with a single multiple ack` {
+      val recorder = new RecordingChannel
+      val batcher = new AckBatcher(recorder.channel, 3, 60000)
+      for (tag <- 1L to 3L) batcher.received(tag)
+      for (tag <- 1L to 3L) batcher.completed(tag)
+
+      recorder.acks.toList must be(List((3L, true)))
+      batcher.pending must be(0)
+    }
+
+    @Test def `should never ack past a delivery still in flight` {
+      val recorder = new RecordingChannel
+      val batcher = new AckBatcher(recorder.channel, 2, 60000)
+      for (tag <- 1L to 4L) batcher.received(tag)
+      batcher.completed(1)
+      batcher.completed(3)
+      batcher.completed(4)
+
+      recorder.acks.toList must be(List((1L, true)))
+      batcher.pending must be(2)
+
+      batcher.completed(2)
+      recorder.acks.toList must be(List((1L, true), (4L, true)))
+    }
+
+    @Test def `should ack out of order completions individually once overdue` {
+      val recorder = new RecordingChannel
+      val batcher = new AckBatcher(recorder.channel, 10, 0)
+      for (tag <- 1L to 3L) batcher.received(tag)
+      batcher.completed(2)
+      batcher.completed(3)
+
+      recorder.acks.toList must be(List((2L, false), (3L, false)))
+      batcher.pending must be(0)
+    }
+
+    @Test def `should ack completions held back behind a slow delivery once overdue` {
+      val recorder = new RecordingChannel
+      val batcher = new AckBatcher(recorder.channel, 1, 50)
+      for (tag <- 1L to 2L) batcher.received(tag)
+      batcher.completed(2)
+
+      recorder.acks.toList must be(List())
+      Thread.sleep(100)
+      batcher.flushIfDue()
+
+      recorder.acks.toList must be(List((2L, false)))
+      batcher.pending must be(0)
+    }
+  }
+
+}
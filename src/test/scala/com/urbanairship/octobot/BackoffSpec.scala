@@ -0,0 +1,42 @@
+import com.codahale.simplespec.Spec
+
+import com.urbanairship.octobot.Backoff
+
+import org.junit.Test
+
+class BackoffSpec extends Spec {
+
+  class `A backoff` {
+    @Test def `should jitter each delay over the upper half of its ceiling` {
+      val backoff = new Backoff(100, 1000)
+      for (ceiling <- List(100, 200, 400, 800, 1000, 1000)) {
+        val delay = backoff.nextDelay()
+        (delay >= ceiling / 2 && delay <= ceiling) must be(true)
+      }
+    }
+
+    @Test def `should start over once reset` {
+      val backoff = new Backoff(100, 1000)
+      for (i <- 1 to 5) backoff.nextDelay()
+      backoff.reset()
+      (backoff.nextDelay() <= 100) must be(true)
+    }
+
+    @Test def `should cap the ceiling for later retries` {
+      val backoff = new Backoff(100, 1000)
+      backoff.ceilingFor(0) must be(100L)
+      backoff.ceilingFor(3) must be(800L)
+      backoff.ceilingFor(4) must be(1000L)
+      backoff.ceilingFor(Long.MaxValue) must be(1000L)
+    }
+
+    @Test def `should jitter the delay for a retry under its ceiling` {
+      val backoff = new Backoff(100, 1000)
+      for (i <- 1 to 100) {
+        val delay = backoff.delayFor(2)
+        (delay >= 200 && delay <= 400) must be(true)
+      }
+    }
+  }
+
+}
@@ -0,0 +1,91 @@
+import com.codahale.simplespec.Spec
+
+import com.urbanairship.octobot.{BeanstalkQueue, FakeBeanstalkd, Queue}
+
+import scala.collection.JavaConversions._
+
+import org.junit.Test
+
+// These specs run against an in-memory stand-in for beanstalkd.
+class BeanstalkQueueSpec extends Spec {
+
+  class `A Beanstalk queue` {
+    val server = new FakeBeanstalkd()
+    val queue = new BeanstalkQueue(new Queue("beanstalk", "tacos", "localhost", server.port))
+
+    @Test def `should reserve a batch of jobs in one fetch` {
+      for (i <- 1 to 3) server.put("job " + i)
+
+      val jobs = queue.fetch(5, 1)
+      jobs.map(job => new String(job.data, "US-ASCII")).toList must
+        be(List("job 1", "job 2", "job 3"))
+      server.reserved must be(3)
+      queue.held must be(3)
+
+      queue.close()
+      server.close()
+    }
+
+    @Test def `should delete completed jobs and bury failed ones` {
+      for (i <- 1 to 3) server.put("job " + i)
+      val jobs = queue.fetch(3, 1)
+
+      queue.completed(jobs(0).id)
+      queue.completed(jobs(1).id)
+      queue.failed(jobs(2).id)
+      queue.flush()
+
+      server.reserved must be(0)
+      server.buried must be(1)
+      queue.held must be(0)
+
+      queue.close()
+      server.close()
+    }
+
+    @Test def `should touch jobs nearing the end of their time to run` {
+      server.put("slow")
+      queue.fetch(1, 1)
+
+      Thread.sleep(1000)
+      server.touches must be > 0
+      server.reserved must be(1)
+
+      queue.close()
+      server.close()
+    }
+
+    @Test def `should touch held jobs while fetching back to back` {
+      server.put("slow")
+      queue.fetch(1, 1)
+      for (i <- 1 to 2) queue.fetch(1, 1)
+
+      server.touches must be > 0
+      server.reserved must be(1)
+
+      queue.close()
+      server.close()
+    }
+
+    @Test def `should poll depth over a bare connection` {
+      for (i <- 1 to 2) server.put("job " + i)
+      val probe = BeanstalkQueue.probe(new Queue("beanstalk", "tacos", "localhost", server.port))
+      probe.depth must be(2L)
+
+      probe.close()
+      queue.close()
+      server.close()
+    }
+
+    @Test def `should release held jobs when closed` {
+      server.put("held")
+      queue.fetch(1, 1)
+      queue.close()
+
+      Thread.sleep(100)
+      server.ready must be(1)
+      server.close()
+    }
+  }
+
+}
@@ -0,0 +1,32 @@
+import com.codahale.simplespec.Spec
+
+import com.urbanairship.octobot.DedupCache
+
+import org.junit.Test
+
+class DedupCacheSpec extends Spec {
+
+  class `A dedup cache` {
+    @Test def `should remember keys it has been given` {
+      val cache = new DedupCache(1000, 60000)
+      cache.add(42)
+      cache.contains(42) must be(true)
+      cache.contains(43) must be(false)
+    }
+
+    @Test def `should forget keys once their time is up` {
+      val cache = new DedupCache(1000, 10)
+      cache.add(42)
+      Thread.sleep(20)
+      cache.contains(42) must be(false)
+    }
+
+    @Test def `should keep the most recent keys when full` {
+      val cache = new DedupCache(1000, 60000)
+      for (key <- 1 to 100000) cache.add(key)
+      cache.contains(100000) must be(true)
+      (1 to 1000).count(key => cache.contains(key)) must be(0)
+    }
+  }
+
+}
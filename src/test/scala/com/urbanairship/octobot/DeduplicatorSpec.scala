@@ -0,0 +1,28 @@
+import com.codahale.simplespec.Spec
+
+import com.urbanairship.octobot.{Deduplicator, Queue}
+
+import org.junit.Test
+
+class DeduplicatorSpec extends Spec {
+
+  class `A queue's deduplicator` {
+    def queue(ttl: Int) = {
+      val queue = new Queue("local", "octobot-dedup-spec", null, 0)
+      queue.dedupTtl = ttl
+      queue
+    }
+
+    @Test def `should be shared by the queue's workers` {
+      (Deduplicator.forQueue(queue(60)) eq Deduplicator.forQueue(queue(60))) must be(true)
+    }
+
+    @Test def `should be replaced when the queue's dedup settings change` {
+      val before = Deduplicator.forQueue(queue(60))
+      val after = Deduplicator.forQueue(queue(120))
+      (before eq after) must be(false)
+      (Deduplicator.forQueue(queue(120)) eq after) must be(true)
+    }
+  }
+
+}
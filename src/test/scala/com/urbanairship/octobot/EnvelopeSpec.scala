@@ -0,0 +1,67 @@
+import com.codahale.simplespec.Spec
+
+import com.urbanairship.octobot.Envelope
+
+import org.junit.Test
+
+class EnvelopeSpec extends Spec {
+
+  class `An envelope` {
+
+    @Test def `should read the task and retries from a message` {
+      val envelope = Envelope.parse("{\"task\":\"a.Task\", \"retries\":3}".getBytes("UTF-8"))
+      envelope.task must be("a.Task")
+      envelope.retries must be(3L)
+    }
+
+    @Test def `should skip over nested values without confusing their keys` {
+      val message = "{\"data\":{\"task\":\"nope\",\"list\":[1,\"}\\\"\",{}]}, \"task\":\"a.Task\"}"
+      Envelope.parse(message.getBytes("UTF-8")).task must be("a.Task")
+    }
+
+    @Test def `should reject truncated or invalid unicode escapes` {
+      for (task <- List("\\u", "\\u12", "\\uzz12")) {
+        val rejected = try {
+          Envelope.parse(("{\"task\":\"" + task + "\"}").getBytes("UTF-8")).task
+          false
+        } catch {
+          case e: IllegalArgumentException => true
+        }
+        rejected must be(true)
+      }
+
+      Envelope.parse("{\"task\":\"a.T\\u0061sk\"}".getBytes("UTF-8")).task must be("a.Task")
+    }
+
+    @Test def `should default to no retries` {
+      Envelope.parse("{\"task\":\"a.Task\"}".getBytes("UTF-8")).retries must be(0L)
+    }
+
+    @Test def `should record retries on a copy of the message` {
+      val body = "{\"task\":\"a.Task\", \"retries\":3, \"id\":7}"
+      val envelope = Envelope.parse(body.getBytes("UTF-8"))
+      val retry = Envelope.parse(envelope.retried(2).body)
+
+      retry.retried must be(2L)
+      retry.retries must be(3L)
+      retry.message.get("id") must be(7L)
+      envelope.retried must be(0L)
+    }
+
+    @Test def `should materialize the full message on request` {
+      val envelope = Envelope.parse("{\"task\":\"a.Task\", \"id\":7}".getBytes("UTF-8"))
+      envelope.message.get("id") must be(7L)
+    }
+
+    @Test(expected = classOf[IllegalArgumentException])
+    def `should reject a message without a task` {
+      Envelope.parse("{\"retries\":3}".getBytes("UTF-8"))
+    }
+
+    @Test(expected = classOf[IllegalArgumentException])
+    def `should reject a message which isn't an object` {
+      Envelope.parse("[\"task\"]".getBytes("UTF-8"))
+    }
+  }
+
+}
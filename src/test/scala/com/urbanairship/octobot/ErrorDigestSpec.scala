@@ -0,0 +1,32 @@
+import com.codahale.simplespec.Spec
+
+import com.urbanairship.octobot.ErrorDigest
+
+import org.junit.Test
+
+class ErrorDigestSpec extends Spec {
+
+  class `An error digest` {
+    def failure(task: String, error: Throwable) =
+      new ErrorDigest.Failure(task, "Attempted executing 1 times as specified.", "{}", error)
+
+    @Test def `should count repeats of the same error as one group` {
+      val digest = new ErrorDigest()
+      for (i <- 1 to 3) digest.add(failure("a.Task", new IllegalStateException("stuck")))
+      digest.add(failure("a.Task", new IllegalArgumentException("bad")))
+      digest.add(failure("b.Task", new IllegalArgumentException("bad")))
+
+      digest.groups must be(3)
+      digest.failures must be(5L)
+      digest.render(2).contains("Failed 3 times") must be(true)
+      digest.render(2).contains("2 failures were dropped") must be(true)
+    }
+
+    @Test def `should fingerprint an error by its root cause` {
+      val cause = new IllegalStateException("stuck")
+      ErrorDigest.fingerprint("a.Task", new RuntimeException(cause)) must
+        be(ErrorDigest.fingerprint("a.Task", cause))
+    }
+  }
+
+}
@@ -0,0 +1,76 @@
+import com.codahale.simplespec.Spec
+
+import com.urbanairship.octobot.FairScheduler
+
+import java.util.concurrent.{CountDownLatch, TimeUnit}
+import scala.collection.mutable.ListBuffer
+
+import org.junit.Test
+
+class FairSchedulerSpec extends Spec {
+
+  class `A fair scheduler` {
+
+    @Test def `should hold each lane to its capacity` {
+      val scheduler = new FairScheduler(2, 1000)
+      val lane = scheduler.lane("spec", 5, 1)
+      val latch = new CountDownLatch(1)
+      val blocker = new Runnable { def run() { latch.await() } }
+
+      lane.submit(blocker, 1, TimeUnit.SECONDS) must be(true)
+      lane.submit(blocker, 10, TimeUnit.MILLISECONDS) must be(false)
+      lane.inFlight must be(1)
+
+      latch.countDown()
+      scheduler.shutdown()
+    }
+
+    @Test def `should grant slots in proportion to weight` {
+      val scheduler = new FairScheduler(1, 60000)
+      val heavy = scheduler.lane("heavy", 8, 10)
+      val light = scheduler.lane("light", 1, 10)
+      val blocked = scheduler.lane("blocked", 5, 10)
+
+      val latch = new CountDownLatch(1)
+      val done = new CountDownLatch(6)
+      val order = new ListBuffer[String]
+
+      def task(name: String) = new Runnable {
+        def run() {
+          Thread.sleep(2)
+          order.synchronized { order += name }
+          done.countDown()
+        }
+      }
+
+      // Hold the only worker while both lanes fill up.
+      blocked.submit(new Runnable { def run() { latch.await() } }, 1, TimeUnit.SECONDS)
+      for (i <- 1 to 3) {
+        heavy.submit(task("heavy"), 1, TimeUnit.SECONDS)
+        light.submit(task("light"), 1, TimeUnit.SECONDS)
+      }
+
+      latch.countDown()
+      done.await(5, TimeUnit.SECONDS) must be(true)
+      order.take(4).count(_ == "heavy") must be(3)
+      scheduler.shutdown()
+    }
+
+    @Test def `should run the tasks left in a removed lane` {
+      val scheduler = new FairScheduler(1, 1000)
+      val lane = scheduler.lane("removed", 5, 10)
+      val latch = new CountDownLatch(1)
+      val done = new CountDownLatch(3)
+
+      lane.submit(new Runnable { def run() { latch.await() } }, 1, TimeUnit.SECONDS)
+      for (i <- 1 to 3) lane.submit(new Runnable { def run() { done.countDown() } },
+        1, TimeUnit.SECONDS)
+
+      scheduler.remove(lane)
+      latch.countDown()
+      done.await(5, TimeUnit.SECONDS) must be(true)
+      scheduler.shutdown()
+    }
+  }
+
+}
@@ -0,0 +1,26 @@
+import com.codahale.simplespec.Spec
+
+import com.urbanairship.octobot.{Lifecycle, QueueConsumer}
+
+import org.junit.Test
+
+class LifecycleSpec extends Spec {
+
+  class `The lifecycle` {
+
+    @Test def `should drain registered consumers on shutdown` {
+      val consumer = new QueueConsumer(null)
+      val worker = new Thread(new Runnable {
+        def run() { while (!consumer.isDraining) Thread.sleep(10) }
+      })
+      worker.start()
+      Lifecycle.register(consumer, worker)
+
+      Lifecycle.shutdown(5000)
+
+      worker.isAlive must be(false)
+      Lifecycle.state must be(Lifecycle.State.STOPPED)
+    }
+  }
+
+}
@@ -0,0 +1,138 @@
+import com.codahale.simplespec.Spec
+
+import com.urbanairship.octobot.{LocalQueue, Queue, QueueBackends}
+
+import java.io.{File, RandomAccessFile}
+import java.nio.channels.FileChannel
+import scala.collection.JavaConversions._
+
+import org.junit.Test
+
+class LocalQueueSpec extends Spec {
+
+  class `A local queue` {
+    val queue = new Queue("local", "octobot-spec-" + System.nanoTime, null, 0)
+    val directory = new File(queue.path, queue.queueName)
+
+    def cleanUp() {
+      directory.listFiles.foreach(file => file.delete())
+      directory.delete()
+    }
+
+    @Test def `should read back messages in order across segments` {
+      val local = new LocalQueue(directory, 4096)
+      for (i <- 1 to 1000) local.append(("message " + i).getBytes("UTF-8"))
+
+      var offset = 0L
+      val messages = for (i <- 1 to 1000) yield {
+        val record = local.read(offset)
+        offset = record.next
+        new String(record.body, "UTF-8")
+      }
+
+      messages.head must be("message 1")
+      messages.last must be("message 1000")
+      local.read(offset) must be(null)
+      cleanUp()
+    }
+
+    @Test def `should replay unacknowledged messages after a restart` {
+      val producer = LocalQueue.open(queue)
+      for (i <- 1 to 5) producer.append(("message " + i).getBytes("UTF-8"))
+
+      val consumer = QueueBackends.create(queue)
+      consumer.connect()
+      val deliveries = consumer.fetch(5, 100)
+      consumer.ack(deliveries(0))
+      consumer.ack(deliveries(1))
+      consumer.ack(deliveries(3))
+      consumer.flush()
+      consumer.close()
+
+      val restarted = QueueBackends.create(queue)
+      restarted.connect()
+      restarted.fetch(5, 100).map(delivery => new String(delivery.body, "UTF-8")).toList must
+        be(List("message 3", "message 4", "message 5"))
+      restarted.depth must be(3L)
+
+      restarted.close()
+      cleanUp()
+    }
+
+    @Test def `should pad over records left uncommitted by a crashed producer` {
+      val crashed = new LocalQueue(directory, 4096)
+      val offsets = for (i <- 1 to 4) yield crashed.append(("message " + i).getBytes("UTF-8"))
+
+      // Uncommit the second record, and the fourth with its body left behind.
+      val file = new RandomAccessFile(new File(directory, "%020d.seg".format(0)), "rw")
+      val segment = file.getChannel.map(FileChannel.MapMode.READ_WRITE, 0, 4096)
+      segment.putLong(offsets(1).toInt, 0)
+      segment.putLong(offsets(3).toInt, 0)
+      file.close()
+      crashed.close()
+
+      val restarted = new LocalQueue(directory, 4096)
+      restarted.append("message 5".getBytes("UTF-8"))
+
+      var offset = 0L
+      val messages = new scala.collection.mutable.ListBuffer[String]
+      var record = restarted.read(offset)
+      while (record != null) {
+        messages += new String(record.body, "UTF-8")
+        offset = record.next
+        record = restarted.read(offset)
+      }
+
+      messages.toList must be(List("message 1", "message 3", "message 5"))
+      cleanUp()
+    }
+
+    @Test def `should pad over room claimed by an append which failed` {
+      val local = new LocalQueue(directory, 4096)
+      local.append("message 1".getBytes("UTF-8"))
+
+      // Block the next segment so the append crossing into it fails.
+      val blocker = new File(directory, "%020d.seg".format(1))
+      blocker.mkdir()
+      val failed = try {
+        for (i <- 1 to 10) local.append(new Array[Byte](1000))
+        false
+      } catch { case e: java.io.IOException => true }
+      failed must be(true)
+      blocker.delete()
+      local.append("message 2".getBytes("UTF-8"))
+
+      var offset = 0L
+      var last: String = null
+      var record = local.read(offset)
+      while (record != null) {
+        last = new String(record.body, "UTF-8")
+        offset = record.next
+        record = local.read(offset)
+      }
+
+      last must be("message 2")
+      local.close()
+      cleanUp()
+    }
+
+    @Test def `should share one queue per directory, with one producer at a time` {
+      LocalQueue.open(queue) must be(LocalQueue.open(queue))
+
+      val first = new LocalQueue(directory, 4096)
+      val second = new LocalQueue(directory, 4096)
+      first.append("message 1".getBytes("UTF-8"))
+
+      val refused = try { second.append("message 2".getBytes("UTF-8")); false }
+        catch { case e: java.io.IOException => true }
+      refused must be(true)
+
+      first.close()
+      second.append("message 2".getBytes("UTF-8"))
+      new String(second.read(second.read(0).next).body, "UTF-8") must be("message 2")
+      second.close()
+      cleanUp()
+    }
+  }
+
+}
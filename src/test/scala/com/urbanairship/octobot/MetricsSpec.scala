@@ -0,0 +1,50 @@
+import com.codahale.simplespec.Spec
+
+import com.urbanairship.octobot.{LatencyHistogram, Metrics}
+
+import org.junit.Test
+
+class MetricsSpec extends Spec {
+
+  class `A latency histogram` {
+
+    @Test def `should report percentiles to within a bucket` {
+      val histogram = new LatencyHistogram
+      for (ms <- 1L to 1000L) histogram.record(ms * 1000000L)
+
+      histogram.count must be(1000L)
+      histogram.max must be(1000000000L)
+      (math.abs(histogram.percentile(50) - 500000000L) < 500000000L * 0.04) must be(true)
+      (math.abs(histogram.percentile(90) - 900000000L) < 900000000L * 0.04) must be(true)
+    }
+
+    @Test def `should report percentiles over recent windows only` {
+      val histogram = new LatencyHistogram(50)
+      for (i <- 1 to 1000) histogram.record(1000000L)
+      Thread.sleep(120)
+      for (i <- 1 to 10) histogram.record(1000000000L)
+
+      histogram.count must be(1010L)
+      histogram.max must be(1000000000L)
+      (math.abs(histogram.percentile(50) - 1000000000L) < 1000000000L * 0.04) must be(true)
+
+      Thread.sleep(120)
+      histogram.percentile(50) must be(0L)
+      histogram.count must be(1010L)
+    }
+  }
+
+  class `Task metrics` {
+
+    @Test def `should count results and the retries made for them` {
+      Metrics.update("metrics.spec.Task", 1000, false, 3)
+      Metrics.update("metrics.spec.Task", 1000, true, 1)
+
+      val metrics = Metrics.forTask("metrics.spec.Task")
+      metrics.successes must be(1L)
+      metrics.failures must be(1L)
+      metrics.retries must be(4L)
+    }
+  }
+
+}
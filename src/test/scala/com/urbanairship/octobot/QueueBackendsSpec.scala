@@ -0,0 +1,55 @@
+import com.codahale.simplespec.Spec
+
+import com.urbanairship.octobot.{BeanstalkBackend, FakeBeanstalkd, Queue, QueueBackends}
+import com.urbanairship.octobot.{AMQPBackend, RedisListBackend, RedisPubSubBackend}
+
+import scala.collection.JavaConversions._
+
+import org.junit.Test
+
+class QueueBackendsSpec extends Spec {
+
+  class `The queue backends` {
+
+    @Test def `should be found for each protocol` {
+      val redisList = new Queue("redis", "tacos", "localhost", 6379)
+      redisList.redisMode = "list"
+
+      def backend(protocol: String, port: Int) =
+        QueueBackends.create(new Queue(protocol, "tacos", "localhost", port))
+
+      backend("amqp", 5672).isInstanceOf[AMQPBackend] must be(true)
+      backend("beanstalk", 11300).isInstanceOf[BeanstalkBackend] must be(true)
+      backend("redis", 6379).isInstanceOf[RedisPubSubBackend] must be(true)
+      QueueBackends.create(redisList).isInstanceOf[RedisListBackend] must be(true)
+    }
+
+    @Test(expected = classOf[IllegalArgumentException])
+    def `should reject an unknown protocol` {
+      QueueBackends.create(new Queue("carrier-pigeon", "tacos", "localhost", 1))
+    }
+  }
+
+  class `A Beanstalk backend` {
+    val server = new FakeBeanstalkd()
+    val backend = QueueBackends.create(new Queue("beanstalk", "tacos", "localhost", server.port))
+
+    @Test def `should fetch and acknowledge a batch of messages` {
+      for (i <- 1 to 3) server.put("job " + i)
+      backend.connect()
+      backend.depth must be(3L)
+
+      val deliveries = backend.fetch(5, 100)
+      deliveries.size must be(3)
+      deliveries.foreach(delivery => backend.ack(delivery))
+      backend.flush()
+
+      server.reserved must be(0)
+      server.ready must be(0)
+
+      backend.close()
+      server.close()
+    }
+  }
+
+}
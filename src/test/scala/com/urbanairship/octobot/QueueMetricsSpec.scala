@@ -0,0 +1,32 @@
+import com.codahale.simplespec.Spec
+
+import com.urbanairship.octobot.QueueMetrics
+
+import org.junit.Test
+
+class QueueMetricsSpec extends Spec {
+
+  class `Queue metrics` {
+
+    @Test def `should track messages in flight until acknowledged` {
+      val metrics = QueueMetrics.forQueue("queue.metrics.spec.inflight")
+      metrics.received(true)
+      metrics.received(true)
+      metrics.received(false)
+      metrics.inFlight must be(2)
+
+      metrics.acknowledged(System.nanoTime)
+      metrics.inFlight must be(1)
+    }
+
+    @Test def `should report the share of time spent running tasks` {
+      val metrics = QueueMetrics.forQueue("queue.metrics.spec.utilization")
+      metrics.utilization must be(0.0)
+
+      metrics.idle(300)
+      metrics.busy(100)
+      metrics.utilization must be(0.25)
+    }
+  }
+
+}
@@ -0,0 +1,41 @@
+import com.codahale.simplespec.Spec
+
+import com.urbanairship.octobot.QueueRunner
+
+import java.util.HashMap
+import org.junit.Test
+
+class QueueRunnerSpec extends Spec {
+
+  def entry(settings: (String, AnyRef)*) = {
+    val config = new HashMap[String, AnyRef]
+    config.put("name", "tacos")
+    config.put("protocol", "AMQP")
+    for ((key, value) <- settings) config.put(key, value)
+    config
+  }
+
+  class `A queue's reloaded entry` {
+    @Test def `should be taken up in place when only its workers change` {
+      val current = entry("workers" -> java.lang.Long.valueOf(2))
+      val updated = entry("workers" -> java.lang.Long.valueOf(4),
+        "priority" -> java.lang.Long.valueOf(8))
+      QueueRunner.updatable(current, updated) must be(true)
+    }
+
+    @Test def `should restart the queue when anything else changes` {
+      val current = entry("prefetch" -> java.lang.Long.valueOf(10))
+      val updated = entry("prefetch" -> java.lang.Long.valueOf(20))
+      QueueRunner.updatable(current, updated) must be(false)
+      QueueRunner.updatable(entry(), entry("executor" -> "pool")) must be(false)
+    }
+
+    @Test def `should resize a pool in place` {
+      val current = entry("executor" -> "pool", "pool_size" -> java.lang.Long.valueOf(16))
+      val updated = entry("executor" -> "pool", "pool_size" -> java.lang.Long.valueOf(32))
+      QueueRunner.updatable(current, updated) must be(true)
+      val workers = entry("executor" -> "pool", "workers" -> java.lang.Long.valueOf(2))
+      QueueRunner.updatable(current, workers) must be(false)
+    }
+  }
+}
@@ -0,0 +1,83 @@
+import com.codahale.simplespec.Spec
+
+import com.urbanairship.octobot.{Queue, RedisListQueue}
+
+import redis.clients.jedis.Jedis
+import scala.collection.JavaConversions._
+
+import org.junit.{Assume, Test}
+
+// These specs run against a Redis server on localhost:6379, and are skipped
+// if one isn't available.
+class RedisListQueueSpec extends Spec {
+
+  class `A Redis list queue` {
+    val name = "octobot-spec-" + System.nanoTime
+    val jedis = connect()
+
+    def connect(): Jedis = {
+      try {
+        val jedis = new Jedis("localhost", 6379)
+        jedis.connect()
+        jedis.ping()
+        jedis
+      } catch {
+        case e: Exception => null
+      }
+    }
+
+    def cleanUp() {
+      jedis.keys(name + "*").foreach(key => jedis.del(key))
+    }
+
+    @Test def `should fetch a batch of messages into its processing list` {
+      Assume.assumeTrue(jedis != null)
+      for (i <- 1 to 3) jedis.lpush(name, "message " + i)
+
+      val queue = new RedisListQueue(new Queue("redis", name, "localhost", 6379))
+      val items = queue.fetch(5, 1)
+
+      items.toList must be(List("message 1", "message 2", "message 3"))
+      jedis.llen(name) must be(0L)
+
+      items.foreach(item => queue.completed(item))
+      queue.flush()
+      jedis.keys(name + ":processing:*").map(key => jedis.llen(key).longValue).sum must be(0L)
+
+      queue.close()
+      cleanUp()
+    }
+
+    @Test def `should requeue messages held by an expired worker` {
+      Assume.assumeTrue(jedis != null)
+      jedis.lpush(name, "held")
+
+      val expired = new RedisListQueue(new Queue("redis", name, "localhost", 6379))
+      expired.fetch(1, 1).toList must be(List("held"))
+      expired.close()
+      jedis.keys(name + ":worker:*").foreach(key => jedis.del(key))
+
+      val survivor = new RedisListQueue(new Queue("redis", name, "localhost", 6379))
+      survivor.reap()
+      jedis.lrange(name, 0, -1).toList must be(List("held"))
+
+      survivor.close()
+      cleanUp()
+    }
+
+    @Test def `should keep its heartbeat alive without fetching` {
+      Assume.assumeTrue(jedis != null)
+      val config = new Queue("redis", name, "localhost", 6379)
+      config.reapInterval = 1
+
+      val queue = new RedisListQueue(config)
+      Thread.sleep(4000)
+      jedis.keys(name + ":worker:*").size must be(1)
+
+      queue.release()
+      jedis.keys(name + ":worker:*").size must be(0)
+      cleanUp()
+    }
+  }
+
+}
@@ -0,0 +1,33 @@
+import com.codahale.simplespec.Spec
+
+import com.urbanairship.octobot.{Envelope, TaskBatcher}
+import org.json.simple.JSONObject
+
+import org.junit.Test
+
+class TaskBatcherSpec extends Spec {
+
+  def envelope(task: String) = Envelope.of(task, new JSONObject)
+
+  class `A task batcher` {
+
+    @Test def `should return a batch once it is full` {
+      val batcher = new TaskBatcher[Integer](2, 60000)
+      batcher.add(envelope("a"), 1) must be(null)
+      batcher.add(envelope("b"), 2) must be(null)
+
+      val batch = batcher.add(envelope("a"), 3)
+      batch.task must be("a")
+      batch.receipts.toArray.toList must be(List(1, 3))
+    }
+
+    @Test def `should return batches which have lingered long enough` {
+      val batcher = new TaskBatcher[Integer](10, 0)
+      batcher.add(envelope("a"), 1)
+
+      batcher.expired.size must be(1)
+      batcher.expired.size must be(0)
+    }
+  }
+
+}
@@ -0,0 +1,110 @@
+import com.codahale.simplespec.Spec
+
+import com.urbanairship.octobot.{Envelope, TaskDeployer, TaskExecutor, TaskJar}
+
+import java.io.{File, FileOutputStream, FileWriter}
+import java.nio.file.Files
+import java.util.concurrent.{CountDownLatch, TimeUnit}
+import java.util.jar.{JarEntry, JarOutputStream}
+import javax.tools.ToolProvider
+
+import org.junit.Test
+
+class TaskDeployerSpec extends Spec {
+
+  val task = "deployspec.VersionTask"
+
+  // Builds a jar in directory holding a task which returns version, and
+  // which, if it blocks, waits to be released before it does.
+  def taskJar(directory: File, name: String, version: String, blocks: Boolean) = {
+    val build = Files.createTempDirectory("octobot-deploy-build").toFile
+    val source = new File(build, "VersionTask.java")
+    val writer = new FileWriter(source)
+    writer.write("package deployspec;\n" +
+      "import java.util.concurrent.CountDownLatch;\n" +
+      "public class VersionTask {\n" +
+      "  public static final CountDownLatch entered = new CountDownLatch(1);\n" +
+      "  public static final CountDownLatch release = new CountDownLatch(" +
+      (if (blocks) 1 else 0) + ");\n" +
+      "  public static Object run(byte[] message) throws Exception {\n" +
+      "    entered.countDown();\n" +
+      "    release.await();\n" +
+      "    return \"" + version + "\";\n" +
+      "  }\n" +
+      "}\n")
+    writer.close()
+
+    ToolProvider.getSystemJavaCompiler.run(null, null, null,
+      "-d", build.getPath, source.getPath) must be(0)
+
+    val jar = new File(directory, name)
+    val out = new JarOutputStream(new FileOutputStream(jar))
+    out.putNextEntry(new JarEntry("deployspec/VersionTask.class"))
+    out.write(Files.readAllBytes(new File(build, "deployspec/VersionTask.class").toPath))
+    out.closeEntry()
+    out.close()
+    jar
+  }
+
+  def latch(jar: TaskJar, name: String) =
+    jar.tasks.get(task).getField(name).get(null).asInstanceOf[CountDownLatch]
+
+  def call() =
+    TaskExecutor.execute(Envelope.parse(("{\"task\":\"" + task + "\"}").getBytes("UTF-8")))
+
+  class `A deployed task jar` {
+    @Test def `should keep running calls in flight on the version it replaced` {
+      val directory = Files.createTempDirectory("octobot-deploy").toFile
+      val first = TaskJar.load(taskJar(directory, "first.jar", "one", true))
+      TaskExecutor.deploy(first)
+
+      var result: Object = null
+      val caller = new Thread(new Runnable { def run() { result = call() } })
+      caller.start()
+      latch(first, "entered").await(5, TimeUnit.SECONDS) must be(true)
+      first.inFlight must be(1)
+
+      // Redeploy while the first version's call is still running.
+      val second = TaskJar.load(taskJar(directory, "second.jar", "two", false))
+      TaskExecutor.deploy(second)
+      TaskExecutor.undeploy(first)
+      call() must be("two")
+
+      // The first version's loader stays open until its call exits.
+      first.close() must be(false)
+      latch(first, "release").countDown()
+      caller.join(5000)
+      result must be("one")
+      first.inFlight must be(0)
+      first.close() must be(true)
+      first.enter() must be(false)
+
+      TaskExecutor.undeploy(second)
+      second.close()
+    }
+  }
+
+  class `A task deployer` {
+    @Test def `should redeploy a jar once it has stopped changing` {
+      val directory = Files.createTempDirectory("octobot-deploy").toFile
+      val jar = taskJar(directory, "tasks.jar", "one", false)
+      val deployer = new TaskDeployer(directory, 0)
+
+      deployer.scan()
+      call() must be("one")
+
+      taskJar(directory, "tasks.jar", "two, changed", false)
+      jar.setLastModified(jar.lastModified + 2000)
+      deployer.scan()
+      call() must be("one")
+      deployer.scan()
+      call() must be("two, changed")
+
+      jar.delete()
+      deployer.scan()
+      val missing = try { call(); false } catch { case e: Exception => true }
+      missing must be(true)
+    }
+  }
+
+}
@@ -0,0 +1,32 @@
+import com.codahale.simplespec.Spec
+
+import com.urbanairship.octobot.TaskLimit
+
+import org.junit.Test
+
+class TaskLimitSpec extends Spec {
+
+  class `A task limit` {
+    @Test def `should put off messages beyond its concurrency` {
+      val limit = new TaskLimit(2, 0, 250)
+      limit.acquire() must be(0L)
+      limit.acquire() must be(0L)
+      val wait = limit.acquire()
+      (wait >= 250 && wait <= 375) must be(true)
+
+      limit.release()
+      limit.acquire() must be(0L)
+      limit.running must be(2)
+    }
+
+    @Test def `should put off messages beyond its rate until a token is due` {
+      val limit = new TaskLimit(0, 10, 250)
+      for (i <- 1 to 10) limit.acquire() must be(0L)
+
+      val wait = limit.acquire()
+      (wait > 0 && wait <= 150) must be(true)
+      limit.running must be(10)
+    }
+  }
+
+}
@@ -0,0 +1,48 @@
+import com.codahale.simplespec.Spec
+
+import com.urbanairship.octobot.{Envelope, FakeBeanstalkd, LocalQueue, Queue, TaskPublisher}
+
+import java.io.File
+import org.json.simple.JSONObject
+
+import org.junit.Test
+
+class TaskPublisherSpec extends Spec {
+
+  class `A task publisher` {
+    val task = "com.urbanairship.octobot.tasks.SampleTask"
+
+    @Test def `should put messages on Beanstalk a batch at a time` {
+      val server = new FakeBeanstalkd()
+      val publisher = new TaskPublisher(new Queue("beanstalk", "tacos", "localhost", server.port))
+
+      for (i <- 1 to 600) publisher.publish(task, new JSONObject())
+      server.ready must be(512)
+
+      publisher.close()
+      server.ready must be(600)
+      server.close()
+    }
+
+    @Test def `should build each message from its task, retries and payload` {
+      val queue = new Queue("local", "octobot-spec-" + System.nanoTime, null, 0)
+      val payload = new JSONObject()
+      payload.put("id", 7L)
+
+      val publisher = new TaskPublisher(queue)
+      publisher.publish(task, payload, 3)
+      publisher.flush()
+
+      val envelope = Envelope.parse(LocalQueue.open(queue).read(0).body)
+      envelope.task must be(task)
+      envelope.retries must be(3L)
+      envelope.message.get("id") must be(7L)
+
+      publisher.close()
+      val directory = new File(queue.path, queue.queueName)
+      directory.listFiles.foreach(file => file.delete())
+      directory.delete()
+    }
+  }
+
+}
@@ -1,6 +1,8 @@
 import com.codahale.simplespec.Spec
 
-import com.urbanairship.octobot.QueueConsumer
+import com.urbanairship.octobot.{Envelope, QueueConsumer, TaskExecutor}
+
+import java.util.Arrays
 
 import org.apache.log4j.Logger
 import org.apache.log4j.BasicConfigurator
@@ -13,15 +15,30 @@ class TaskSpec extends Spec {
 
     // Our sample tasks to be executed below.
     val shouldSucceed = "{\"task\":\"com.urbanairship.octobot.tasks.SampleTask\"}"
+    val rawTask = "{\"task\":\"com.urbanairship.octobot.tasks.SampleRawTask\"}"
     val noRunMethod = "{\"task\":\"com.urbanairship.octobot.tasks.SampleNonRunnableTask\"}"
     val nonExistent = "{\"task\":\"this.does.not.Exist\"}"
     val retry3x = "{\"task\":\"this.does.not.Exist\", \"retries\":3}"
+    val batchTask = "com.urbanairship.octobot.tasks.SampleBatchTask"
     
     @Test def `should execute a task successfully` {
       val queueConsumer = new QueueConsumer(null)
       queueConsumer.invokeTask(shouldSucceed) must be(true)
     }
 
+    @Test def `should execute a task which takes the raw message` {
+      val queueConsumer = new QueueConsumer(null)
+      queueConsumer.invokeTask(rawTask) must be(true)
+    }
+
+    @Test def `should return the result of a task which has one` {
+      val task = "com.urbanairship.octobot.tasks.SampleResultTask"
+      val envelope = Envelope.parse(("{\"task\":\"" + task + "\", " +
+        "\"echo\":\"hola\"}").getBytes("UTF-8"))
+      TaskExecutor.execute(envelope) must be("hola")
+      TaskExecutor.execute(Envelope.parse(shouldSucceed.getBytes("UTF-8"))) must be(null)
+    }
+
     @Test def `should fail to run a task with a non-existent run method gracefully` {
       val queueConsumer = new QueueConsumer(null)
       println("Following expected to fail due to lack of a static run method.")
@@ -39,6 +56,23 @@ class TaskSpec extends Spec {
       println("Following task is expected to run and fail three times.")
       queueConsumer.invokeTask(retry3x) must be(false)
     }
+
+    @Test def `should discover tasks which accept batches` {
+      TaskExecutor.acceptsBatches(batchTask) must be(true)
+      TaskExecutor.acceptsBatches("com.urbanairship.octobot.tasks.SampleTask") must be(false)
+      TaskExecutor.acceptsBatches("this.does.not.Exist") must be(false)
+    }
+
+    @Test def `should report the result of each message in a batch` {
+      val queueConsumer = new QueueConsumer(null)
+      val envelopes = Arrays.asList(
+        Envelope.parse(("{\"task\":\"" + batchTask + "\"}").getBytes("UTF-8")),
+        Envelope.parse(("{\"task\":\"" + batchTask + "\", \"fail\":true, " +
+          "\"retries\":2}").getBytes("UTF-8")),
+        Envelope.parse(("{\"task\":\"" + batchTask + "\"}").getBytes("UTF-8")))
+
+      queueConsumer.invokeBatch(batchTask, envelopes).toList must be(List(true, false, true))
+    }
   }
 
 }
@@ -0,0 +1,26 @@
+import com.codahale.simplespec.Spec
+
+import com.urbanairship.octobot.TimerWheel
+
+import org.junit.Test
+
+class TimerWheelSpec extends Spec {
+
+  class `A timer wheel` {
+
+    @Test def `should hold items until they come due` {
+      val wheel = new TimerWheel[String](10, 4)
+      wheel.schedule("soon", 0)
+      wheel.schedule("later", 100)
+
+      Thread.sleep(30)
+      wheel.expire.toArray.toList must be(List("soon"))
+      wheel.size must be(1)
+
+      Thread.sleep(100)
+      wheel.expire.toArray.toList must be(List("later"))
+      wheel.size must be(0)
+    }
+  }
+
+}
@@ -0,0 +1,47 @@
+import com.codahale.simplespec.Spec
+
+import com.urbanairship.octobot.WorkerPool
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+import org.junit.Test
+
+class WorkerPoolSpec extends Spec {
+
+  class `A worker pool` {
+
+    @Test def `should run submitted tasks` {
+      val pool = new WorkerPool("spec", 2, 4, Thread.NORM_PRIORITY)
+      val latch = new CountDownLatch(3)
+      for (i <- 1 to 3)
+        pool.submit(new Runnable { def run() { latch.countDown() } }, 1, TimeUnit.SECONDS)
+      latch.await(1, TimeUnit.SECONDS) must be(true)
+      pool.shutdown()
+    }
+
+    @Test def `should refuse work once the in-flight limit is reached` {
+      val pool = new WorkerPool("spec", 1, 2, Thread.NORM_PRIORITY)
+      val release = new CountDownLatch(1)
+      val blocker = new Runnable { def run() { release.await() } }
+
+      pool.submit(blocker, 1, TimeUnit.SECONDS) must be(true)
+      pool.submit(blocker, 1, TimeUnit.SECONDS) must be(true)
+      pool.inFlight must be(2)
+      pool.submit(blocker, 10, TimeUnit.MILLISECONDS) must be(false)
+
+      release.countDown()
+      pool.shutdown()
+    }
+
+    @Test def `should run tasks on a virtual pool, or its fallback` {
+      val pool = WorkerPool.virtual("spec", 4)
+      val latch = new CountDownLatch(8)
+      val task = new Runnable { def run() { latch.countDown() } }
+      for (i <- 1 to 8) pool.submit(task, 1, TimeUnit.SECONDS) must be(true)
+      latch.await(1, TimeUnit.SECONDS) must be(true)
+      pool.shutdown()
+    }
+  }
+
+}
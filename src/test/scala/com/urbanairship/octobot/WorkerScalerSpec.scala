@@ -0,0 +1,29 @@
+import com.codahale.simplespec.Spec
+
+import com.urbanairship.octobot.WorkerScaler
+
+import org.junit.Test
+
+class WorkerScalerSpec extends Spec {
+
+  class `A worker scaler` {
+
+    @Test def `should add workers while they're busy` {
+      WorkerScaler.target(4, 0.9, -1, -1, 1, 8) must be(6)
+      WorkerScaler.target(1, 0.9, -1, -1, 1, 8) must be(2)
+      WorkerScaler.target(7, 0.9, -1, -1, 1, 8) must be(8)
+    }
+
+    @Test def `should add workers while the backlog grows` {
+      WorkerScaler.target(2, 0.5, 200, 100, 1, 8) must be(3)
+      WorkerScaler.target(2, 0.5, 100, 200, 1, 8) must be(2)
+    }
+
+    @Test def `should drain a worker while idle with nothing waiting` {
+      WorkerScaler.target(4, 0.1, 0, 0, 1, 8) must be(3)
+      WorkerScaler.target(4, 0.1, 50, 50, 1, 8) must be(4)
+      WorkerScaler.target(1, 0.0, -1, -1, 1, 8) must be(1)
+    }
+  }
+
+}